@@ -102,6 +102,55 @@ def _compiler_toolchains(ctx):
         java_runtime = find_java_runtime_toolchain(ctx, ctx.attr._host_javabase),
     )
 
+# Worker key of every builder action with experimental_multi_tool_worker.
+_MULTI_TOOL_WORKER_KEY = "KotlinMultiTool"
+
+# Environment of every builder action with experimental_multi_tool_worker.
+_MULTI_TOOL_ENV = {
+    "LC_CTYPE": "en_US.UTF-8",  # For Java source files
+}
+
+def _worker_action(toolchains, worker, tools, worker_key_mnemonic = None, env = {}):
+    """The executable, tools, execution requirements and environment of an action run by a builder worker.
+
+    With experimental_multi_tool_worker, every builder action runs in the kotlinbuilder under one worker key. Bazel also
+    keys workers on the tools and the environment of an action, so the action specific `tools` become inputs and every
+    action gets the same environment.
+
+    Args:
+      toolchains: the compiler toolchains.
+      worker: the binary running the action without the multi-tool worker.
+      tools: depsets the binary needs besides its runfiles.
+      worker_key_mnemonic: the worker key without the multi-tool worker, the mnemonic if None.
+      env: the environment of the action without the multi-tool worker.
+    Returns:
+      A struct of the executable, tools, additional inputs, execution requirements and environment.
+    """
+    if toolchains.kt.experimental_multi_tool_worker:
+        return struct(
+            executable = toolchains.kt.kotlinbuilder.files_to_run.executable,
+            tools = [
+                toolchains.kt.kotlinbuilder.files_to_run,
+                toolchains.kt.kotlin_home.files_to_run,
+            ],
+            inputs = tools,
+            execution_requirements = _utils.add_dicts(
+                toolchains.kt.execution_requirements,
+                {"worker-key-mnemonic": _MULTI_TOOL_WORKER_KEY},
+            ),
+            env = _MULTI_TOOL_ENV,
+        )
+    return struct(
+        executable = worker.files_to_run.executable,
+        tools = [worker.files_to_run] + tools,
+        inputs = [],
+        execution_requirements = _utils.add_dicts(
+            toolchains.kt.execution_requirements,
+            {"worker-key-mnemonic": worker_key_mnemonic},
+        ) if worker_key_mnemonic else toolchains.kt.execution_requirements,
+        env = env,
+    )
+
 def _fail_if_invalid_associate_deps(associate_deps, deps):
     """Verifies associates not included in target deps."""
     diff = _sets.intersection(
@@ -359,6 +408,9 @@ def _run_merge_jdeps_action(ctx, toolchains, jdeps, outputs, deps):
     args.set_param_file_format("multiline")
     args.use_param_file("--flagfile=%s", use_always = True)
 
+    if toolchains.kt.experimental_multi_tool_worker:
+        args.add("--tool", "merge_jdeps")
+
     args.add("--target_label", ctx.label)
 
     for f, path in outputs.items():
@@ -378,18 +430,20 @@ def _run_merge_jdeps_action(ctx, toolchains, jdeps, outputs, deps):
         # For sandboxing to work, and for this action to be deterministic, the compile jars need to be passed as inputs
         inputs = depset(jdeps, transitive = [depset([], transitive = [dep.transitive_compile_time_jars for dep in deps])])
 
+    worker = _worker_action(toolchains, toolchains.kt.jdeps_merger, [toolchains.kt.jvm_stdlibs.compile_jars])
     ctx.actions.run(
         mnemonic = mnemonic,
-        inputs = inputs,
-        tools = [toolchains.kt.jdeps_merger.files_to_run, toolchains.kt.jvm_stdlibs.compile_jars],
+        inputs = depset(transitive = [inputs] + worker.inputs),
+        tools = worker.tools,
         outputs = [f for f in outputs.values()],
-        executable = toolchains.kt.jdeps_merger.files_to_run.executable,
-        execution_requirements = toolchains.kt.execution_requirements,
+        executable = worker.executable,
+        execution_requirements = worker.execution_requirements,
         arguments = [
             ctx.actions.args().add_all(toolchains.kt.builder_args),
             args,
         ],
         progress_message = progress_message,
+        env = worker.env,
         toolchain = _TOOLCHAIN_TYPE,
     )
 
@@ -411,7 +465,7 @@ def _run_kapt_builder_actions(
     kapt_generated_stub_jar = ctx.actions.declare_file(ctx.label.name + "-kapt-generated-stub.jar")
     kapt_generated_class_jar = ctx.actions.declare_file(ctx.label.name + "-kapt-generated-class.jar")
 
-    _run_kt_builder_action(
+    trace_events = _run_kt_builder_action(
         ctx = ctx,
         rule_kind = rule_kind,
         toolchains = toolchains,
@@ -435,6 +489,7 @@ def _run_kapt_builder_actions(
         ap_generated_src_jar = ap_generated_src_jar,
         kapt_generated_stub_jar = kapt_generated_stub_jar,
         kapt_generated_class_jar = kapt_generated_class_jar,
+        trace_events = [trace_events] if trace_events else [],
     )
 
 def _run_ksp_builder_actions(
@@ -462,6 +517,9 @@ def _run_ksp_builder_actions(
     args.set_param_file_format("multiline")
     args.use_param_file("--flagfile=%s", use_always = True)
 
+    if toolchains.kt.experimental_multi_tool_worker:
+        args.add("--tool", "ksp2")
+
     args.add("--module_name", compile_deps.module_name)
 
     # Pass source files directly - worker will stage them internally
@@ -476,6 +534,7 @@ def _run_ksp_builder_actions(
     # Output JAR paths
     args.add("--generated_sources_output", ksp_generated_java_srcjar.path)
     args.add("--generated_classes_output", ksp_generated_classes_jar.path)
+    args.add("--store_jars", toolchains.kt.experimental_store_intermediate_jars)
 
     # Compiler settings
     args.add("--jvm_target", toolchains.kt.jvm_target)
@@ -508,8 +567,14 @@ def _run_ksp_builder_actions(
     for key, value in ksp_options.items():
         args.add("--ksp_options", "%s=%s" % (key, value))
 
-    # Run KSP2 via dedicated worker (separate from kotlinc worker)
+    # Run KSP2 via dedicated worker (separate from kotlinc worker, unless they share the multi-tool worker)
     # Single action: staging + KSP2 + packaging all happen in the worker
+    worker = _worker_action(
+        toolchains,
+        toolchains.kt.ksp2,
+        [toolchains.kt.jvm_stdlibs.compile_jars],
+        worker_key_mnemonic = "KotlinKsp2",
+    )
     ctx.actions.run(
         mnemonic = "KotlinKsp2",
         inputs = depset(
@@ -519,23 +584,18 @@ def _run_ksp_builder_actions(
                 transitive_runtime_jars,
                 toolchains.java_runtime.files,
                 ksp2_api_jars,
-            ],
+            ] + worker.inputs,
         ),
-        tools = [
-            toolchains.kt.ksp2.files_to_run,
-            toolchains.kt.jvm_stdlibs.compile_jars,
-        ],
+        tools = worker.tools,
         outputs = [ksp_generated_java_srcjar, ksp_generated_classes_jar],
-        executable = toolchains.kt.ksp2.files_to_run.executable,
-        execution_requirements = _utils.add_dicts(
-            toolchains.kt.execution_requirements,
-            {"worker-key-mnemonic": "KotlinKsp2"},
-        ),
+        executable = worker.executable,
+        execution_requirements = worker.execution_requirements,
         arguments = [
             ctx.actions.args().add_all(toolchains.kt.builder_args),
             args,
         ],
         progress_message = "Running KSP2 for %{label}",
+        env = worker.env,
         toolchain = _TOOLCHAIN_TYPE,
     )
 
@@ -558,7 +618,12 @@ def _run_kt_builder_action(
         plugins,
         outputs,
         build_kotlin = True):
-    """Creates a KotlinBuilder action invocation."""
+    """Creates a KotlinBuilder action invocation.
+
+    Returns:
+        The Chrome trace events file written by the action when the target has the `trace_events`
+        debug tag, None otherwise.
+    """
     if not mnemonic:
         fail("Error: A `mnemonic` must be provided for every invocation of `_run_kt_builder_action`!")
 
@@ -567,6 +632,13 @@ def _run_kt_builder_action(
 
     args = _utils.init_args(ctx, rule_kind, compile_deps.module_name, kotlinc_options)
 
+    if "trace_events" in _utils.debug_tags(ctx):
+        args.add("--mnemonic", mnemonic)
+        outputs = dict(outputs)
+        outputs["trace_events"] = ctx.actions.declare_file(
+            "%s-%s.trace.json" % (ctx.label.name, mnemonic),
+        )
+
     for f, path in outputs.items():
         args.add("--" + f, path)
 
@@ -578,6 +650,9 @@ def _run_kt_builder_action(
     args.add_all("--classpath", compile_deps.compile_jars)
     args.add("--reduced_classpath_mode", toolchains.kt.experimental_reduce_classpath_mode)
     args.add("--build_tools_api", toolchains.kt.experimental_build_tools_api)
+    args.add("--incremental_compilation", toolchains.kt.experimental_incremental_compilation)
+    args.add("--compile_to_jar", toolchains.kt.experimental_compile_to_jar)
+    args.add("--store_jars", toolchains.kt.experimental_store_intermediate_jars)
     args.add_all("--sources", srcs.all_srcs, omit_if_empty = True)
     args.add_all("--source_jars", srcs.src_jars + generated_src_jars, omit_if_empty = True)
     args.add_all("--deps_artifacts", deps_artifacts, omit_if_empty = True)
@@ -654,6 +729,15 @@ def _run_kt_builder_action(
         ctx.var.get("TARGET_CPU", "UNKNOWN CPU"),
     )
 
+    worker = _worker_action(
+        toolchains,
+        toolchains.kt.kotlinbuilder,
+        [toolchains.kt.kotlin_home[DefaultInfo].files],
+        worker_key_mnemonic = mnemonic,
+        env = {
+            "LC_CTYPE": "en_US.UTF-8",  # For Java source files
+        },
+    )
     ctx.actions.run(
         mnemonic = mnemonic,
         inputs = depset(
@@ -665,26 +749,20 @@ def _run_kt_builder_action(
                 deps_artifacts,
                 plugins.stubs_phase.classpath,
                 plugins.compile_phase.classpath,
-            ],
+            ] + worker.inputs,
         ),
-        tools = [
-            toolchains.kt.kotlinbuilder.files_to_run,
-            toolchains.kt.kotlin_home.files_to_run,
-        ],
+        tools = worker.tools,
         outputs = [f for f in outputs.values()],
-        executable = toolchains.kt.kotlinbuilder.files_to_run.executable,
-        execution_requirements = _utils.add_dicts(
-            toolchains.kt.execution_requirements,
-            {"worker-key-mnemonic": mnemonic},
-        ),
+        executable = worker.executable,
+        execution_requirements = worker.execution_requirements,
         arguments = [ctx.actions.args().add_all(toolchains.kt.builder_args), args],
         progress_message = progress_message,
-        env = {
-            "LC_CTYPE": "en_US.UTF-8",  # For Java source files
-        },
+        env = worker.env,
         toolchain = _TOOLCHAIN_TYPE,
     )
 
+    return outputs.get("trace_events")
+
 # MAIN ACTIONS #########################################################################################################
 
 def _kt_jvm_produce_jar_actions(ctx, rule_kind, extra_resources = {}):
@@ -833,6 +911,7 @@ def _kt_jvm_produce_output_jar_actions(
     return struct(
         java = java_info,
         instrumented_files = instrumented_files,
+        trace_events = depset(outputs_struct.trace_events),
         kt = _KtJvmInfo(
             srcs = ctx.files.srcs,
             module_name = compile_deps.module_name,
@@ -878,10 +957,12 @@ def _run_kt_java_builder_actions(
     """Runs the necessary KotlinBuilder and JavaBuilder actions to compile a jar
 
     Returns:
-        A struct containing the a list of output_jars and a struct annotation_processing jars
+        A struct containing the a list of output_jars, a struct annotation_processing jars and the
+        trace_events files of the KotlinBuilder actions
     """
     compile_jars = []
     output_jars = []
+    trace_events = []
     kt_stubs_for_java = []
     has_kt_sources = srcs.kt or srcs.src_jars
 
@@ -900,6 +981,7 @@ def _run_kt_java_builder_actions(
         )
         generated_kapt_src_jars.append(kapt_outputs.ap_generated_src_jar)
         output_jars.append(kapt_outputs.kapt_generated_class_jar)
+        trace_events.extend(kapt_outputs.trace_events)
         kt_stubs_for_java.append(
             JavaInfo(
                 compile_jar = kapt_outputs.kapt_generated_stub_jar,
@@ -947,7 +1029,7 @@ def _run_kt_java_builder_actions(
             kt_jdeps = ctx.actions.declare_file(ctx.label.name + "-kt.jdeps")
             outputs["kotlin_output_jdeps"] = kt_jdeps
 
-        _run_kt_builder_action(
+        compile_trace_events = _run_kt_builder_action(
             ctx = ctx,
             rule_kind = rule_kind,
             toolchains = toolchains,
@@ -962,6 +1044,8 @@ def _run_kt_java_builder_actions(
             build_kotlin = True,
             mnemonic = "KotlinCompile",
         )
+        if compile_trace_events:
+            trace_events.append(compile_trace_events)
 
         compile_jars.append(kt_compile_jar)
         output_jars.append(kt_runtime_jar)
@@ -1066,6 +1150,7 @@ def _run_kt_java_builder_actions(
         output_jars = output_jars,
         generated_src_jars = generated_kapt_src_jars + generated_ksp_src_jars,
         annotation_processing = annotation_processing,
+        trace_events = trace_events,
     )
 
 def _create_annotation_processing(annotation_processors, ap_class_jar, ap_source_jar):
@@ -1128,6 +1213,7 @@ def _export_only_providers(ctx, actions, attr, outputs):
 
     return struct(
         java = java,
+        trace_events = depset(),
         kt = _KtJvmInfo(
             module_name = _utils.derive_module_name(ctx),
             module_jars = [],
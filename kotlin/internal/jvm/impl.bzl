@@ -51,6 +51,10 @@ def _make_providers(ctx, providers, runfiles_targets, transitive_files = depset(
         providers.java,
         providers.kt,
         providers.instrumented_files,
+        OutputGroupInfo(
+            # Chrome trace events of the compilation, see the trace_events debug tag.
+            kt_trace_events = providers.trace_events,
+        ),
         DefaultInfo(
             files = depset(files),
             runfiles = ctx.runfiles(
@@ -72,7 +72,7 @@ def _kotlin_toolchain_impl(ctx):
         debug = ctx.attr.debug,
         jvm_target = ctx.attr.jvm_target,
         kotlinbuilder = ctx.attr.kotlinbuilder,
-        builder_args = [],
+        builder_args = _builder_args(ctx),
         jdeps_merger = ctx.attr.jdeps_merger,
         ksp2 = ctx.attr.ksp2,
         ksp2_invoker = ctx.attr.ksp2_invoker,
@@ -83,8 +83,10 @@ def _kotlin_toolchain_impl(ctx):
             "supports-multiplex-sandboxing": "1" if ctx.attr.experimental_multiplex_sandboxing else "0",
             "supports-multiplex-workers": "1" if ctx.attr.experimental_multiplex_workers else "0",
             "supports-path-mapping": "1" if ctx.attr.supports_path_mapping else "0",
+            "supports-worker-cancellation": "1",
             "supports-workers": "1",
         },
+        experimental_multi_tool_worker = ctx.attr.experimental_multi_tool_worker,
         experimental_use_abi_jars = ctx.attr.experimental_use_abi_jars,
         experimental_treat_internal_as_private_in_abi_jars = ctx.attr.experimental_treat_internal_as_private_in_abi_jars,
         experimental_remove_private_classes_in_abi_jars = ctx.attr.experimental_remove_private_classes_in_abi_jars,
@@ -93,6 +95,9 @@ def _kotlin_toolchain_impl(ctx):
         experimental_report_unused_deps = ctx.attr.experimental_report_unused_deps,
         experimental_reduce_classpath_mode = ctx.attr.experimental_reduce_classpath_mode,
         experimental_build_tools_api = ctx.attr.experimental_build_tools_api,
+        experimental_incremental_compilation = ctx.attr.experimental_incremental_compilation,
+        experimental_compile_to_jar = ctx.attr.experimental_compile_to_jar,
+        experimental_store_intermediate_jars = ctx.attr.experimental_store_intermediate_jars,
         javac_options = ctx.attr.javac_options[JavacOptions] if ctx.attr.javac_options else None,
         kotlinc_options = ctx.attr.kotlinc_options[KotlincOptions] if ctx.attr.kotlinc_options else None,
         empty_jar = ctx.file._empty_jar,
@@ -106,6 +111,32 @@ def _kotlin_toolchain_impl(ctx):
         platform_common.ToolchainInfo(**toolchain),
     ]
 
+def _builder_args(ctx):
+    """Startup options of the builder workers, shared by every request a worker serves."""
+    args = []
+    if ctx.attr.experimental_retain_compiler_environment:
+        args.extend(["--retain_compiler_environment", "true"])
+    if ctx.attr.experimental_compiler_plugin_cache_size > 0:
+        args.extend(["--compiler_plugin_cache_size", str(ctx.attr.experimental_compiler_plugin_cache_size)])
+    args.extend(["--processor_cache_size", str(ctx.attr.experimental_processor_cache_size)])
+    if ctx.attr.experimental_kapt_processor_cache:
+        args.extend(["--kapt_processor_cache", "true"])
+    if ctx.attr.experimental_jar_entry_cache_size > 0:
+        args.extend(["--jar_entry_cache_size", str(ctx.attr.experimental_jar_entry_cache_size)])
+    if ctx.attr.experimental_worker_cost_history:
+        args.extend(["--worker_cost_history", ctx.attr.experimental_worker_cost_history])
+    if ctx.attr.experimental_worker_max_parallelism > 0:
+        args.extend(["--worker_max_parallelism", str(ctx.attr.experimental_worker_max_parallelism)])
+    if ctx.attr.experimental_worker_metrics_file:
+        args.extend(["--worker_metrics_file", ctx.attr.experimental_worker_metrics_file])
+    if ctx.attr.experimental_worker_scratch_root:
+        args.extend(["--worker_scratch_root", ctx.attr.experimental_worker_scratch_root])
+    if ctx.attr.experimental_worker_warm_up:
+        args.extend(["--warm_up_compiler", "true"])
+    if ctx.attr.experimental_multi_tool_worker:
+        args.extend(["--multi_tool_worker", "true"])
+    return args
+
 _kt_toolchain = rule(
     doc = """The kotlin toolchain. This should not be created directly `define_kt_toolchain` should be used. The
     rules themselves define the toolchain using that macro.""",
@@ -130,16 +161,59 @@ _kt_toolchain = rule(
             ],
         ),
         "debug": attr.string_list(
-            doc = """Debugging tags passed to the builder. Two tags are supported. `timings` will cause the builder to
-            print timing information. `trace` will cause the builder to print tracing messages. These tags can be
-            enabled via the defines `kt_timings=1` and `kt_trace=1`. These can also be enabled on a per target bases by
-            using `tags` attribute defined directly on the rules.""",
+            doc = """Debugging tags passed to the builder. Four tags are supported. `timings` will cause the builder to
+            print timing information. `trace` will cause the builder to print tracing messages. `trace_events` will
+            cause the builder to write its timings as Chrome trace-event JSON to `<target>-<mnemonic>.trace.json` next
+            to the outputs of each action, with wall-clock timestamps so they can be merged with Bazel's `--profile`.
+            Build the `kt_trace_events` output group to fetch them, e.g. `--output_groups=+kt_trace_events`.
+            `kotlinc_perf` will cause kotlinc to report the time of its own phases (analysis, IR lowering, codegen),
+            which are added to the timings, trace events and worker metrics. These tags can be enabled via the
+            defines `kt_timings=1`, `kt_trace=1`, `kt_trace_events=1` and `kt_kotlinc_perf=1`. These can also be
+            enabled on a per target bases by using `tags` attribute defined directly on the rules.""",
             allow_empty = True,
         ),
         "experimental_build_tools_api": attr.bool(
             doc = "Enables experimental support for Build Tools API integration",
             default = False,
         ),
+        "experimental_compile_to_jar": attr.bool(
+            doc = """Have kotlinc write its classes to an intermediate jar that the output jar is copied from, instead
+            of a directory of class files. Coverage instrumented and incremental compilations, which need the class
+            files, still use the directory.""",
+            default = False,
+        ),
+        "experimental_compiler_plugin_cache_size": attr.int(
+            doc = """Number of distinct compiler plugin classpaths whose classes the persistent worker keeps loaded
+            between compilations. Plugins are keyed by jar digest, so rebuilt plugins are loaded afresh. 0 disables
+            the cache.""",
+            default = 0,
+        ),
+        "experimental_incremental_compilation": attr.bool(
+            doc = """Compile incrementally in the persistent worker, keeping Build Tools API caches between requests.
+            Requires `experimental_build_tools_api`. Targets that produce abi jars, use annotation processors or
+            source jars are always compiled in full.""",
+            default = False,
+        ),
+        "experimental_jar_entry_cache_size": attr.int(
+            doc = """MiB of compressed jar entries a persistent worker keeps between requests. Entries are keyed by the
+            digest of their content, so the classes an edit leaves unchanged are not compressed again; jars stay
+            byte-identical to ones compressed afresh. 0 disables the cache.""",
+            default = 0,
+        ),
+        "experimental_kapt_processor_cache": attr.bool(
+            doc = """Keep kapt annotation processor classes loaded between requests, in up to
+            `experimental_processor_cache_size` loaders keyed by the digests of the processor jars. A run that
+            changes the static state of reused processors is repeated with the processors loaded afresh, and they
+            are not reused again. Processors that only read static state left by an earlier run go unnoticed, so
+            only enable this for processors known to keep no state in static fields.""",
+            default = False,
+        ),
+        "experimental_multi_tool_worker": attr.bool(
+            doc = """Whether compilation, kapt, jdeps merging and KSP2 actions share one pool of persistent workers,
+            running in the builder binary, instead of a pool per mnemonic. Saves the memory and warm-up of the
+            duplicate JVMs.""",
+            default = False,
+        ),
         "experimental_multiplex_sandboxing": attr.bool(
             doc = """Run workers with multiplex sandboxing.""",
             default = False,
@@ -148,6 +222,12 @@ _kt_toolchain = rule(
             doc = """Run workers in multiplex mode.""",
             default = True,
         ),
+        "experimental_processor_cache_size": attr.int(
+            doc = """Number of annotation processor class loaders a worker keeps between requests, for KSP2 and,
+            with `experimental_kapt_processor_cache`, kapt. Loaders are keyed by the digests of the processor jars.
+            0 loads processors afresh for every request.""",
+            default = 4,
+        ),
         "experimental_reduce_classpath_mode": attr.string(
             doc = "Removes unneeded dependencies from the classpath",
             default = "NONE",
@@ -179,6 +259,18 @@ _kt_toolchain = rule(
                 "error",
             ],
         ),
+        "experimental_retain_compiler_environment": attr.bool(
+            doc = """Keep the compiler's application environment and open classpath jars alive between
+            compilations in the persistent worker. Jars are invalidated by digest, and the environment is freed when
+            the worker runs low on heap.""",
+            default = False,
+        ),
+        "experimental_store_intermediate_jars": attr.bool(
+            doc = """Write the jars of the builder actions uncompressed. They are intermediate artifacts: singlejar
+            merges and compresses them into the outputs of the target, or the next compilation reads them, so
+            deflating them in the builder is mostly wasted work. The outputs of the target stay compressed.""",
+            default = False,
+        ),
         "experimental_strict_kotlin_deps": attr.string(
             doc = "Report strict deps violations",
             default = "off",
@@ -200,6 +292,34 @@ _kt_toolchain = rule(
             `kt_abi_plugin_incompatible`""",
             default = False,
         ),
+        "experimental_worker_cost_history": attr.string(
+            doc = """File, relative to the worker's directory, that persistent workers keep the durations of earlier
+            requests in. Waiting multiplex requests start longest first, estimated from this history or, for requests
+            not seen before, from their number of sources and jars. Empty keeps the history in memory only.""",
+            default = "",
+        ),
+        "experimental_worker_max_parallelism": attr.int(
+            doc = """Maximum number of multiplex requests a worker runs at once, 0 for no limit beyond Bazel's
+            `--worker_max_multiplex_instances`. Regardless of this limit, requests wait while the heap is close to full
+            and other requests are running.""",
+            default = 0,
+        ),
+        "experimental_worker_metrics_file": attr.string(
+            doc = """File, relative to the worker's directory, that persistent workers append the metrics of every
+            request to as JSON lines: queue wait, time per builder phase, exit codes, allocation, GC, heap use and the
+            peak heap use of the worker so far. Empty disables metrics.""",
+            default = "",
+        ),
+        "experimental_worker_scratch_root": attr.string(
+            doc = """Directory, e.g. on a tmpfs, under which persistent workers keep the pooled scratch directories of
+            requests that do not run in a sandbox. Empty uses the system temp directory.""",
+            default = "",
+        ),
+        "experimental_worker_warm_up": attr.bool(
+            doc = """Whether a new persistent compile worker warms the compilers up in the background, compiling a
+            small bundled source set with both the K2 and Build Tools API compilers until the first request arrives.""",
+            default = False,
+        ),
         "jacocorunner": attr.label(
             default = Label("@remote_java_tools//:jacoco_coverage_runner"),
         ),
@@ -345,6 +465,12 @@ _DEBUG_SELECT = select({
 }) + select({
     str(Label("//kotlin/internal:builder_debug_timings")): ["timings"],
     "//conditions:default": [],
+}) + select({
+    str(Label("//kotlin/internal:builder_debug_trace_events")): ["trace_events"],
+    "//conditions:default": [],
+}) + select({
+    str(Label("//kotlin/internal:builder_debug_kotlinc_perf")): ["kotlinc_perf"],
+    "//conditions:default": [],
 })
 
 # Evaluating the labels in the context of bzl file to get its repository
@@ -367,6 +493,20 @@ def define_kt_toolchain(
         experimental_multiplex_sandboxing = None,
         supports_path_mapping = None,
         experimental_build_tools_api = None,
+        experimental_incremental_compilation = None,
+        experimental_compile_to_jar = None,
+        experimental_store_intermediate_jars = None,
+        experimental_retain_compiler_environment = None,
+        experimental_compiler_plugin_cache_size = None,
+        experimental_processor_cache_size = None,
+        experimental_kapt_processor_cache = None,
+        experimental_jar_entry_cache_size = None,
+        experimental_worker_cost_history = None,
+        experimental_worker_max_parallelism = None,
+        experimental_worker_metrics_file = None,
+        experimental_worker_scratch_root = None,
+        experimental_worker_warm_up = None,
+        experimental_multi_tool_worker = None,
         javac_options = Label("//kotlin/internal:default_javac_options"),
         kotlinc_options = Label("//kotlin/internal:default_kotlinc_options"),
         jvm_stdlibs = None,
@@ -399,6 +539,20 @@ def define_kt_toolchain(
         experimental_report_unused_deps = experimental_report_unused_deps,
         experimental_reduce_classpath_mode = experimental_reduce_classpath_mode,
         experimental_build_tools_api = experimental_build_tools_api,
+        experimental_incremental_compilation = experimental_incremental_compilation,
+        experimental_compile_to_jar = experimental_compile_to_jar,
+        experimental_store_intermediate_jars = experimental_store_intermediate_jars,
+        experimental_retain_compiler_environment = experimental_retain_compiler_environment,
+        experimental_compiler_plugin_cache_size = experimental_compiler_plugin_cache_size,
+        experimental_processor_cache_size = experimental_processor_cache_size,
+        experimental_kapt_processor_cache = experimental_kapt_processor_cache,
+        experimental_jar_entry_cache_size = experimental_jar_entry_cache_size,
+        experimental_worker_cost_history = experimental_worker_cost_history,
+        experimental_worker_max_parallelism = experimental_worker_max_parallelism,
+        experimental_worker_metrics_file = experimental_worker_metrics_file,
+        experimental_worker_scratch_root = experimental_worker_scratch_root,
+        experimental_worker_warm_up = experimental_worker_warm_up,
+        experimental_multi_tool_worker = experimental_multi_tool_worker,
         javac_options = javac_options,
         kotlinc_options = kotlinc_options,
         visibility = ["//visibility:public"],
@@ -483,6 +637,18 @@ def kt_configure_toolchains():
         visibility = ["//visibility:public"],
     )
 
+    native.config_setting(
+        name = "builder_debug_trace_events",
+        values = {"define": "kt_trace_events=1"},
+        visibility = ["//visibility:public"],
+    )
+
+    native.config_setting(
+        name = "builder_debug_kotlinc_perf",
+        values = {"define": "kt_kotlinc_perf=1"},
+        visibility = ["//visibility:public"],
+    )
+
     native.toolchain_type(
         name = "kt_toolchain_type",
         visibility = ["//visibility:public"],
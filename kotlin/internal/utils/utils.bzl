@@ -37,18 +37,27 @@ def _init_builder_args(ctx, rule_kind, module_name, kotlinc_options = None):
     args.add("--kotlin_api_version", toolchain.api_version)
     args.add("--kotlin_language_version", toolchain.language_version)
 
-    debug = toolchain.debug
+    args.add_all("--kotlin_debug_tags", _debug_tags(ctx), omit_if_empty = False)
+
+    return args
+
+def _debug_tags(ctx):
+    """The builder debug tags of the toolchain, and those set on the target."""
+    debug = ctx.toolchains[_TOOLCHAIN_TYPE].debug
     for tag in ctx.attr.tags:
         if tag == "trace":
             debug = debug + [tag]
         if tag == "timings":
             debug = debug + [tag]
-    args.add_all("--kotlin_debug_tags", debug, omit_if_empty = False)
-
-    return args
+        if tag == "trace_events":
+            debug = debug + [tag]
+        if tag == "kotlinc_perf":
+            debug = debug + [tag]
+    return debug
 
 utils = struct(
     add_dicts = dicts.add,
     init_args = _init_builder_args,
+    debug_tags = _debug_tags,
     derive_module_name = _derive_module_name,
 )
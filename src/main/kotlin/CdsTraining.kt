@@ -0,0 +1,57 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+// Compiled by the builder while creating its class-data-sharing archive, see cds.bzl.
+package cds.training
+
+sealed interface Node {
+  val weight: Int
+}
+
+data class Leaf(
+  val name: String,
+  override val weight: Int,
+) : Node
+
+data class Branch(
+  val children: List<Node>,
+) : Node {
+  override val weight get() = children.sumOf { it.weight }
+}
+
+enum class Order { BY_NAME, BY_WEIGHT }
+
+object Trees {
+  fun leaves(node: Node): Sequence<Leaf> =
+    when (node) {
+      is Leaf -> sequenceOf(node)
+      is Branch -> node.children.asSequence().flatMap(::leaves)
+    }
+
+  fun sorted(
+    node: Node,
+    order: Order,
+  ): List<String> =
+    when (order) {
+      Order.BY_NAME -> leaves(node).sortedBy { it.name }
+      Order.BY_WEIGHT -> leaves(node).sortedByDescending { it.weight }
+    }.map { "${it.name}=${it.weight}" }.toList()
+}
+
+fun main() {
+  val tree = Branch(listOf(Leaf("a", 2), Branch(listOf(Leaf("b", 1), Leaf("c", 3)))))
+  println(Trees.sorted(tree, Order.BY_WEIGHT).joinToString())
+}
@@ -12,6 +12,7 @@
 # See the License for the specific language governing permissions and
 # limitations under the License.
 load("@rules_java//java:defs.bzl", "java_binary")
+load("//src/main/kotlin:cds.bzl", "java_binary_with_cds")
 load("//kotlin:lint.bzl", _ktlint_fix = "ktlint_fix", _ktlint_test = "ktlint_test")
 load("//src/main/starlark/core/compile:rules.bzl", "core_kt_jvm_library")
 load("//third_party:jarjar.bzl", "jar_jar")
@@ -64,7 +65,15 @@ def kt_bootstrap_binary(
         jvm_flags = [],
         data = [],
         final_runtime_deps = [],
+        cds_training = None,
         visibility = ["//visibility:public"]):
+    """
+    A shaded java_binary of a builder.
+
+    cds_training: when set, e.g. to `BUILD_TRAINING` from cds.bzl, the binary starts with a
+      class-data-sharing archive trained on that workload, if
+      `//kotlin/settings:experimental_builder_cds` is set.
+    """
     raw = name + "_raw"
     jar_jared = name + "_jarjar"
 
@@ -82,17 +91,30 @@ def kt_bootstrap_binary(
         rules = shade_rules,
     )
 
-    java_binary(
-        name = name,
-        data = data,
-        jvm_flags = jvm_flags + [
-            "-XX:+IgnoreUnrecognizedVMOptions",
-            "--add-opens=java.base/java.nio=ALL-UNNAMED",
-            "--add-opens=java.base/java.lang=ALL-UNNAMED",
-            "--add-opens=jdk.compiler/com.sun.tools.javac.main=ALL-UNNAMED",
-            "--add-opens=jdk.jdeps/com.sun.tools.jdeps=ALL-UNNAMED",
-        ],
-        main_class = main_class,
-        visibility = visibility,
-        runtime_deps = [":" + jar_jared] + final_runtime_deps,
-    )
+    final_jvm_flags = jvm_flags + [
+        "-XX:+IgnoreUnrecognizedVMOptions",
+        "--add-opens=java.base/java.nio=ALL-UNNAMED",
+        "--add-opens=java.base/java.lang=ALL-UNNAMED",
+        "--add-opens=jdk.compiler/com.sun.tools.javac.main=ALL-UNNAMED",
+        "--add-opens=jdk.jdeps/com.sun.tools.jdeps=ALL-UNNAMED",
+    ]
+
+    if cds_training == None:
+        java_binary(
+            name = name,
+            data = data,
+            jvm_flags = final_jvm_flags,
+            main_class = main_class,
+            visibility = visibility,
+            runtime_deps = [":" + jar_jared] + final_runtime_deps,
+        )
+    else:
+        java_binary_with_cds(
+            name = name,
+            training = cds_training,
+            data = data,
+            jvm_flags = final_jvm_flags,
+            main_class = main_class,
+            visibility = visibility,
+            runtime_deps = [":" + jar_jared] + final_runtime_deps,
+        )
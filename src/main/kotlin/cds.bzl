@@ -0,0 +1,231 @@
+# Copyright 2025 The Bazel Authors. All rights reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#    http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+"""Class-data-sharing archives for the builder binaries.
+
+A dynamic AppCDS archive holds the classes a JVM loaded, already parsed and verified, so a JVM
+started with it skips most of the class loading of a cold start. The JVM only uses an archive
+created by the same runtime for the same class path jars, and otherwise starts as usual, so the
+archive is created in the build that uses it, by running the binary once on a small workload.
+
+Archives are opt-in through `--@rules_kotlin//kotlin/settings:experimental_builder_cds`, on Linux
+and macOS. A training run that fails, or a runtime that cannot create an archive, only costs the
+speed-up: the binary gets an empty archive, which the JVM ignores.
+"""
+
+load("@rules_java//java:defs.bzl", "java_binary")
+
+_TRAINING_SOURCE = "//src/main/kotlin:CdsTraining.kt"
+_TRAINING_STDLIB = "@com_github_jetbrains_kotlin//:lib/kotlin-stdlib_jar"
+
+# Compiles the training source with the builder, {training} is a scratch directory.
+BUILD_TRAINING = struct(
+    args = [
+        "--target_label",
+        "//cds:training",
+        "--rule_kind",
+        "kt_jvm_library",
+        "--kotlin_module_name",
+        "cds_training",
+        "--kotlin_jvm_target",
+        "1.8",
+        "--kotlin_api_version",
+        "2.1",
+        "--kotlin_language_version",
+        "2.1",
+        "--kotlin_debug_tags",
+        "--kotlin_passthrough_flags",
+        "--output",
+        "{training}/training.jar",
+        "--abi_jar",
+        "{training}/training.abi.jar",
+        "--kotlin_output_jdeps",
+        "{training}/training.jdeps",
+        "--classpath",
+        "$(execpath %s)" % _TRAINING_STDLIB,
+        "--direct_dependencies",
+        "$(execpath %s)" % _TRAINING_STDLIB,
+        "--strict_kotlin_deps",
+        "off",
+        "--reduced_classpath_mode",
+        "NONE",
+        "--build_tools_api",
+        "false",
+        "--sources",
+        "$(execpath %s)" % _TRAINING_SOURCE,
+        "--build_kotlin",
+        "true",
+        "--instrument_coverage",
+        "false",
+    ],
+    data = [_TRAINING_SOURCE, _TRAINING_STDLIB],
+)
+
+# Merges no jdeps files at all, which still runs the worker and the jdeps merger.
+MERGE_JDEPS_TRAINING = struct(
+    args = [
+        "--inputs",
+        "--output",
+        "{training}/merged.jdeps",
+        "--target_label",
+        "//cds:training",
+        "--report_unused_deps",
+        "off",
+    ],
+    data = [],
+)
+
+# Starts the binary as a persistent worker without requests, which loads the worker and exits.
+STARTUP_TRAINING = struct(
+    args = [],
+    data = [],
+)
+
+# JVM warnings, e.g. about an archive that does not match the runtime, go to stderr so they never
+# mix with the persistent worker protocol on stdout. Runtimes without unified logging or dynamic
+# archives (before JDK 13) ignore the flags instead of failing to start.
+_CDS_JVM_FLAGS = [
+    "-XX:+IgnoreUnrecognizedVMOptions",
+    "-Xlog:disable",
+    "-Xlog:all=warning:stderr",
+]
+
+_CDS_ENABLED = [
+    Label("//kotlin/settings:experimental_builder_cds_linux"),
+    Label("//kotlin/settings:experimental_builder_cds_macos"),
+]
+
+def _if_cds(value):
+    return select(dict([(setting, value) for setting in _CDS_ENABLED] + [("//conditions:default", [])]))
+
+def _cds_archive_impl(ctx):
+    archive = ctx.actions.declare_file(ctx.label.name + ".jsa")
+    training = ctx.actions.declare_directory(ctx.label.name + "_training")
+    args = ctx.actions.args()
+    args.add(ctx.executable.binary)
+    args.add(archive)
+    args.add(training.path)
+    if ctx.attr.training_args:
+        # The builders read their request from a flagfile, as they would in an action.
+        flagfile = ctx.actions.declare_file(ctx.label.name + "_training-0.params")
+        ctx.actions.write(
+            flagfile,
+            "\n".join([
+                ctx.expand_location(arg.replace("{training}", training.path), ctx.attr.data)
+                for arg in ctx.attr.training_args
+            ]) + "\n",
+        )
+        args.add(flagfile, format = "--flagfile=%s")
+        inputs = ctx.files.data + [flagfile]
+    else:
+        args.add("--persistent_worker")
+        inputs = ctx.files.data
+
+    ctx.actions.run_shell(
+        mnemonic = "KotlinCdsArchive",
+        progress_message = "Creating class-data-sharing archive %{output}",
+        inputs = inputs,
+        tools = [ctx.attr.binary[DefaultInfo].files_to_run],
+        outputs = [archive, training],
+        arguments = [args],
+        # A failing training run, e.g. after a compiler update the training request does not fit, or a runtime that
+        # cannot create the archive, leaves it empty, which the JVM ignores. The action warns with the stderr of the run.
+        command = """
+binary="$1"
+archive="$2"
+log="$3/training.log"
+shift 3
+mkdir -p "$(dirname "$log")"
+status=0
+"$binary" \\
+  --jvm_flag=-XX:ArchiveClassesAtExit="$archive" \\
+  --jvm_flag=-Xlog:disable \\
+  --jvm_flag=-Xlog:all=warning:stderr \\
+  "$@" </dev/null >/dev/null 2>"$log" || status=$?
+if [ "$status" -ne 0 ]; then
+  echo "WARNING: the class-data-sharing training run of $binary exited with $status, it starts without an archive:" >&2
+  cat "$log" >&2
+  : > "$archive"
+elif [ ! -f "$archive" ]; then
+  echo "WARNING: $binary created no class-data-sharing archive, it starts without one:" >&2
+  cat "$log" >&2
+  touch "$archive"
+fi
+""",
+    )
+    return [DefaultInfo(files = depset([archive]))]
+
+cds_archive = rule(
+    doc = "A dynamic class-data-sharing archive of `binary`, trained by running it with `training_args`.",
+    implementation = _cds_archive_impl,
+    attrs = {
+        "binary": attr.label(
+            doc = """The java_binary to train. Built in the configuration of the archive, so it runs on the same Java
+            runtime as the binary that uses the archive.""",
+            executable = True,
+            cfg = "target",
+            mandatory = True,
+        ),
+        "data": attr.label_list(
+            doc = "Files referenced by `training_args`.",
+            allow_files = True,
+        ),
+        "training_args": attr.string_list(
+            doc = """The request of the training run, passed in a flagfile. Subject to $(execpath) expansion, and
+            `{training}` is replaced by a scratch directory. Without arguments, the binary starts as a persistent worker
+            and exits as it receives no requests.""",
+        ),
+    },
+)
+
+def java_binary_with_cds(name, training, data = [], jvm_flags = [], visibility = None, **kwargs):
+    """A java_binary started with a class-data-sharing archive of itself, if enabled.
+
+    The archive is trained on `<name>_no_cds`, the same binary without the archive. Without
+    `--@rules_kotlin//kotlin/settings:experimental_builder_cds`, or on Windows, the binary is a
+    plain java_binary.
+
+    Args:
+      name: the name of the binary.
+      training: the workload of the training run, e.g. `BUILD_TRAINING`.
+      data: runtime data of the binary.
+      jvm_flags: flags of the JVM.
+      visibility: visibility of the binary.
+      **kwargs: passed to both java_binary targets.
+    """
+    java_binary(
+        name = name + "_no_cds",
+        data = data,
+        jvm_flags = jvm_flags + _CDS_JVM_FLAGS,
+        visibility = ["//visibility:private"],
+        **kwargs
+    )
+
+    cds_archive(
+        name = name + "_cds",
+        binary = ":" + name + "_no_cds",
+        data = training.data,
+        training_args = training.args,
+        visibility = ["//visibility:private"],
+    )
+
+    # The archive is found in the runfiles of the binary, wherever it runs from, as its other data files are.
+    java_binary(
+        name = name,
+        data = data + _if_cds([":" + name + "_cds"]),
+        jvm_flags = jvm_flags + _if_cds(_CDS_JVM_FLAGS + [
+            "-XX:SharedArchiveFile=$${JAVA_RUNFILES}/$(rlocationpath :%s_cds)" % name,
+        ]),
+        visibility = visibility,
+        **kwargs
+    )
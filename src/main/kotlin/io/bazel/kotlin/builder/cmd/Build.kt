@@ -19,17 +19,58 @@ package io.bazel.kotlin.builder.cmd
 
 import io.bazel.kotlin.builder.tasks.CompileKotlin
 import io.bazel.kotlin.builder.tasks.KotlinBuilder
+import io.bazel.kotlin.builder.tasks.MergeJdeps
+import io.bazel.kotlin.builder.tasks.MultiTool
 import io.bazel.kotlin.builder.tasks.jvm.InternalCompilerPlugins
+import io.bazel.kotlin.builder.tasks.jvm.JdepsMerger
 import io.bazel.kotlin.builder.tasks.jvm.KotlinJvmTaskExecutor
+import io.bazel.kotlin.builder.tasks.jvm.Ksp2InvokerCache
+import io.bazel.kotlin.builder.tasks.jvm.Ksp2Task
+import io.bazel.kotlin.builder.toolchain.CompilerWarmUp
 import io.bazel.kotlin.builder.toolchain.KotlinToolchain
+import io.bazel.kotlin.builder.utils.Flag
+import io.bazel.kotlin.builder.utils.StartupArgs
+import io.bazel.kotlin.builder.utils.jars.DeflatedEntryCache
+import io.bazel.worker.AdmissionControl
+import io.bazel.worker.PersistentWorker
+import io.bazel.worker.Work
 import io.bazel.worker.Worker
+import java.nio.file.Paths
 import kotlin.system.exitProcess
 
 object Build {
+  /** Startup options of the builder, set through the toolchain. */
+  enum class BuildOptions(
+    override val flag: String,
+  ) : Flag {
+    RETAIN_COMPILER_ENVIRONMENT("--retain_compiler_environment"),
+    COMPILER_PLUGIN_CACHE_SIZE("--compiler_plugin_cache_size"),
+    PROCESSOR_CACHE_SIZE("--processor_cache_size"),
+
+    /** Reuses kapt processor classes too, in up to [PROCESSOR_CACHE_SIZE] loaders. */
+    KAPT_PROCESSOR_CACHE("--kapt_processor_cache"),
+
+    /** MiB of deflated jar entries kept between requests, see [DeflatedEntryCache]. */
+    JAR_ENTRY_CACHE_SIZE("--jar_entry_cache_size"),
+    WARM_UP_COMPILER("--warm_up_compiler"),
+
+    /** Serves jdeps merging and KSP2 requests too, see [MultiTool]. */
+    MULTI_TOOL_WORKER("--multi_tool_worker"),
+  }
+
   @JvmStatic
   fun main(args: Array<String>) {
+    val (options, requestArgs) = StartupArgs.split(args.toList())
     Worker
-      .from(args.toList()) {
+      .from(
+        requestArgs,
+        AdmissionControl.withMaxParallelism(
+          options.optionalSingle(StartupArgs.WorkerOptions.MAX_PARALLELISM)?.toInt(),
+        ),
+        options.optionalSingle(StartupArgs.WorkerOptions.METRICS_FILE)?.let { Paths.get(it) },
+        options.optionalSingle(StartupArgs.WorkerOptions.SCRATCH_ROOT)?.let { Paths.get(it) },
+        options.optionalSingle(StartupArgs.WorkerOptions.COST_HISTORY)?.let { Paths.get(it) },
+      ) {
         val toolchain = KotlinToolchain.createToolchain()
         val plugins =
           InternalCompilerPlugins(
@@ -38,10 +79,58 @@ object Build {
             toolchain.kapt3Plugin,
             toolchain.jdepsGen,
           )
-        val compilerBuilder = KotlinToolchain.KotlincInvokerBuilder(toolchain)
-        val jvmTaskExecutor = KotlinJvmTaskExecutor(compilerBuilder, plugins)
-        val builder = KotlinBuilder(jvmTaskExecutor)
-        start(CompileKotlin(builder))
+        KotlinToolchain
+          .KotlincInvokerBuilder(
+            toolchain,
+            retainEnvironment =
+              options.optionalSingle(BuildOptions.RETAIN_COMPILER_ENVIRONMENT) == "true",
+            pluginClassLoaderCacheSize =
+              options.optionalSingle(BuildOptions.COMPILER_PLUGIN_CACHE_SIZE)?.toInt() ?: 0,
+            processorClassLoaderCacheSize =
+              if (options.optionalSingle(BuildOptions.KAPT_PROCESSOR_CACHE) == "true") {
+                options.optionalSingle(BuildOptions.PROCESSOR_CACHE_SIZE)?.toInt() ?: 0
+              } else {
+                0
+              },
+          ).use { compilerBuilder ->
+            val entryCache =
+              options
+                .optionalSingle(BuildOptions.JAR_ENTRY_CACHE_SIZE)
+                ?.toLong()
+                ?.takeIf { it > 0 }
+                ?.let { DeflatedEntryCache(it * 1024 * 1024) }
+            val jvmTaskExecutor = KotlinJvmTaskExecutor(compilerBuilder, plugins, entryCache)
+            val builder = KotlinBuilder(jvmTaskExecutor)
+            val compile = CompileKotlin(builder)
+            Ksp2InvokerCache(
+              options.optionalSingle(BuildOptions.PROCESSOR_CACHE_SIZE)?.toInt()
+                ?: Ksp2InvokerCache.DEFAULT_MAX_IDLE,
+            ).use { ksp2Invokers ->
+              val work: Work =
+                if (options.optionalSingle(BuildOptions.MULTI_TOOL_WORKER) == "true") {
+                  MultiTool(
+                    mapOf(
+                      MultiTool.Tool.BUILD to compile,
+                      MultiTool.Tool.MERGE_JDEPS to MergeJdeps(JdepsMerger()),
+                      MultiTool.Tool.KSP2 to Ksp2Task(ksp2Invokers, entryCache),
+                    ),
+                  )
+                } else {
+                  compile
+                }
+              if (this is PersistentWorker &&
+                options.optionalSingle(BuildOptions.WARM_UP_COMPILER) == "true"
+              ) {
+                val warmUp = CompilerWarmUp(toolchain, compilerBuilder).apply { start() }
+                start { ctx, args ->
+                  warmUp.stop()
+                  work(ctx, args)
+                }
+              } else {
+                start(work)
+              }
+            }
+          }
       }.run(::exitProcess)
   }
 }
@@ -17,16 +17,50 @@
 
 package io.bazel.kotlin.builder.cmd
 
+import io.bazel.kotlin.builder.tasks.jvm.Ksp2InvokerCache
 import io.bazel.kotlin.builder.tasks.jvm.Ksp2Task
+import io.bazel.kotlin.builder.utils.Flag
+import io.bazel.kotlin.builder.utils.StartupArgs
+import io.bazel.kotlin.builder.utils.jars.DeflatedEntryCache
+import io.bazel.worker.AdmissionControl
 import io.bazel.worker.Worker
+import java.nio.file.Paths
 import kotlin.system.exitProcess
 
 object Ksp2 {
+  /** Startup options of the KSP2 worker, set through the toolchain. */
+  enum class Ksp2Options(
+    override val flag: String,
+  ) : Flag {
+    PROCESSOR_CACHE_SIZE("--processor_cache_size"),
+    JAR_ENTRY_CACHE_SIZE("--jar_entry_cache_size"),
+  }
+
   @JvmStatic
   fun main(args: Array<String>) {
+    val (options, requestArgs) = StartupArgs.split(args.toList())
+    val cacheSize =
+      options.optionalSingle(Ksp2Options.PROCESSOR_CACHE_SIZE)?.toInt()
+        ?: Ksp2InvokerCache.DEFAULT_MAX_IDLE
+    val entryCache =
+      options
+        .optionalSingle(Ksp2Options.JAR_ENTRY_CACHE_SIZE)
+        ?.toLong()
+        ?.takeIf { it > 0 }
+        ?.let { DeflatedEntryCache(it * 1024 * 1024) }
     Worker
-      .from(args.toList()) {
-        start(Ksp2Task())
+      .from(
+        requestArgs,
+        AdmissionControl.withMaxParallelism(
+          options.optionalSingle(StartupArgs.WorkerOptions.MAX_PARALLELISM)?.toInt(),
+        ),
+        options.optionalSingle(StartupArgs.WorkerOptions.METRICS_FILE)?.let { Paths.get(it) },
+        options.optionalSingle(StartupArgs.WorkerOptions.SCRATCH_ROOT)?.let { Paths.get(it) },
+        options.optionalSingle(StartupArgs.WorkerOptions.COST_HISTORY)?.let { Paths.get(it) },
+      ) {
+        Ksp2InvokerCache(cacheSize).use { invokers ->
+          start(Ksp2Task(invokers, entryCache))
+        }
       }.run(::exitProcess)
   }
 }
@@ -19,14 +19,26 @@ package io.bazel.kotlin.builder.cmd
 
 import io.bazel.kotlin.builder.tasks.MergeJdeps
 import io.bazel.kotlin.builder.tasks.jvm.JdepsMerger
+import io.bazel.kotlin.builder.utils.StartupArgs
+import io.bazel.worker.AdmissionControl
 import io.bazel.worker.Worker
+import java.nio.file.Paths
 import kotlin.system.exitProcess
 
 object MergeJdepsMain {
   @JvmStatic
   fun main(args: Array<String>) {
+    val (options, requestArgs) = StartupArgs.split(args.toList())
     Worker
-      .from(args.toList()) {
+      .from(
+        requestArgs,
+        AdmissionControl.withMaxParallelism(
+          options.optionalSingle(StartupArgs.WorkerOptions.MAX_PARALLELISM)?.toInt(),
+        ),
+        options.optionalSingle(StartupArgs.WorkerOptions.METRICS_FILE)?.let { Paths.get(it) },
+        options.optionalSingle(StartupArgs.WorkerOptions.SCRATCH_ROOT)?.let { Paths.get(it) },
+        options.optionalSingle(StartupArgs.WorkerOptions.COST_HISTORY)?.let { Paths.get(it) },
+      ) {
         start(MergeJdeps(JdepsMerger()))
       }.run(::exitProcess)
   }
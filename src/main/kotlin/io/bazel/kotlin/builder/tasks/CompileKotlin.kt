@@ -28,9 +28,9 @@ class CompileKotlin(
     ctx: WorkerContext.TaskContext,
     args: Iterable<String>,
   ): Status =
-    if (builder.build(ctx, args.toList()) != 0) {
-      Status.ERROR
-    } else {
-      Status.SUCCESS
+    when (builder.build(ctx, args.toList())) {
+      0 -> Status.SUCCESS
+      Status.OUT_OF_MEMORY.exit -> Status.OUT_OF_MEMORY
+      else -> Status.ERROR
     }
 }
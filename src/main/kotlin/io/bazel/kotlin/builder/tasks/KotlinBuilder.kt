@@ -28,7 +28,9 @@ import io.bazel.kotlin.model.CompilationTaskInfo
 import io.bazel.kotlin.model.JvmCompilationTask
 import io.bazel.kotlin.model.Platform
 import io.bazel.kotlin.model.RuleKind
+import io.bazel.worker.Status
 import io.bazel.worker.WorkerContext
+import java.io.File
 import java.nio.charset.StandardCharsets
 import java.nio.file.FileSystems
 import java.nio.file.Files
@@ -82,7 +84,12 @@ class KotlinBuilder(
       STRICT_KOTLIN_DEPS("--strict_kotlin_deps"),
       REDUCED_CLASSPATH_MODE("--reduced_classpath_mode"),
       INSTRUMENT_COVERAGE("--instrument_coverage"),
+      COMPILE_TO_JAR("--compile_to_jar"),
+      STORE_JARS("--store_jars"),
       BUILD_TOOLS_API("--build_tools_api"),
+      INCREMENTAL_COMPILATION("--incremental_compilation"),
+      MNEMONIC("--mnemonic"),
+      TRACE_EVENTS("--trace_events"),
     }
   }
 
@@ -110,6 +117,9 @@ class KotlinBuilder(
       status = ex.status
     } catch (throwable: Throwable) {
       taskContext.error(throwable) { "Uncaught exception" }
+      if (throwable is OutOfMemoryError) {
+        status = Status.OUT_OF_MEMORY.exit
+      }
     } finally {
       compileContext.finalize(success)
     }
@@ -129,7 +139,14 @@ class KotlinBuilder(
     val argMap = ArgMaps.from(lines)
     val info = buildTaskInfo(argMap).build()
     val context =
-      CompilationTaskContext(info, ctx.asPrintStream())
+      CompilationTaskContext(
+        info,
+        ctx.asPrintStream(),
+        executionRoot = ctx.executionRoot.toString() + File.separator,
+        inputDigests = ctx.inputDigests,
+        cancellation = ctx.cancellation,
+        metrics = ctx.metrics,
+      )
     return Pair(argMap, context)
   }
 
@@ -169,6 +186,11 @@ class KotlinBuilder(
       argMap.optionalSingle(KotlinBuilderFlags.BUILD_TOOLS_API)?.let {
         buildToolsApi = it == "true"
       }
+      argMap.optionalSingle(KotlinBuilderFlags.INCREMENTAL_COMPILATION)?.let {
+        incrementalCompilation = it == "true"
+      }
+      argMap.optionalSingle(KotlinBuilderFlags.MNEMONIC)?.let { mnemonic = it }
+      argMap.optionalSingle(KotlinBuilderFlags.TRACE_EVENTS)?.let { traceEventsPath = it }
       this
     }
 
@@ -198,6 +220,12 @@ class KotlinBuilder(
           .mandatorySingle(
             KotlinBuilderFlags.INSTRUMENT_COVERAGE,
           ).toBoolean()
+      argMap.optionalSingle(KotlinBuilderFlags.COMPILE_TO_JAR)?.let {
+        root.compileToJar = it.toBoolean()
+      }
+      argMap.optionalSingle(KotlinBuilderFlags.STORE_JARS)?.let {
+        root.storeJars = it.toBoolean()
+      }
 
       with(root.outputsBuilder) {
         argMap.optionalSingle(KotlinBuilderFlags.OUTPUT)?.let { jar = it }
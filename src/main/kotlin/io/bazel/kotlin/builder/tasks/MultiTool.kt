@@ -0,0 +1,86 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks
+
+import io.bazel.worker.Status
+import io.bazel.worker.Work
+import io.bazel.worker.WorkerContext
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+import java.nio.file.Paths
+
+/**
+ * Serves the requests of several tools from one worker, so compilation, jdeps merging and KSP2
+ * share a single JVM and its loaded compiler instead of a worker pool each.
+ *
+ * Each request names its tool with [TOOL_FLAG] on the first line of its flagfile. Requests
+ * without it are compilations, so the compile and kapt actions need no changes. Only the first
+ * line is looked at: later lines are the tool's own arguments, which may well contain the flag.
+ */
+class MultiTool(
+  private val tools: Map<Tool, Work>,
+) : Work {
+  enum class Tool(
+    val id: String,
+  ) {
+    BUILD("build"),
+    MERGE_JDEPS("merge_jdeps"),
+    KSP2("ksp2"),
+  }
+
+  companion object {
+    /** Selects the tool of a request, followed by one of the [Tool.id]s. */
+    const val TOOL_FLAG = "--tool"
+
+    private val FLAGFILE_RE = Regex("""^(?:--flagfile=|@)(.+)$""")
+
+    /** The tool [args] select and the request without the selector, read from its flagfile. */
+    fun select(args: List<String>): Pair<Tool, List<String>> {
+      check(args.isNotEmpty()) { "expected at least a single arg" }
+      val lines =
+        args
+          .singleOrNull()
+          ?.let(FLAGFILE_RE::matchEntire)
+          ?.let { Files.readAllLines(Paths.get(it.groupValues[1]), UTF_8) }
+          ?: args
+      if (lines.first() != TOOL_FLAG) {
+        return Tool.BUILD to lines
+      }
+      val id = lines.getOrNull(1)
+      val tool =
+        Tool.entries.find { it.id == id }
+          ?: throw IllegalArgumentException(
+            "$TOOL_FLAG must be one of ${Tool.entries.joinToString { it.id }}, got $id",
+          )
+      return tool to lines.drop(2)
+    }
+  }
+
+  override fun invoke(
+    ctx: WorkerContext.TaskContext,
+    args: Iterable<String>,
+  ): Status {
+    val (tool, request) = select(args.toList())
+    val work =
+      tools[tool] ?: run {
+        ctx.error { "${tool.id} is not served by this worker" }
+        return Status.ERROR
+      }
+    ctx.metrics.tag("tool", tool.id)
+    return work(ctx, request)
+  }
+}
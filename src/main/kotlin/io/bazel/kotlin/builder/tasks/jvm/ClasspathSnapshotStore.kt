@@ -0,0 +1,168 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.tasks.jvm.IncrementalCompilationCache.Companion.sha256
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.stream.Collectors
+
+/**
+ * A content addressed store of classpath entry snapshots, keyed by the digest of the jar and of
+ * the Build Tools API implementation that made the snapshot.
+ *
+ * The store is shared by every worker process on the machine: entries are written to a temporary
+ * file and atomically moved into place, so readers only ever see complete snapshots. The
+ * modification time of an entry records its last use, and once the store grows past [maxBytes]
+ * the least recently used entries are evicted. Entries used within [gracePeriod] are never
+ * evicted, as a compilation in another process may be about to read them.
+ */
+class ClasspathSnapshotStore(
+  private val root: Path,
+  private val maxBytes: Long = 2L * 1024 * 1024 * 1024,
+  private val gracePeriod: Duration = Duration.ofMinutes(10),
+) {
+  companion object {
+    @JvmStatic
+    fun inTempDirectory(): ClasspathSnapshotStore =
+      ClasspathSnapshotStore(
+        Paths.get(System.getProperty("java.io.tmpdir"), "rules_kotlin", "classpath-snapshots"),
+      )
+  }
+
+  private data class FileKey(
+    val path: Path,
+    val size: Long,
+    val modified: Long,
+  )
+
+  /** Digests computed for jars that Bazel did not provide a digest for. */
+  private val computedDigests = ConcurrentHashMap<FileKey, String>()
+
+  /** Bytes added since the store was last trimmed, starting high so the first insert trims. */
+  private val added = AtomicLong(Long.MAX_VALUE / 2)
+
+  private val evicting = AtomicBoolean(false)
+
+  /**
+   * Returns the snapshot of [jar] made by the Build Tools API [implementation] jar, creating it
+   * with [snapshot] on a miss. Snapshots of different implementations are kept apart, as their
+   * format may change between versions.
+   *
+   * [digest] is the content digest of the jar reported by Bazel, if any. Without one the jar is
+   * hashed, and the hash is remembered for as long as the jar is unchanged.
+   */
+  fun snapshotOf(
+    jar: Path,
+    digest: String?,
+    implementation: Path,
+    snapshot: (Path) -> Unit,
+  ): Path {
+    val key = sha256(digestOf(implementation), digest?.takeIf { it.isNotEmpty() } ?: digestOf(jar))
+    val entry = root.resolve(key.take(2)).resolve("$key.bin")
+    if (Files.exists(entry)) {
+      touch(entry)
+      return entry
+    }
+    Files.createDirectories(entry.parent)
+    val temp = Files.createTempFile(entry.parent, key, ".tmp")
+    try {
+      snapshot(temp)
+      Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } finally {
+      Files.deleteIfExists(temp)
+    }
+    if (added.addAndGet(Files.size(entry)) > maxBytes / 10) {
+      evict()
+    }
+    return entry
+  }
+
+  private fun digestOf(jar: Path): String {
+    val absolute = jar.toAbsolutePath()
+    val key =
+      FileKey(
+        absolute,
+        Files.size(absolute),
+        Files.getLastModifiedTime(absolute).toMillis(),
+      )
+    return computedDigests.computeIfAbsent(key) { sha256(absolute) }
+  }
+
+  private fun touch(entry: Path) {
+    try {
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()))
+    } catch (e: IOException) {
+      // Evicted concurrently, or not writable: the entry is simply considered older.
+    }
+  }
+
+  /** Evicts the least recently used entries until the store is within [maxBytes]. */
+  private fun evict() {
+    if (!evicting.compareAndSet(false, true)) {
+      return
+    }
+    try {
+      evictLocked()
+    } finally {
+      evicting.set(false)
+    }
+  }
+
+  private fun evictLocked() {
+    FileChannel
+      .open(root.resolve("evict.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+      .use { channel ->
+        // Another process is already evicting.
+        val lock = channel.tryLock() ?: return
+        lock.use {
+          val entries =
+            Files.walk(root, 2).use { paths ->
+              paths
+                .filter { it.fileName.toString().endsWith(".bin") && Files.isRegularFile(it) }
+                .map { it to Files.readAttributes(it, "size,lastModifiedTime") }
+                .collect(Collectors.toList())
+                .sortedBy { (it.second["lastModifiedTime"] as FileTime).toMillis() }
+            }
+          var total = entries.sumOf { it.second["size"] as Long }
+          val cutoff = System.currentTimeMillis() - gracePeriod.toMillis()
+          for ((path, attributes) in entries) {
+            if (total <= maxBytes) {
+              break
+            }
+            if ((attributes["lastModifiedTime"] as FileTime).toMillis() > cutoff) {
+              break
+            }
+            if (Files.deleteIfExists(path)) {
+              total -= attributes["size"] as Long
+            }
+          }
+          added.set(0)
+        }
+      }
+  }
+}
@@ -25,6 +25,7 @@ import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
 import io.bazel.kotlin.builder.toolchain.KotlinToolchain
 import io.bazel.kotlin.builder.utils.IS_JVM_SOURCE_FILE
 import io.bazel.kotlin.builder.utils.bazelRuleKind
+import io.bazel.kotlin.builder.utils.jars.DeflatedEntryCache
 import io.bazel.kotlin.builder.utils.jars.JarCreator
 import io.bazel.kotlin.builder.utils.jars.JarHelper.Companion.MANIFEST_DIR
 import io.bazel.kotlin.builder.utils.jars.SourceJarExtractor
@@ -54,33 +55,58 @@ fun JvmCompilationTask.codeGenArgs(): CompilationArgs =
   CompilationArgs()
     .absolutePaths(info.friendPathsList) {
       "-Xfriend-paths=${it.joinToString(X_FRIENDS_PATH_SEPARATOR)}"
-    }.flag("-d", directories.classes)
+    }.flag("-d", classesDestination)
     .values(info.passthroughFlagsList)
 
-fun JvmCompilationTask.baseArgs(overrides: Map<String, String> = emptyMap()): CompilationArgs {
-  val classpath =
-    when (info.reducedClasspathMode) {
-      "KOTLINBUILDER_REDUCED" -> {
-        val transitiveDepsForCompile = mutableSetOf<String>()
-        inputs.depsArtifactsList.forEach { jdepsPath ->
-          BufferedInputStream(Paths.get(jdepsPath).toFile().inputStream()).use {
-            val deps = Deps.Dependencies.parseFrom(it)
-            deps.dependencyList.forEach { dep ->
-              if (dep.kind == Deps.Dependency.Kind.EXPLICIT) {
-                transitiveDepsForCompile.add(dep.path)
-              }
+/**
+ * Where kotlinc writes the classes it compiles: the classes directory, or a jar in the temp
+ * directory with [JvmCompilationTask.getCompileToJar].
+ */
+internal val JvmCompilationTask.classesDestination: String
+  get() = if (compileToJar) directories.classesJar else directories.classes
+
+/**
+ * Turns off [JvmCompilationTask.getCompileToJar] for compilations that need the class files on
+ * disk: coverage instrumentation reads them, incremental compilation keeps them between requests.
+ */
+internal fun JvmCompilationTask.resolveCompileToJar(
+  compiler: KotlinToolchain.KotlincInvoker,
+): JvmCompilationTask =
+  if (compileToJar &&
+    (outputs.jar.isEmpty() || instrumentCoverage || canCompileIncrementally(compiler))
+  ) {
+    toBuilder().setCompileToJar(false).build()
+  } else {
+    this
+  }
+
+/**
+ * The classpath the Kotlin compiler sees, honoring the reduced classpath mode.
+ */
+internal fun JvmCompilationTask.compileClasspath(): List<String> =
+  when (info.reducedClasspathMode) {
+    "KOTLINBUILDER_REDUCED" -> {
+      val transitiveDepsForCompile = mutableSetOf<String>()
+      inputs.depsArtifactsList.forEach { jdepsPath ->
+        BufferedInputStream(Paths.get(jdepsPath).toFile().inputStream()).use {
+          val deps = Deps.Dependencies.parseFrom(it)
+          deps.dependencyList.forEach { dep ->
+            if (dep.kind == Deps.Dependency.Kind.EXPLICIT) {
+              transitiveDepsForCompile.add(dep.path)
             }
           }
         }
-        inputs.directDependenciesList + transitiveDepsForCompile
       }
-      else -> inputs.classpathList
-    } as List<String>
+      inputs.directDependenciesList + transitiveDepsForCompile
+    }
+    else -> inputs.classpathList
+  } as List<String>
 
-  return CompilationArgs()
+fun JvmCompilationTask.baseArgs(overrides: Map<String, String> = emptyMap()): CompilationArgs =
+  CompilationArgs()
     .flag("-cp")
     .paths(
-      classpath + directories.generatedClasses,
+      compileClasspath() + directories.generatedClasses,
     ) {
       it
         .map(Path::toString)
@@ -91,7 +117,6 @@ fun JvmCompilationTask.baseArgs(overrides: Map<String, String> = emptyMap()): Co
       overrides[LANGUAGE_VERSION_ARG] ?: info.toolchainInfo.common.languageVersion,
     ).flag("-jvm-target", info.toolchainInfo.jvm.jvmTarget)
     .flag("-module-name", info.moduleName)
-}
 
 internal fun JvmCompilationTask.plugins(
   options: List<String>,
@@ -243,7 +268,15 @@ private fun JvmCompilationTask.runKaptPlugin(
       .let { args ->
         context.executeCompilerTask(
           args,
-          compiler::compile,
+          { a, o ->
+            compiler.compile(
+              a,
+              o,
+              context.inputDigests,
+              inputs.processorpathsList,
+              context.cancellation,
+            )
+          },
           printOnSuccess = context.whenTracing { true } == true,
         )
       }.let { outputLines ->
@@ -260,13 +293,18 @@ private fun JvmCompilationTask.runKaptPlugin(
 /**
  * Produce the primary output jar.
  */
-internal fun JvmCompilationTask.createOutputJar() =
+internal fun JvmCompilationTask.createOutputJar(cache: DeflatedEntryCache? = null) =
   JarCreator(
     path = Paths.get(outputs.jar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.classes))
+    if (compileToJar) {
+      Paths.get(directories.classesJar).takeIf(Files::exists)?.let(it::addJar)
+    }
     it.addDirectory(Paths.get(directories.javaClasses))
     it.addDirectory(Paths.get(directories.generatedClasses))
     it.setJarOwner(info.label, info.bazelRuleKind)
@@ -276,11 +314,13 @@ internal fun JvmCompilationTask.createOutputJar() =
 /**
  * Produce the primary output jar.
  */
-internal fun JvmCompilationTask.createAbiJar() =
+internal fun JvmCompilationTask.createAbiJar(cache: DeflatedEntryCache? = null) =
   JarCreator(
     path = Paths.get(outputs.abijar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.abiClasses))
     it.addDirectory(Paths.get(directories.generatedClasses))
@@ -291,11 +331,13 @@ internal fun JvmCompilationTask.createAbiJar() =
 /**
  * Produce a jar of sources generated by KAPT.
  */
-internal fun JvmCompilationTask.createGeneratedJavaSrcJar() {
+internal fun JvmCompilationTask.createGeneratedJavaSrcJar(cache: DeflatedEntryCache? = null) {
   JarCreator(
     path = Paths.get(outputs.generatedJavaSrcJar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.generatedJavaSources))
     it.setJarOwner(info.label, info.bazelRuleKind)
@@ -306,11 +348,13 @@ internal fun JvmCompilationTask.createGeneratedJavaSrcJar() {
 /**
  * Produce a stub jar of classes generated by KAPT.
  */
-internal fun JvmCompilationTask.createGeneratedStubJar() {
+internal fun JvmCompilationTask.createGeneratedStubJar(cache: DeflatedEntryCache? = null) {
   JarCreator(
     path = Paths.get(outputs.generatedJavaStubJar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.incrementalData))
     it.setJarOwner(info.label, info.bazelRuleKind)
@@ -321,11 +365,13 @@ internal fun JvmCompilationTask.createGeneratedStubJar() {
 /**
  * Produce a jar of classes generated by KAPT.
  */
-internal fun JvmCompilationTask.createGeneratedClassJar() {
+internal fun JvmCompilationTask.createGeneratedClassJar(cache: DeflatedEntryCache? = null) {
   JarCreator(
     path = Paths.get(outputs.generatedClassJar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.generatedClasses))
     it.setJarOwner(info.label, info.bazelRuleKind)
@@ -333,11 +379,13 @@ internal fun JvmCompilationTask.createGeneratedClassJar() {
   }
 }
 
-internal fun JvmCompilationTask.createGeneratedKspKotlinSrcJar() {
+internal fun JvmCompilationTask.createGeneratedKspKotlinSrcJar(cache: DeflatedEntryCache? = null) {
   JarCreator(
     path = Paths.get(outputs.generatedKspSrcJar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.generatedSources))
     it.addDirectory(Paths.get(directories.generatedJavaSources))
@@ -349,11 +397,13 @@ internal fun JvmCompilationTask.createGeneratedKspKotlinSrcJar() {
 /**
  * Produce a jar of classes generated by KSP.
  */
-internal fun JvmCompilationTask.createdGeneratedKspClassesJar() {
+internal fun JvmCompilationTask.createdGeneratedKspClassesJar(cache: DeflatedEntryCache? = null) {
   JarCreator(
     path = Paths.get(outputs.generatedKspClassesJar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.generatedClasses))
     it.setJarOwner(info.label, info.bazelRuleKind)
@@ -382,14 +432,20 @@ fun JvmCompilationTask.compileKotlin(
         )
     ).values(inputs.javaSourcesList)
       .values(inputs.kotlinSourcesList)
-      .flag("-d", directories.classes)
+      .flag("-d", classesDestination)
       .list()
       .let {
         context.whenTracing {
           context.printLines("compileKotlin arguments:\n", it)
         }
         return@let context
-          .executeCompilerTask(it, compiler::compile, printOnFail = printOnFail)
+          .executeCompilerTask(
+            it,
+            { a, o ->
+              compiler.compile(a, o, context.inputDigests, cancellation = context.cancellation)
+            },
+            printOnFail = printOnFail,
+          )
           .also {
             context.whenTracing {
               printLines(
@@ -441,6 +497,12 @@ private val Directories.stubs
           .get(temp)
           .resolve("stubs"),
       ).toString()
+private val Directories.classesJar
+  get() =
+    Paths
+      .get(temp)
+      .resolve("kotlinc-classes.jar")
+      .toString()
 private val Directories.incrementalData
   get() =
     Files
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+// Incremental compilation of a JvmCompilationTask through the Build Tools API.
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.devtools.build.lib.view.proto.Deps
+import io.bazel.kotlin.builder.tasks.jvm.IncrementalCompilationCache.Companion.sha256
+import io.bazel.kotlin.builder.tasks.jvm.JDepsGenerator.writeJdeps
+import io.bazel.kotlin.builder.toolchain.CompilationStatusException
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.toolchain.KotlinToolchain
+import io.bazel.kotlin.model.JvmCompilationTask
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+
+/** Kotlin exit code of a compilation that failed because of errors in the sources. */
+private const val COMPILATION_ERROR = 1
+
+/** Kotlin exit code of a compilation that ran out of heap. */
+private const val OOM_ERROR = 137
+
+/**
+ * True if the task asked for incremental compilation and can use it.
+ *
+ * Tasks that produce an abi jar, or whose sources are generated or extracted into the per-request
+ * working directory, are always compiled in full: their outputs or source paths are not stable
+ * between requests.
+ */
+internal fun JvmCompilationTask.canCompileIncrementally(
+  compiler: KotlinToolchain.KotlincInvoker,
+): Boolean =
+  info.incrementalCompilation &&
+    compiler.supportsIncrementalCompilation &&
+    inputs.kotlinSourcesList.isNotEmpty() &&
+    outputs.abijar.isEmpty() &&
+    inputs.sourceJarsList.isEmpty() &&
+    inputs.processorsList.isEmpty()
+
+/**
+ * Compiles Kotlin sources, reusing the incremental compilation state recorded in [cache] by the
+ * last successful compilation of the same target. Classpath snapshots are shared with other
+ * targets through [snapshotStore].
+ *
+ * Returns null when the target could not be compiled incrementally (the state is owned by a
+ * concurrent request, or the incremental compiler failed internally), in which case the caller
+ * should fall back to [compileKotlin]. Compilation errors in the sources are reported as usual.
+ */
+internal fun JvmCompilationTask.compileKotlinIncrementally(
+  context: CompilationTaskContext,
+  compiler: KotlinToolchain.KotlincInvoker,
+  cache: IncrementalCompilationCache,
+  snapshotStore: ClasspathSnapshotStore,
+  args: CompilationArgs,
+  printOnFail: Boolean = true,
+): List<String>? {
+  val rootDir = Paths.get(context.executionRoot)
+  val compilerArgs =
+    (
+      args +
+        plugins(
+          options = inputs.compilerPluginOptionsList,
+          classpath = inputs.compilerPluginClasspathList,
+        )
+    ).list().withoutDestination()
+  val sources = inputs.javaSourcesList + inputs.kotlinSourcesList
+  val absolute = { path: String -> rootDir.resolve(path).normalize().toString() }
+  val classpath = compileClasspath().toSet()
+
+  // The state is keyed by the execution root of the worker rather than of the request, so that
+  // requests in different sandboxes share it. Paths in the state are relative to the request's.
+  val workerRoot = Paths.get("").toAbsolutePath().toString()
+  return cache.withTarget(workerRoot, info.label, outputs.jar) { target ->
+    if (target == null) {
+      context.whenTracing {
+        printLines("incremental compilation", listOf("state is in use, compiling in full"))
+      }
+      return@withTarget null
+    }
+
+    val digests =
+      context.execute("digest sources") {
+        sources.associateWith { sha256(rootDir.resolve(it)) }
+      }
+    // Plugin jars keep their paths across versions, so their contents are part of the fingerprint.
+    val pluginDigests =
+      inputs.compilerPluginClasspathList.map {
+        context.inputDigests[it] ?: sha256(rootDir.resolve(it))
+      }
+    val fingerprint =
+      sha256(*(compilerArgs.withoutClasspath() + pluginDigests).toTypedArray())
+    val modified = target.load()?.modifiedSources(fingerprint, digests, classpath)
+    if (modified == null) {
+      target.invalidate()
+    }
+    context.whenTracing {
+      printLines(
+        "incremental compilation",
+        listOf(
+          "state: ${target.directory}",
+          "modified: ${modified?.size ?: "unknown"}",
+        ),
+      )
+    }
+
+    Files.createDirectories(target.classes)
+    Files.createDirectories(target.caches)
+    val snapshots =
+      context.execute("snapshot classpath") {
+        snapshotClasspath(context, compiler, target, snapshotStore)
+      }
+
+    try {
+      context
+        .executeCompilerTask(
+          compilerArgs,
+          { compileArgs, out ->
+            compiler.compileIncrementally(
+              workingDir = target.directory.toString(),
+              rootDir = rootDir.toString(),
+              destination = target.classes.toString(),
+              sources = sources.map(absolute),
+              modified = modified?.map(absolute),
+              // Compilations that remove sources start from scratch.
+              removed = modified?.let { emptyList() },
+              classpathSnapshots = snapshots,
+              args = compileArgs,
+              out = out,
+              inputDigests = context.inputDigests,
+              cancellation = context.cancellation,
+            )
+          },
+          printOnFail = printOnFail,
+        ).also {
+          context.execute("restore incremental outputs") {
+            copyDirectory(target.classes, Paths.get(directories.classes))
+            mergeIncrementalJdeps(target)
+          }
+          target.save(IncrementalCompilationCache.State(fingerprint, digests, classpath))
+        }
+    } catch (e: CompilationStatusException) {
+      if (e.status == COMPILATION_ERROR) {
+        // The incremental compiler rolls its caches back on errors, keep them for the next attempt.
+        throw e
+      }
+      target.invalidate()
+      if (e.status == OOM_ERROR) {
+        // A full compilation needs more heap still, let the worker recover and retry instead.
+        throw e
+      }
+      context.whenTracing {
+        printLines("incremental compilation failed (${e.status})", e.lines)
+      }
+      null
+    } catch (e: Exception) {
+      target.invalidate()
+      if (context.cancellation.isCancelled) {
+        throw e
+      }
+      context.whenTracing {
+        printLines("incremental compilation failed", listOf(e.toString()))
+      }
+      null
+    }
+  }
+}
+
+/**
+ * Snapshots the compile classpath for the incremental compiler.
+ *
+ * Jar snapshots come from the shared [store], keyed by the digest Bazel reports for the jar.
+ * Directories are snapshotted again for every compilation into the target's own state.
+ */
+private fun JvmCompilationTask.snapshotClasspath(
+  context: CompilationTaskContext,
+  compiler: KotlinToolchain.KotlincInvoker,
+  target: IncrementalCompilationCache.Target,
+  store: ClasspathSnapshotStore,
+): List<String> {
+  Files.createDirectories(target.snapshots)
+  Files.list(target.snapshots).use { stale -> stale.forEach(Files::delete) }
+  val rootDir = Paths.get(context.executionRoot)
+  return (compileClasspath() + directories.generatedClasses)
+    .filter { Files.exists(rootDir.resolve(it)) }
+    .map { entry ->
+      val path = rootDir.resolve(entry)
+      if (Files.isDirectory(path)) {
+        target.snapshots.resolve("${sha256(entry)}.bin").also {
+          compiler.snapshotClasspathEntry(path.toString(), it.toString())
+        }
+      } else {
+        store.snapshotOf(path, context.inputDigests[entry], compiler.buildToolsImplementation) {
+          compiler.snapshotClasspathEntry(path.toString(), it.toString())
+        }
+      }
+    }.map(Path::toString)
+}
+
+/**
+ * The incremental compiler only runs the jdeps plugin over the sources it recompiles, so the
+ * dependencies of the target are the union of this compilation and the previous one. Sources and
+ * classpath entries are never removed between the two, those compilations start from scratch.
+ */
+private fun JvmCompilationTask.mergeIncrementalJdeps(target: IncrementalCompilationCache.Target) {
+  if (outputs.jdeps.isEmpty()) {
+    return
+  }
+  val merged = sortedMapOf<String, Deps.Dependency>()
+  listOf(target.jdeps, Paths.get(outputs.jdeps))
+    .filter(Files::exists)
+    .forEach { path ->
+      Files.newInputStream(path).use { Deps.Dependencies.parseFrom(it) }.dependencyList.forEach {
+        val existing = merged[it.path]
+        if (existing == null || existing.kind > it.kind) {
+          merged[it.path] = it
+        }
+      }
+    }
+  val jdeps =
+    Deps.Dependencies
+      .newBuilder()
+      .setRuleLabel(info.label)
+      .setSuccess(true)
+      .addAllDependency(merged.values)
+      .build()
+  writeJdeps(outputs.jdeps, jdeps)
+  Files.copy(Paths.get(outputs.jdeps), target.jdeps, StandardCopyOption.REPLACE_EXISTING)
+}
+
+private fun copyDirectory(
+  from: Path,
+  to: Path,
+) {
+  Files.walk(from).use { paths ->
+    paths.forEach { source ->
+      val destination = to.resolve(from.relativize(source).toString())
+      if (Files.isDirectory(source)) {
+        Files.createDirectories(destination)
+      } else {
+        Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING)
+      }
+    }
+  }
+}
+
+/** Drops `-d <dir>`: the incremental compiler writes into the target's persistent classes. */
+private fun List<String>.withoutDestination(): List<String> =
+  filterIndexed { i, arg -> arg != "-d" && (i == 0 || this[i - 1] != "-d") }
+
+/**
+ * Drops the classpath from the fingerprint, classpath changes are tracked by snapshots.
+ */
+private fun List<String>.withoutClasspath(): List<String> =
+  filterIndexed { i, arg -> arg != "-cp" && (i == 0 || this[i - 1] != "-cp") }
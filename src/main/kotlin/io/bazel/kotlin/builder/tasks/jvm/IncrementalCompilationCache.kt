@@ -0,0 +1,318 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import java.io.IOException
+import java.io.UncheckedIOException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.time.Duration
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import java.util.stream.Collectors
+
+/**
+ * Worker owned storage for incremental compilation state.
+ *
+ * Every target gets its own directory under [root], keyed by the execution root, the target label
+ * and the location of its outputs (which distinguishes configurations of the same label). A target
+ * directory is used by one compilation at a time: concurrent requests for the same target, in this
+ * worker or in another worker process sharing [root], fall back to a full compilation.
+ *
+ * The modification time of a target directory records its last use. Once the directories grow
+ * past [maxBytes] the state of the least recently used targets is dropped, except for targets
+ * used within [gracePeriod] or currently owned by a compilation.
+ */
+class IncrementalCompilationCache(
+  private val root: Path,
+  private val maxBytes: Long = 4L * 1024 * 1024 * 1024,
+  private val gracePeriod: Duration = Duration.ofMinutes(10),
+) {
+  companion object {
+    private const val STATE_FILE = "state.properties"
+    private const val LOCK_FILE = "lock"
+
+    /** Targets compiled between two evictions, counting from the first compilation. */
+    private const val EVICTION_INTERVAL = 32L
+    private const val FINGERPRINT_KEY = "fingerprint"
+    private const val SOURCE_PREFIX = "source:"
+    private const val CLASSPATH_PREFIX = "classpath:"
+
+    @JvmStatic
+    fun inTempDirectory(): IncrementalCompilationCache =
+      IncrementalCompilationCache(
+        Paths.get(System.getProperty("java.io.tmpdir"), "rules_kotlin", "incremental"),
+      )
+
+    internal fun sha256(vararg parts: String): String =
+      MessageDigest.getInstance("SHA-256").run {
+        parts.forEach {
+          update(it.toByteArray())
+          update(0)
+        }
+        digest().toHex()
+      }
+
+    internal fun sha256(path: Path): String =
+      MessageDigest
+        .getInstance("SHA-256")
+        .run {
+          Files.newInputStream(path).use { input ->
+            val buffer = ByteArray(8192)
+            while (true) {
+              val read = input.read(buffer)
+              if (read < 0) break
+              update(buffer, 0, read)
+            }
+          }
+          digest().toHex()
+        }
+
+    private fun ByteArray.toHex(): String = joinToString("") { "%02x".format(it) }
+  }
+
+  /** The state recorded by the last successful compilation of a target. */
+  data class State(
+    val fingerprint: String,
+    val sourceDigests: Map<String, String>,
+    val classpath: Set<String>,
+  ) {
+    /**
+     * Returns the sources whose digest changed since this state was recorded, or null if the state
+     * cannot be reused and the target must be compiled from scratch.
+     *
+     * Jdeps are merged with those of the previous compilation, which cannot drop what only a
+     * removed source or classpath entry needed: the state is not reused when either is removed,
+     * nor when the compiler arguments behind [fingerprint] changed.
+     */
+    fun modifiedSources(
+      fingerprint: String,
+      sourceDigests: Map<String, String>,
+      classpath: Set<String>,
+    ): Set<String>? =
+      takeIf {
+        it.fingerprint == fingerprint &&
+          sourceDigests.keys.containsAll(it.sourceDigests.keys) &&
+          classpath.containsAll(it.classpath)
+      }?.let { sourceDigests.filter { (k, v) -> it.sourceDigests[k] != v }.keys }
+  }
+
+  /** The incremental compilation directory of a single target. */
+  inner class Target internal constructor(
+    val directory: Path,
+  ) {
+    val caches: Path get() = directory.resolve("caches")
+    val classes: Path get() = directory.resolve("classes")
+    val snapshots: Path get() = directory.resolve("snapshots")
+    val jdeps: Path get() = directory.resolve("jdeps")
+
+    fun load(): State? =
+      directory.resolve(STATE_FILE).takeIf(Files::exists)?.let { file ->
+        val properties = Properties().apply { Files.newInputStream(file).use(::load) }
+        State(
+          fingerprint = properties.getProperty(FINGERPRINT_KEY) ?: return null,
+          sourceDigests =
+            properties
+              .stringPropertyNames()
+              .filter { it.startsWith(SOURCE_PREFIX) }
+              .associate { it.removePrefix(SOURCE_PREFIX) to properties.getProperty(it) },
+          classpath =
+            properties
+              .stringPropertyNames()
+              .filter { it.startsWith(CLASSPATH_PREFIX) }
+              .map { it.removePrefix(CLASSPATH_PREFIX) }
+              .toSet(),
+        )
+      }
+
+    fun save(state: State) {
+      val properties = Properties()
+      properties.setProperty(FINGERPRINT_KEY, state.fingerprint)
+      state.sourceDigests.forEach { (source, digest) ->
+        properties.setProperty(SOURCE_PREFIX + source, digest)
+      }
+      state.classpath.forEach { properties.setProperty(CLASSPATH_PREFIX + it, "") }
+      val temp = Files.createTempFile(directory, STATE_FILE, ".tmp")
+      Files.newOutputStream(temp).use { properties.store(it, null) }
+      Files.move(
+        temp,
+        directory.resolve(STATE_FILE),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE,
+      )
+    }
+
+    /** Drops all recorded state, so the next compilation of the target starts from scratch. */
+    fun invalidate() {
+      Files.deleteIfExists(directory.resolve(STATE_FILE))
+      listOf(caches, classes, snapshots, jdeps).forEach(::deleteRecursively)
+    }
+  }
+
+  private val locks = ConcurrentHashMap<String, ReentrantLock>()
+
+  private val compilations = AtomicLong()
+
+  private val evicting = AtomicBoolean(false)
+
+  /**
+   * Runs [block] with exclusive access to the directory of the target identified by [keyParts].
+   *
+   * [block] receives null if another compilation currently owns the target.
+   */
+  fun <T> withTarget(
+    vararg keyParts: String,
+    block: (Target?) -> T,
+  ): T {
+    val key = sha256(*keyParts)
+    val lock = locks.computeIfAbsent(key) { ReentrantLock() }
+    if (!lock.tryLock()) {
+      return block(null)
+    }
+    try {
+      val directory = Files.createDirectories(root.resolve(key))
+      return withFileLock(directory) { locked ->
+        if (locked) {
+          Files.setLastModifiedTime(directory, FileTime.fromMillis(System.currentTimeMillis()))
+        }
+        block(if (locked) Target(directory) else null)
+      }
+    } finally {
+      lock.unlock()
+      if (compilations.getAndIncrement() % EVICTION_INTERVAL == 0L) {
+        evict()
+      }
+    }
+  }
+
+  /**
+   * Drops the state of the least recently used targets until the cache is within [maxBytes].
+   *
+   * Only the lock file of an evicted target is kept: a compilation in another process may have
+   * opened it already, and must not lock a file that a later compilation can no longer see.
+   */
+  fun evict() {
+    if (!evicting.compareAndSet(false, true)) {
+      return
+    }
+    try {
+      evictLocked()
+    } catch (e: IOException) {
+      // Targets removed or in use concurrently: the next eviction tries again.
+    } catch (e: UncheckedIOException) {
+      // Same, from a directory walk.
+    } finally {
+      evicting.set(false)
+    }
+  }
+
+  private fun evictLocked() {
+    if (!Files.isDirectory(root)) {
+      return
+    }
+    val targets =
+      Files.list(root).use { paths ->
+        paths
+          .filter(Files::isDirectory)
+          .map { it to Files.getLastModifiedTime(it).toMillis() }
+          .collect(Collectors.toList())
+          .sortedBy { it.second }
+          .map { (directory, used) -> Triple(directory, used, sizeOf(directory)) }
+      }
+    var total = targets.sumOf { it.third }
+    val cutoff = System.currentTimeMillis() - gracePeriod.toMillis()
+    for ((directory, used, size) in targets) {
+      if (total <= maxBytes || used > cutoff) {
+        break
+      }
+      if (size == 0L) {
+        continue
+      }
+      val lock = locks.computeIfAbsent(directory.fileName.toString()) { ReentrantLock() }
+      // The lock is reentrant: a compilation evicting in this thread must not evict itself.
+      if (lock.isHeldByCurrentThread || !lock.tryLock()) {
+        continue
+      }
+      try {
+        withFileLock(directory) { locked ->
+          if (locked) {
+            Files.list(directory).use { entries ->
+              entries
+                .filter { it.fileName.toString() != LOCK_FILE }
+                .forEach(::deleteRecursively)
+            }
+            total -= size
+          }
+        }
+      } finally {
+        lock.unlock()
+      }
+    }
+  }
+
+  /** Runs [block] holding the file lock of a target directory, if no other process holds it. */
+  private fun <T> withFileLock(
+    directory: Path,
+    block: (Boolean) -> T,
+  ): T =
+    FileChannel
+      .open(
+        directory.resolve(LOCK_FILE),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+      ).use { channel ->
+        val fileLock =
+          try {
+            channel.tryLock()
+          } catch (e: IOException) {
+            null
+          }
+        fileLock.use {
+          block(fileLock != null)
+        }
+      }
+
+  private fun sizeOf(directory: Path): Long =
+    Files.walk(directory).use { paths ->
+      paths
+        .filter(Files::isRegularFile)
+        .mapToLong {
+          try {
+            Files.size(it)
+          } catch (e: IOException) {
+            0L
+          }
+        }.sum()
+    }
+
+  private fun deleteRecursively(path: Path) {
+    if (Files.exists(path)) {
+      Files.walk(path).use { paths ->
+        paths.sorted(Comparator.reverseOrder()).forEach(Files::delete)
+      }
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package io.bazel.kotlin.builder.tasks.jvm
 
 import io.bazel.kotlin.builder.utils.bazelRuleKind
+import io.bazel.kotlin.builder.utils.jars.DeflatedEntryCache
 import io.bazel.kotlin.builder.utils.jars.JarCreator
 import io.bazel.kotlin.model.JvmCompilationTask
 import org.jacoco.core.instr.Instrumenter
@@ -13,7 +14,12 @@ import java.nio.file.SimpleFileVisitor
 import java.nio.file.StandardOpenOption
 import java.nio.file.attribute.BasicFileAttributes
 
-internal fun JvmCompilationTask.createCoverageInstrumentedJar() {
+/**
+ * Instruments the compiled classes in place, keeping the originals in the coverage metadata
+ * directory. The abi and generated class jars include the instrumented generated classes, so this
+ * finishes before any jar is packaged.
+ */
+internal fun JvmCompilationTask.instrumentCoverage() {
   val instrumentedClassesDirectory = Paths.get(directories.coverageMetadataClasses)
   Files.createDirectories(instrumentedClassesDirectory)
 
@@ -35,16 +41,21 @@ internal fun JvmCompilationTask.createCoverageInstrumentedJar() {
     pathsForCoverage,
     inputs.javaSourcesList + inputs.kotlinSourcesList,
   )
+}
 
+/** Packages the classes instrumented by [instrumentCoverage] with their coverage metadata. */
+internal fun JvmCompilationTask.createCoverageInstrumentedJar(cache: DeflatedEntryCache? = null) {
   JarCreator(
     path = Paths.get(outputs.jar),
     normalize = true,
     verbose = false,
+    compression = !storeJars,
+    cache = cache,
   ).also {
     it.addDirectory(Paths.get(directories.classes))
     it.addDirectory(Paths.get(directories.javaClasses))
     it.addDirectory(Paths.get(directories.generatedClasses))
-    it.addDirectory(instrumentedClassesDirectory)
+    it.addDirectory(Paths.get(directories.coverageMetadataClasses))
     it.setJarOwner(info.label, info.bazelRuleKind)
     it.execute()
   }
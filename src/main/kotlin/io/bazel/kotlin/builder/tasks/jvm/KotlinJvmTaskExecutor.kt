@@ -19,7 +19,10 @@ package io.bazel.kotlin.builder.tasks.jvm
 import io.bazel.kotlin.builder.toolchain.CompilationStatusException
 import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
 import io.bazel.kotlin.builder.toolchain.KotlinToolchain
+import io.bazel.kotlin.builder.utils.jars.DeflatedEntryCache
 import io.bazel.kotlin.model.JvmCompilationTask
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
 
 /**
  * Due to an inconsistency in the handling of -Xfriends-path, jvm uses a comma (property list
@@ -30,7 +33,34 @@ const val X_FRIENDS_PATH_SEPARATOR = ","
 class KotlinJvmTaskExecutor(
   private val compilerBuilder: KotlinToolchain.KotlincInvokerBuilder,
   private val plugins: InternalCompilerPlugins,
+  private val incrementalCompilation: IncrementalCompilationCache,
+  private val classpathSnapshots: ClasspathSnapshotStore,
+  private val packaging: Executor = PACKAGING,
+  private val entryCache: DeflatedEntryCache? = null,
 ) {
+  companion object {
+    /** Jars packaged at once, shared by the requests of a worker. */
+    private val PACKAGING_THREADS = minOf(4, Runtime.getRuntime().availableProcessors())
+
+    private val PACKAGING: Executor =
+      Executors.newFixedThreadPool(PACKAGING_THREADS) { r ->
+        Thread(r, "jar-packaging").apply { isDaemon = true }
+      }
+  }
+
+  @JvmOverloads
+  constructor(
+    compilerBuilder: KotlinToolchain.KotlincInvokerBuilder,
+    plugins: InternalCompilerPlugins,
+    entryCache: DeflatedEntryCache? = null,
+  ) : this(
+    compilerBuilder,
+    plugins,
+    IncrementalCompilationCache.inTempDirectory(),
+    ClasspathSnapshotStore.inTempDirectory(),
+    entryCache = entryCache,
+  )
+
   private fun combine(
     one: Throwable?,
     two: Throwable?,
@@ -49,12 +79,20 @@ class KotlinJvmTaskExecutor(
     context: CompilationTaskContext,
     task: JvmCompilationTask,
   ) {
-    val compiler = compilerBuilder.build(context.info.buildToolsApi)
+    val compiler =
+      context.execute("create compiler") {
+        compilerBuilder.build(context.info.buildToolsApi)
+      }
+    context.whenTracing {
+      printLines("kotlinc invoker cache", compilerBuilder.stats.lines())
+      entryCache?.let { printLines("jar entry cache", it.lines()) }
+    }
 
     val preprocessedTask =
       task
         .preProcessingSteps(context)
         .runPlugins(context, plugins, compiler)
+        .resolveCompileToJar(compiler)
 
     context.execute("compile classes") {
       preprocessedTask.apply {
@@ -62,47 +100,57 @@ class KotlinJvmTaskExecutor(
           runCatching {
             context.execute("kotlinc") {
               if (compileKotlin) {
-                compileKotlin(
-                  context,
-                  compiler,
-                  args =
-                    baseArgs()
-                      .given(outputs.jdeps)
-                      .notEmpty {
-                        plugin(plugins.jdeps) {
-                          flag("output", outputs.jdeps)
-                          flag("target_label", info.label)
-                          inputs.directDependenciesList.forEach {
-                            flag("direct_dependencies", it)
-                          }
-                          inputs.classpathList.forEach {
-                            flag("full_classpath", it)
-                          }
-                          flag("strict_kotlin_deps", info.strictKotlinDeps)
+                val args =
+                  baseArgs()
+                    .given(outputs.jdeps)
+                    .notEmpty {
+                      plugin(plugins.jdeps) {
+                        flag("output", outputs.jdeps)
+                        flag("target_label", info.label)
+                        inputs.directDependenciesList.forEach {
+                          flag("direct_dependencies", it)
+                        }
+                        inputs.classpathList.forEach {
+                          flag("full_classpath", it)
+                        }
+                        flag("strict_kotlin_deps", info.strictKotlinDeps)
+                      }
+                    }.given(outputs.jar)
+                    .notEmpty {
+                      append(codeGenArgs())
+                    }.given(outputs.abijar)
+                    .notEmpty {
+                      plugin(plugins.jvmAbiGen) {
+                        flag("outputDir", directories.abiClasses)
+                        if (info.treatInternalAsPrivateInAbiJar) {
+                          flag("treatInternalAsPrivate", "true")
                         }
-                      }.given(outputs.jar)
-                      .notEmpty {
-                        append(codeGenArgs())
-                      }.given(outputs.abijar)
-                      .notEmpty {
-                        plugin(plugins.jvmAbiGen) {
-                          flag("outputDir", directories.abiClasses)
-                          if (info.treatInternalAsPrivateInAbiJar) {
-                            flag("treatInternalAsPrivate", "true")
-                          }
-                          if (info.removePrivateClassesInAbiJar) {
-                            flag("removePrivateClasses", "true")
-                          }
-                          if (info.removeDebugInfo) {
-                            flag("removeDebugInfo", "true")
-                          }
+                        if (info.removePrivateClassesInAbiJar) {
+                          flag("removePrivateClasses", "true")
                         }
-                        given(outputs.jar).empty {
-                          plugin(plugins.skipCodeGen)
+                        if (info.removeDebugInfo) {
+                          flag("removeDebugInfo", "true")
                         }
-                      },
-                  printOnFail = false,
-                )
+                      }
+                      given(outputs.jar).empty {
+                        plugin(plugins.skipCodeGen)
+                      }
+                    }
+
+                (
+                  if (canCompileIncrementally(compiler)) {
+                    compileKotlinIncrementally(
+                      context,
+                      compiler,
+                      incrementalCompilation,
+                      classpathSnapshots,
+                      args,
+                      printOnFail = false,
+                    )
+                  } else {
+                    null
+                  }
+                ) ?: compileKotlin(context, compiler, args, printOnFail = false)
               } else {
                 emptyList()
               }
@@ -126,31 +174,43 @@ class KotlinJvmTaskExecutor(
           }
         }
 
+        // Coverage rewrites the classes in place, which the abi and generated class jars read too.
+        if (outputs.jar.isNotEmpty() && instrumentCoverage) {
+          context.execute("instrument classes") { instrumentCoverage() }
+        }
+        // From here on every jar only reads the directories it packages, so they are packaged
+        // concurrently with the same bytes as one after another.
+        val jars = mutableListOf<Pair<String, () -> Unit>>()
         if (outputs.jar.isNotEmpty()) {
           if (instrumentCoverage) {
-            context.execute("create instrumented jar", ::createCoverageInstrumentedJar)
+            jars += "create instrumented jar" to { createCoverageInstrumentedJar(entryCache) }
           } else {
-            context.execute("create jar", ::createOutputJar)
+            jars += "create jar" to { createOutputJar(entryCache) }
           }
         }
         if (outputs.abijar.isNotEmpty()) {
-          context.execute("create abi jar", ::createAbiJar)
+          jars += "create abi jar" to { createAbiJar(entryCache) }
         }
         if (outputs.generatedJavaSrcJar.isNotEmpty()) {
-          context.execute("creating KAPT generated Java source jar", ::createGeneratedJavaSrcJar)
+          jars +=
+            "creating KAPT generated Java source jar" to { createGeneratedJavaSrcJar(entryCache) }
         }
         if (outputs.generatedJavaStubJar.isNotEmpty()) {
-          context.execute("creating KAPT generated Kotlin stubs jar", ::createGeneratedStubJar)
+          jars +=
+            "creating KAPT generated Kotlin stubs jar" to { createGeneratedStubJar(entryCache) }
         }
         if (outputs.generatedClassJar.isNotEmpty()) {
-          context.execute("creating KAPT generated stub class jar", ::createGeneratedClassJar)
+          jars +=
+            "creating KAPT generated stub class jar" to { createGeneratedClassJar(entryCache) }
         }
         if (outputs.generatedKspSrcJar.isNotEmpty()) {
-          context.execute("creating KSP generated src jar", ::createGeneratedKspKotlinSrcJar)
+          jars += "creating KSP generated src jar" to { createGeneratedKspKotlinSrcJar(entryCache) }
         }
         if (outputs.generatedKspClassesJar.isNotEmpty()) {
-          context.execute("creating KSP generated classes jar", ::createdGeneratedKspClassesJar)
+          jars +=
+            "creating KSP generated classes jar" to { createdGeneratedKspClassesJar(entryCache) }
         }
+        context.executeConcurrently("package jars", packaging, jars)
       }
     }
   }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.toolchain.inputKey
+import io.bazel.worker.HeapPressure
+import java.io.Closeable
+import java.io.File
+import java.lang.reflect.Method
+import java.net.URLClassLoader
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps idle KSP2 processor class loaders, and the Ksp2Invoker loaded in each, between requests.
+ *
+ * Invokers are keyed by the processor classpath and the digests of its jars. An invoker is used by
+ * one request at a time, as processors and KSP keep static state; concurrent requests for the same
+ * processors each get their own. At most [maxIdle] idle invokers are kept, the least recently used
+ * are closed first, and all of them are closed when the worker runs low on heap.
+ *
+ * [load] creates the invoker for a processor classpath.
+ */
+class Ksp2InvokerCache(
+  private val maxIdle: Int,
+  private val load: (List<String>) -> Invoker = ::LoadedInvoker,
+) : Closeable {
+  companion object {
+    const val DEFAULT_MAX_IDLE = 4
+    private const val INVOKER_CLASS = "io.bazel.kotlin.ksp2.Ksp2Invoker"
+
+    /**
+     * The key of the invokers for [classpath], from the digests Bazel reported in [inputDigests]
+     * or, for jars without one, their size and modification time.
+     */
+    @JvmStatic
+    fun keyOf(
+      classpath: List<String>,
+      inputDigests: Map<String, String>,
+    ): String = classpath.joinToString("\n") { "$it=${inputKey(it, inputDigests)}" }
+  }
+
+  /** Runs KSP2 with a set of processors. */
+  interface Invoker : Closeable {
+    /** Calls Ksp2Invoker.execute, see it for the arguments. */
+    fun execute(vararg args: Any?): Int
+  }
+
+  /** A Ksp2Invoker loaded, with the processors, in its own class loader. */
+  private class LoadedInvoker(
+    classpath: List<String>,
+  ) : Invoker {
+    private val classLoader =
+      URLClassLoader(
+        classpath.map { File(it).toURI().toURL() }.toTypedArray(),
+        ClassLoader.getSystemClassLoader(),
+      )
+    private val invoker: Any
+    private val executeMethod: Method
+
+    init {
+      val invokerClass = classLoader.loadClass(INVOKER_CLASS)
+      invoker = invokerClass.getConstructor(ClassLoader::class.java).newInstance(classLoader)
+      executeMethod =
+        invokerClass.getMethod(
+          "execute",
+          String::class.java, // moduleName
+          List::class.java, // sourceRoots
+          List::class.java, // javaSourceRoots
+          List::class.java, // libraries
+          File::class.java, // kotlinOutputDir
+          File::class.java, // javaOutputDir
+          File::class.java, // classOutputDir
+          File::class.java, // resourceOutputDir
+          File::class.java, // cachesDir
+          File::class.java, // projectBaseDir
+          File::class.java, // outputBaseDir
+          String::class.java, // jvmTarget
+          String::class.java, // languageVersion
+          String::class.java, // apiVersion
+          File::class.java, // jdkHome
+          Map::class.java, // processorOptions
+          Int::class.java, // logLevel
+        )
+    }
+
+    override fun execute(vararg args: Any?): Int = executeMethod.invoke(invoker, *args) as Int
+
+    override fun close() {
+      classLoader.close()
+    }
+  }
+
+  /** Idle invokers, least recently used first. */
+  private val idle = ArrayList<Pair<String, Invoker>>()
+
+  val hits = AtomicLong()
+  val misses = AtomicLong()
+
+  private val pressure = HeapPressure.onPressure(::clear)
+
+  /**
+   * Runs [block] with an invoker for [classpath]. [key] identifies the contents of [classpath].
+   */
+  fun <T> withInvoker(
+    key: String,
+    classpath: List<String>,
+    block: (Invoker) -> T,
+  ): T {
+    val cached =
+      synchronized(idle) {
+        idle.indexOfLast { it.first == key }.takeIf { it >= 0 }?.let { idle.removeAt(it).second }
+      }
+    (if (cached != null) hits else misses).incrementAndGet()
+    val invoker = cached ?: load(classpath)
+    var reusable = false
+    try {
+      return block(invoker).also { reusable = true }
+    } finally {
+      if (reusable && maxIdle > 0) {
+        release(key, invoker)
+      } else {
+        invoker.close()
+      }
+    }
+  }
+
+  private fun release(
+    key: String,
+    invoker: Invoker,
+  ) {
+    val evicted =
+      synchronized(idle) {
+        idle.add(key to invoker)
+        List((idle.size - maxIdle).coerceAtLeast(0)) { idle.removeAt(0).second }
+      }
+    evicted.forEach(Invoker::close)
+  }
+
+  /** Closes every idle invoker. */
+  fun clear() {
+    val evicted =
+      synchronized(idle) {
+        idle.map { it.second }.also { idle.clear() }
+      }
+    evicted.forEach(Invoker::close)
+  }
+
+  override fun close() {
+    pressure.close()
+    clear()
+  }
+}
@@ -20,19 +20,16 @@ package io.bazel.kotlin.builder.tasks.jvm
 import io.bazel.kotlin.builder.utils.ArgMap
 import io.bazel.kotlin.builder.utils.ArgMaps
 import io.bazel.kotlin.builder.utils.Flag
+import io.bazel.kotlin.builder.utils.jars.DeflatedEntryCache
+import io.bazel.kotlin.builder.utils.jars.JarCreator
 import io.bazel.worker.Status
 import io.bazel.worker.Work
 import io.bazel.worker.WorkerContext
 import java.io.File
-import java.io.FileOutputStream
-import java.net.URLClassLoader
 import java.nio.charset.StandardCharsets
 import java.nio.file.FileSystems
 import java.nio.file.Files
 import java.nio.file.Path
-import java.util.jar.JarEntry
-import java.util.jar.JarOutputStream
-import java.util.jar.Manifest
 import java.util.regex.Pattern
 import java.util.zip.ZipFile
 
@@ -42,12 +39,15 @@ import java.util.zip.ZipFile
  * Executes KSP2 symbol processing entirely within the worker:
  * 1. Stages source files to a temporary directory (for worker isolation)
  * 2. Unpacks srcjars to a temporary directory
- * 3. Runs KSP2 via the cached Ksp2Invoker
+ * 3. Runs KSP2 via a Ksp2Invoker cached for the processor classpath
  * 4. Packages generated sources/classes into output JARs
  *
  * This is a separate command from the main Build command for cleaner separation.
  */
-class Ksp2Task : Work {
+class Ksp2Task(
+  private val invokers: Ksp2InvokerCache,
+  private val entryCache: DeflatedEntryCache? = null,
+) : Work {
   companion object {
     private val FLAGFILE_RE = Pattern.compile("""^--flagfile=((.*)-(\d+).params)$""").toRegex()
 
@@ -66,6 +66,7 @@ class Ksp2Task : Work {
       JVM_TARGET("--jvm_target"),
       JDK_HOME("--jdk_home"),
       KSP_OPTIONS("--ksp_options"),
+      STORE_JARS("--store_jars"),
     }
 
     fun parseKspOptions(entries: List<String>): Map<String, String> =
@@ -174,63 +175,52 @@ class Ksp2Task : Work {
         sourceRoots.add(stagedSourcesDir.toString())
       }
 
-      // Create classloader with KSP2 jars and processor jars
       val processorClasspath = argMap.optional(Ksp2Flags.PROCESSOR_CLASSPATH) ?: emptyList()
-      val processorUrls = processorClasspath.map { File(it).toURI().toURL() }.toTypedArray()
-      val kspClassLoader = URLClassLoader(processorUrls, ClassLoader.getSystemClassLoader())
-
       val processorOptions = parseKspOptions(argMap.optional(Ksp2Flags.KSP_OPTIONS) ?: emptyList())
 
-      // Load Ksp2Invoker via reflection (it's compiled against KSP2 classes)
-      val invokerClass = kspClassLoader.loadClass("io.bazel.kotlin.ksp2.Ksp2Invoker")
-      val invoker =
-        invokerClass
-          .getConstructor(ClassLoader::class.java)
-          .newInstance(kspClassLoader)
-      val executeMethod =
-        invokerClass.getMethod(
-          "execute",
-          String::class.java, // moduleName
-          List::class.java, // sourceRoots
-          List::class.java, // javaSourceRoots
-          List::class.java, // libraries
-          File::class.java, // kotlinOutputDir
-          File::class.java, // javaOutputDir
-          File::class.java, // classOutputDir
-          File::class.java, // resourceOutputDir
-          File::class.java, // cachesDir
-          File::class.java, // projectBaseDir
-          File::class.java, // outputBaseDir
-          String::class.java, // jvmTarget
-          String::class.java, // languageVersion
-          String::class.java, // apiVersion
-          File::class.java, // jdkHome
-          Map::class.java, // processorOptions
-          Int::class.java, // logLevel
-        )
-
-      // Execute KSP2
+      // Execute KSP2 with a cached Ksp2Invoker for the processor classpath. KSP2 has no
+      // cancellation of its own: a cancelled request interrupts it, and the invoker is discarded.
+      taskContext.cancellation.check()
+      val thread = Thread.currentThread()
       val code =
-        executeMethod.invoke(
-          invoker,
-          moduleName,
-          sourceRoots.map { File(it) },
-          javaSourceRoots.map { File(it) },
-          argMap.optional(Ksp2Flags.LIBRARIES)?.map { File(it) } ?: emptyList<File>(),
-          kotlinOutputDir.toFile(),
-          javaOutputDir.toFile(),
-          classOutputDir.toFile(),
-          resourceOutputDir.toFile(),
-          cachesDir.toFile(),
-          kspWorkDir.toFile(), // projectBaseDir
-          kspWorkDir.toFile(), // outputBaseDir
-          argMap.optionalSingle(Ksp2Flags.JVM_TARGET),
-          argMap.optionalSingle(Ksp2Flags.LANGUAGE_VERSION),
-          argMap.optionalSingle(Ksp2Flags.API_VERSION),
-          argMap.optionalSingle(Ksp2Flags.JDK_HOME)?.let { File(it) },
-          processorOptions,
-          1, // logLevel
-        ) as Int
+        invokers.withInvoker(
+          key = Ksp2InvokerCache.keyOf(processorClasspath, taskContext.inputDigests),
+          classpath = processorClasspath,
+        ) { invoker ->
+          val processed =
+            try {
+              taskContext.cancellation.onCancel { thread.interrupt() }.use {
+                invoker.execute(
+                  moduleName,
+                  sourceRoots.map { File(it) },
+                  javaSourceRoots.map { File(it) },
+                  argMap.optional(Ksp2Flags.LIBRARIES)?.map { File(it) } ?: emptyList<File>(),
+                  kotlinOutputDir.toFile(),
+                  javaOutputDir.toFile(),
+                  classOutputDir.toFile(),
+                  resourceOutputDir.toFile(),
+                  cachesDir.toFile(),
+                  kspWorkDir.toFile(), // projectBaseDir
+                  kspWorkDir.toFile(), // outputBaseDir
+                  argMap.optionalSingle(Ksp2Flags.JVM_TARGET),
+                  argMap.optionalSingle(Ksp2Flags.LANGUAGE_VERSION),
+                  argMap.optionalSingle(Ksp2Flags.API_VERSION),
+                  argMap.optionalSingle(Ksp2Flags.JDK_HOME)?.let { File(it) },
+                  processorOptions,
+                  1, // logLevel
+                )
+              }
+            } finally {
+              // Clears an interrupt that raced with the end of processing.
+              Thread.interrupted()
+            }
+          // Throwing discards the invoker, whose state an interrupt may have left inconsistent.
+          taskContext.cancellation.check()
+          processed
+        }
+      taskContext.debug {
+        "KSP2 invoker cache hits: ${invokers.hits.get()}, misses: ${invokers.misses.get()}"
+      }
 
       if (code != 0) {
         taskContext.error { "KSP2 failed with exit code: $code" }
@@ -239,9 +229,11 @@ class Ksp2Task : Work {
 
       // Package generated sources into srcjar
       val generatedSourcesOutput = argMap.mandatorySingle(Ksp2Flags.GENERATED_SOURCES_OUTPUT)
+      val storeJars = argMap.optionalSingle(Ksp2Flags.STORE_JARS)?.toBoolean() ?: false
       packageDirectoriesToJar(
         outputPath = generatedSourcesOutput,
         directories = listOf(kotlinOutputDir, javaOutputDir),
+        compression = !storeJars,
       )
 
       // Package generated classes/resources into jar
@@ -249,6 +241,7 @@ class Ksp2Task : Work {
       packageDirectoriesToJar(
         outputPath = generatedClassesOutput,
         directories = listOf(classOutputDir, resourceOutputDir),
+        compression = !storeJars,
       )
       return 0
     } catch (e: Exception) {
@@ -271,56 +264,17 @@ class Ksp2Task : Work {
   private fun packageDirectoriesToJar(
     outputPath: String,
     directories: List<Path>,
+    compression: Boolean,
   ) {
-    val manifest =
-      Manifest().apply {
-        mainAttributes.putValue("Manifest-Version", "1.0")
-        mainAttributes.putValue("Created-By", "rules_kotlin KSP2")
-      }
-
-    JarOutputStream(FileOutputStream(outputPath), manifest).use { jar ->
-      val addedEntries = mutableSetOf<String>()
-
-      for (dir in directories) {
-        if (!Files.exists(dir)) continue
-
-        Files.walk(dir).use { stream ->
-          stream.forEach { path ->
-            val relativePath = dir.relativize(path).toString().replace('\\', '/')
-            if (relativePath.isEmpty()) return@forEach
-
-            if (Files.isDirectory(path)) {
-              // Add directory entry (must end with /)
-              val dirEntry = "$relativePath/"
-              if (dirEntry !in addedEntries) {
-                addedEntries.add(dirEntry)
-                jar.putNextEntry(JarEntry(dirEntry))
-                jar.closeEntry()
-              }
-            } else if (Files.isRegularFile(path)) {
-              // Ensure parent directories are added first
-              val parts = relativePath.split("/")
-              var parentPath = ""
-              for (i in 0 until parts.size - 1) {
-                parentPath += parts[i] + "/"
-                if (parentPath !in addedEntries) {
-                  addedEntries.add(parentPath)
-                  jar.putNextEntry(JarEntry(parentPath))
-                  jar.closeEntry()
-                }
-              }
-
-              // Add file entry
-              if (relativePath !in addedEntries) {
-                addedEntries.add(relativePath)
-                jar.putNextEntry(JarEntry(relativePath))
-                Files.copy(path, jar)
-                jar.closeEntry()
-              }
-            }
-          }
-        }
-      }
+    JarCreator(
+      path = Path.of(outputPath),
+      normalize = true,
+      verbose = false,
+      compression = compression,
+      cache = entryCache,
+    ).also {
+      directories.filter(Files::exists).forEach(it::addDirectory)
+      it.execute()
     }
   }
 }
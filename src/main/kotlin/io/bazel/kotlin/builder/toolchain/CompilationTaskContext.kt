@@ -19,31 +19,61 @@ package io.bazel.kotlin.builder.toolchain
 import com.google.protobuf.MessageOrBuilder
 import com.google.protobuf.TextFormat
 import io.bazel.kotlin.model.CompilationTaskInfo
-import java.io.ByteArrayInputStream
-import java.io.ByteArrayOutputStream
+import io.bazel.worker.Cancellation
+import io.bazel.worker.RequestMetrics
 import java.io.File
 import java.io.PrintStream
+import java.nio.charset.StandardCharsets.UTF_8
 import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
 
 class CompilationTaskContext(
   val info: CompilationTaskInfo,
   private val out: PrintStream,
-  private val executionRoot: String =
+  /** The directory the paths of the task are relative to, ending with a separator. */
+  val executionRoot: String =
     FileSystems
       .getDefault()
       .getPath("")
       .toAbsolutePath()
       .toString() + File.separator,
+  /** Content digests of the action inputs keyed by path, empty when Bazel does not send them. */
+  val inputDigests: Map<String, String> = emptyMap(),
+  /** Cancellation of the request, checked before every task and after every compilation. */
+  val cancellation: Cancellation = Cancellation(),
+  /** Metrics of the request, recording the time spent in every task. */
+  val metrics: RequestMetrics = RequestMetrics(info.label),
 ) {
+  constructor(
+    info: CompilationTaskInfo,
+    out: PrintStream,
+    executionRoot: String,
+  ) : this(info, out, executionRoot, emptyMap())
+
   private val start = System.currentTimeMillis()
+  private val startNanos = System.nanoTime()
   private var timings: MutableList<String>?
   private var level = -1
   private val isTracing: Boolean
+  private val isReportingPerf: Boolean
+
+  /** Spans of the tasks in the trace-event format, when the action asked for them. */
+  val traceEvents: TraceEvents?
 
   init {
     val debugging = info.debugList.toSet()
     timings = if (debugging.contains("timings")) mutableListOf() else null
     isTracing = debugging.contains("trace")
+    isReportingPerf = debugging.contains("kotlinc_perf")
+    traceEvents =
+      if (info.traceEventsPath.isNotEmpty()) TraceEvents(info.label, info.mnemonic) else null
+    metrics.tag("label", info.label)
+    metrics.tag("rule_kind", info.ruleKind.name)
   }
 
   @Suppress("unused")
@@ -123,13 +153,20 @@ class CompilationTaskContext(
     printOnFail: Boolean = true,
     printOnSuccess: Boolean = true,
   ): List<String> {
-    val outputStream = ByteArrayOutputStream()
-    val ps = PrintStream(outputStream)
-    val result = compile(args.toTypedArray(), ps)
-    val output =
-      ByteArrayInputStream(outputStream.toByteArray())
-        .bufferedReader()
-        .readLines()
+    val collector = CompilerOutput()
+    val perfReport = if (isReportingPerf) Files.createTempFile("kotlinc-perf", ".txt") else null
+    val compileArgs = args + listOfNotNull(perfReport?.let { "-Xdump-perf=$it" })
+    val compileStart = System.nanoTime()
+    val result =
+      try {
+        PrintStream(collector, false, UTF_8.name()).use { compile(compileArgs.toTypedArray(), it) }
+      } finally {
+        perfReport?.let { recordPerfReport(it, compileStart) }
+      }
+    metrics.value("compiler_exit_code", result.toLong())
+    // A cancelled compiler can stop early and still report success.
+    cancellation.check()
+    val output = collector.lines()
     if (result != 0) {
       if (printOnFail) {
         printCompilerOutput(output)
@@ -142,6 +179,39 @@ class CompilationTaskContext(
     return output
   }
 
+  /**
+   * Records the phases of the performance report kotlinc wrote to [file] as nested timings, metrics
+   * and trace spans of the current task, laid out one after the other from [compileStart].
+   */
+  private fun recordPerfReport(
+    file: Path,
+    compileStart: Long,
+  ) {
+    val lines =
+      try {
+        if (Files.exists(file)) Files.readAllLines(file, UTF_8) else emptyList()
+      } finally {
+        Files.deleteIfExists(file)
+      }
+    if (lines.isEmpty()) {
+      return
+    }
+    whenTracing {
+      printLines("kotlinc performance report", lines)
+    }
+    val report = KotlincPerfReport.parse(lines)
+    var offsetMicros = 0L
+    report.phases.forEach { (phase, millis) ->
+      metrics.phase("kotlinc $phase", millis * 1_000_000)
+      timings?.add("${"  ".repeat(level + 1)} * kotlinc $phase: $millis ms")
+      traceEvents?.run {
+        complete("kotlinc $phase", micros(compileStart) + offsetMicros, millis * 1000)
+      }
+      offsetMicros += millis * 1000
+    }
+    report.values.forEach { (key, value) -> metrics.value("kotlinc_$key", value) }
+  }
+
   /**
    * Runs a task and records the timings.
    */
@@ -157,12 +227,72 @@ class CompilationTaskContext(
   fun <T> execute(
     name: () -> String,
     task: () -> T,
-  ): T =
-    if (timings == null) {
-      task()
-    } else {
-      pushTimedTask(name(), task)
+  ): T {
+    cancellation.check()
+    val start = System.nanoTime()
+    try {
+      return if (timings == null) {
+        task()
+      } else {
+        pushTimedTask(name(), task)
+      }
+    } finally {
+      val end = System.nanoTime()
+      metrics.phase(name(), end - start)
+      traceEvents?.span(name(), start, end)
     }
+  }
+
+  /**
+   * Runs independent [tasks] concurrently on [executor], as a task called [name]. Each task is
+   * timed on its own, and its timings are listed in the order of [tasks]. Once all tasks have
+   * finished, the first failure is thrown with the others suppressed. A single task runs on the
+   * caller.
+   */
+  fun executeConcurrently(
+    name: String,
+    executor: Executor,
+    tasks: List<Pair<String, () -> Unit>>,
+  ) {
+    if (tasks.isEmpty()) {
+      return
+    }
+    tasks.singleOrNull()?.let { (taskName, task) ->
+      execute(taskName, task)
+      return
+    }
+    execute(name) {
+      val results =
+        tasks.map { (taskName, task) ->
+          CompletableFuture.supplyAsync(
+            {
+              cancellation.check()
+              val start = System.nanoTime()
+              try {
+                task()
+              } finally {
+                val end = System.nanoTime()
+                metrics.phase(taskName, end - start)
+                traceEvents?.span(taskName, start, end)
+              }
+              System.nanoTime() - start
+            },
+            executor,
+          )
+        }
+      var failure: Throwable? = null
+      results.forEachIndexed { i, result ->
+        try {
+          val millis = result.join() / 1_000_000
+          timings?.add("${"  ".repeat(level + 1)} * ${tasks[i].first}: $millis ms")
+        } catch (e: CompletionException) {
+          val cause = e.cause ?: e
+          failure?.addSuppressed(cause) ?: run { failure = cause }
+        }
+      }
+      failure?.let { throw it }
+    }
+  }
 
   private inline fun <T> pushTimedTask(
     name: String,
@@ -191,6 +321,10 @@ class CompilationTaskContext(
    * @param successful true if the task finished successfully.
    */
   fun finalize(successful: Boolean) {
+    traceEvents?.let {
+      it.span(info.label, startNanos, System.nanoTime(), mapOf("successful" to "$successful"))
+      it.write(Paths.get(info.traceEventsPath))
+    }
     if (successful) {
       timings?.also {
         printLines(
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets.UTF_8
+
+/**
+ * Splits compiler output into lines as it is written, keeping at most [limit] characters of them.
+ *
+ * The first lines are kept up to half the limit, followed by the most recent lines. Lines in
+ * between are dropped and replaced by a single marker line, so a compiler reporting thousands of
+ * warnings does not hold all of them in memory.
+ */
+internal class CompilerOutput(
+  limit: Int = DEFAULT_LIMIT,
+) : OutputStream() {
+  companion object {
+    /** Characters of compiler output kept per compilation. */
+    const val DEFAULT_LIMIT = 2 * 1024 * 1024
+  }
+
+  private val headLimit = limit / 2
+  private val tailLimit = limit - headLimit
+
+  private val line = ByteArrayOutputStream()
+  private val head = mutableListOf<String>()
+  private var headChars = 0
+  private val tail = ArrayDeque<String>()
+  private var tailChars = 0
+  private var droppedLines = 0
+
+  @Synchronized
+  override fun write(b: Int) {
+    if (b == '\n'.code) {
+      endLine()
+    } else {
+      append(byteArrayOf(b.toByte()), 0, 1)
+    }
+  }
+
+  @Synchronized
+  override fun write(
+    b: ByteArray,
+    off: Int,
+    len: Int,
+  ) {
+    var start = off
+    for (i in off until off + len) {
+      if (b[i] == '\n'.code.toByte()) {
+        append(b, start, i - start)
+        endLine()
+        start = i + 1
+      }
+    }
+    append(b, start, off + len - start)
+  }
+
+  /** Appends to the current line, cutting lines that would not fit in the tail on their own. */
+  private fun append(
+    b: ByteArray,
+    off: Int,
+    len: Int,
+  ) {
+    line.write(b, off, minOf(len, maxOf(0, tailLimit - line.size())))
+  }
+
+  private fun endLine() {
+    val text = line.toString(UTF_8.name()).removeSuffix("\r")
+    line.reset()
+    if (tail.isEmpty() && headChars + text.length <= headLimit) {
+      head += text
+      headChars += text.length
+      return
+    }
+    tail.addLast(text)
+    tailChars += text.length
+    while (tailChars > tailLimit && tail.size > 1) {
+      tailChars -= tail.removeFirst().length
+      droppedLines++
+    }
+  }
+
+  /** The retained lines, including an unterminated last line. */
+  @Synchronized
+  fun lines(): List<String> {
+    if (line.size() > 0) {
+      endLine()
+    }
+    val marker = "[... $droppedLines lines of output truncated ...]".takeIf { droppedLines > 0 }
+    return head + listOfNotNull(marker) + tail
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import io.bazel.worker.Cancellation
+import io.bazel.worker.ScratchDirectories
+import java.io.OutputStream
+import java.io.PrintStream
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Warms up the compilers of a new persistent worker, so the first requests do not pay for class
+ * loading and JIT compilation.
+ *
+ * A small bundled source set is compiled [rounds] times against the Kotlin standard library, with
+ * both the K2 and the Build Tools API compilers, on a low priority background thread. [stop]
+ * cancels the warm-up, e.g. as soon as the first real request arrives.
+ */
+class CompilerWarmUp(
+  private val toolchain: KotlinToolchain,
+  private val compilers: KotlinToolchain.KotlincInvokerBuilder,
+  private val rounds: Int = DEFAULT_ROUNDS,
+) {
+  companion object {
+    private val logger: Logger = Logger.getLogger(CompilerWarmUp::class.java.canonicalName)
+
+    /** Compilations per compiler, enough for the hottest compiler paths to be JIT compiled. */
+    const val DEFAULT_ROUNDS = 5
+
+    private val SOURCES =
+      mapOf(
+        "Shapes.kt" to
+          """
+          package warmup
+
+          sealed interface Shape {
+            val area: Double
+          }
+
+          data class Circle(val radius: Double) : Shape {
+            override val area get() = Math.PI * radius * radius
+          }
+
+          data class Rectangle(val width: Double, val height: Double) : Shape {
+            override val area get() = width * height
+          }
+
+          enum class Scale(val factor: Double) { MM(0.001), CM(0.01), M(1.0) }
+
+          fun describe(shape: Shape): String =
+            when (shape) {
+              is Circle -> "circle of radius ${'$'}{shape.radius}"
+              is Rectangle -> "rectangle ${'$'}{shape.width}x${'$'}{shape.height}"
+            }
+          """,
+        "Collections.kt" to
+          """
+          package warmup
+
+          inline fun <T, R : Comparable<R>> List<T>.largestBy(selector: (T) -> R): T? =
+            maxByOrNull(selector)
+
+          object Registry {
+            private val shapes = mutableMapOf<String, Shape>()
+
+            fun register(name: String, shape: Shape) {
+              shapes[name] = shape
+            }
+
+            fun summary(): Map<String, List<String>> =
+              shapes.entries
+                .sortedBy { it.key }
+                .groupBy({ it.value::class.simpleName ?: "?" }, { describe(it.value) })
+
+            fun largest(): Shape? = shapes.values.toList().largestBy { it.area }
+          }
+
+          class Lazy<T : Any>(private val init: () -> T) {
+            private var value: T? = null
+
+            fun get(): T = value ?: init().also { value = it }
+          }
+
+          fun main(args: Array<String>) {
+            args.forEachIndexed { i, arg -> Registry.register(arg, Circle(i.toDouble())) }
+            val total = Lazy { Registry.summary().values.sumOf { it.size } }
+            println("${'$'}{total.get()} ${'$'}{Registry.largest()?.let(::describe)}")
+          }
+          """,
+      )
+  }
+
+  private val stopped = AtomicBoolean(false)
+  private val cancellation = Cancellation()
+
+  private val thread =
+    Thread(::warmUp, "compiler-warm-up").apply {
+      isDaemon = true
+      priority = Thread.MIN_PRIORITY
+    }
+
+  /** Starts warming up in the background. */
+  fun start() {
+    thread.start()
+  }
+
+  /** Stops the warm-up, cancelling the compilation in progress. Does not wait for it. */
+  fun stop() {
+    if (stopped.compareAndSet(false, true)) {
+      cancellation.cancel()
+    }
+  }
+
+  private fun warmUp() {
+    val stdlib = toolchain.stdlib ?: return
+    val dir = Files.createTempDirectory("warm-up")
+    try {
+      val sources =
+        SOURCES.map { (name, text) ->
+          dir.resolve(name).also { Files.write(it, text.trimIndent().toByteArray(UTF_8)) }
+        }
+      val apis = mutableListOf(false, true)
+      for (round in 1..rounds) {
+        for (buildToolsApi in apis.toList()) {
+          if (stopped.get()) {
+            return
+          }
+          val name = if (buildToolsApi) "build tools api" else "k2"
+          val start = System.nanoTime()
+          try {
+            val status = compile(buildToolsApi, stdlib, sources, dir.resolve("$round-$name"))
+            logger.fine {
+              "warm-up $round ($name): $status in ${(System.nanoTime() - start) / 1_000_000} ms"
+            }
+          } catch (e: Exception) {
+            if (!stopped.get()) {
+              logger.log(Level.WARNING, "Compiler warm-up ($name) failed.", e)
+            }
+            apis -= buildToolsApi
+          }
+        }
+      }
+    } finally {
+      runCatching { ScratchDirectories.delete(dir) }
+    }
+  }
+
+  private fun compile(
+    buildToolsApi: Boolean,
+    stdlib: Path,
+    sources: List<Path>,
+    out: Path,
+  ): Int {
+    val args =
+      listOf(
+        "-no-stdlib",
+        "-no-reflect",
+        "-cp",
+        stdlib.toString(),
+        "-module-name",
+        "warmup",
+        "-d",
+        out.resolve("classes").toString(),
+        "-Xplugin=${toolchain.jvmAbiGen.jarPath}",
+        "-P",
+        "plugin:${toolchain.jvmAbiGen.id}:outputDir=${out.resolve("abi")}",
+      ) + sources.map(Path::toString)
+    return PrintStream(OutputStream.nullOutputStream()).use { discard ->
+      compilers
+        .build(buildToolsApi)
+        .compile(args.toTypedArray(), discard, emptyMap(), cancellation = cancellation)
+    }
+  }
+}
@@ -18,10 +18,18 @@ package io.bazel.kotlin.builder.toolchain
 
 import io.bazel.kotlin.builder.utils.BazelRunFiles
 import io.bazel.kotlin.builder.utils.verified
+import io.bazel.worker.Cancellation
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
 import java.io.File
 import java.io.PrintStream
 import java.lang.reflect.Method
+import java.net.JarURLConnection
 import java.net.URLClassLoader
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 class KotlinToolchain private constructor(
   private val baseJars: List<File>,
@@ -103,6 +111,9 @@ class KotlinToolchain private constructor(
 
     internal val NO_ARGS = arrayOf<Any>()
 
+    private const val BUILD_TOOLS_SERVICE =
+      "META-INF/services/org.jetbrains.kotlin.buildtools.api.CompilationService"
+
     @JvmStatic
     fun createToolchain(): KotlinToolchain =
       createToolchain(
@@ -166,11 +177,25 @@ class KotlinToolchain private constructor(
       )
   }
 
-  val classLoader by lazy {
-    URLClassLoader(
-      baseJars.map { it.toURI().toURL() }.toTypedArray(),
-      ClassLoader.getPlatformClassLoader(),
-    )
+  internal val toolchainClassLoader by lazy {
+    ToolchainClassLoader(baseJars.map { it.toURI().toURL() }.toTypedArray())
+  }
+
+  val classLoader: URLClassLoader get() = toolchainClassLoader
+
+  /**
+   * The Kotlin standard library next to the compiler in the Kotlin home, or else the one the
+   * builder runs with.
+   */
+  val stdlib: Path? by lazy {
+    baseJars
+      .first()
+      .resolveSibling("kotlin-stdlib.jar")
+      .takeIf(File::exists)
+      ?.toPath()
+      ?: runCatching {
+        Paths.get(KotlinVersion::class.java.protectionDomain.codeSource.location.toURI())
+      }.getOrNull()
   }
 
   data class CompilerPlugin(
@@ -181,13 +206,46 @@ class KotlinToolchain private constructor(
   open class KotlincInvoker internal constructor(
     toolchain: KotlinToolchain,
     clazz: String,
-  ) {
+    private val environment: RetainedCompilerEnvironment? = null,
+    private val pluginClassLoaders: PluginClassLoaderCache? = null,
+    private val processorClassLoaders: ProcessorClassLoaderCache? = null,
+  ) : Closeable {
+    private val toolchainJars = toolchain.baseJars.map { it.absoluteFile }.toSet()
+
+    private val compilerClass: Class<*> = toolchain.classLoader.loadClass(clazz)
     private val compiler: Any
     private val execMethod: Method
     private val getCodeMethod: Method
 
+    private val execIncrementalMethod: Method? by lazy {
+      compilerClass.methods.firstOrNull { it.name == "execIncremental" }
+    }
+
+    private val snapshotMethod: Method? by lazy {
+      compilerClass.methods.firstOrNull { it.name == "snapshotClasspathEntry" }
+    }
+
+    private val cancelMethod: Method? by lazy {
+      compilerClass.methods.firstOrNull { it.name == "cancel" }
+    }
+
+    /**
+     * The jar implementing the Build Tools API, whose version decides the format of classpath
+     * snapshots.
+     */
+    val buildToolsImplementation: Path by lazy {
+      val service =
+        checkNotNull(compilerClass.classLoader.getResource(BUILD_TOOLS_SERVICE)) {
+          "no Build Tools API implementation on the toolchain classpath"
+        }
+      Paths.get((service.openConnection() as JarURLConnection).jarFileURL.toURI())
+    }
+
+    /** True if the compiler can compile incrementally, i.e. it is the Build Tools API compiler. */
+    val supportsIncrementalCompilation: Boolean
+      get() = execIncrementalMethod != null && snapshotMethod != null
+
     init {
-      val compilerClass = toolchain.classLoader.loadClass(clazz)
       val exitCodeClass =
         toolchain.classLoader.loadClass("org.jetbrains.kotlin.cli.common.ExitCode")
 
@@ -204,15 +262,205 @@ class KotlinToolchain private constructor(
     fun compile(
       args: Array<String>,
       out: PrintStream,
+    ): Int = compile(args, out, emptyMap())
+
+    /**
+     * Compiles [args], where [inputDigests] holds the digests Bazel reported for the inputs of the
+     * request. They identify the classpath, plugin and [processorpath] jars when classes or the
+     * compiler environment are retained between compilations.
+     *
+     * Cancelling [cancellation] stops the compiler at its next cancellation check. A cancelled
+     * compilation may still return 0, callers check [cancellation] afterwards.
+     */
+    fun compile(
+      args: Array<String>,
+      out: PrintStream,
+      inputDigests: Map<String, String>,
+      processorpath: List<String> = emptyList(),
+      cancellation: Cancellation? = null,
     ): Int {
-      val exitCodeInstance = execMethod.invoke(compiler, out, args)
-      return getCodeMethod.invoke(exitCodeInstance, *NO_ARGS) as Int
+      if (processorClassLoaders == null || processorpath.isEmpty()) {
+        return withRetainedState(args, inputDigests, processorpath) {
+          exec(args, out, cancellation)
+        }
+      }
+      // A run repeated with processors loaded afresh only reports the output of its last attempt.
+      var attempt = ByteArrayOutputStream()
+      return withRetainedState(args, inputDigests, processorpath) {
+        attempt = ByteArrayOutputStream()
+        exec(args, PrintStream(attempt, true), cancellation)
+      }.also {
+        out.write(attempt.toByteArray())
+        out.flush()
+      }
+    }
+
+    private fun exec(
+      args: Array<String>,
+      out: PrintStream,
+      cancellation: Cancellation?,
+    ): Int =
+      cancellable(cancellation) {
+        val exitCodeInstance = execMethod.invoke(compiler, out, args)
+        getCodeMethod.invoke(exitCodeInstance, *NO_ARGS) as Int
+      }
+
+    private fun <T> cancellable(
+      cancellation: Cancellation?,
+      block: () -> T,
+    ): T {
+      val cancel = cancelMethod
+      if (cancellation == null || cancel == null) {
+        return block()
+      }
+      val thread = Thread.currentThread()
+      return cancellation.onCancel { cancel.invoke(compiler, thread) }.use { block() }
+    }
+
+    private fun <T> withRetainedState(
+      args: Array<String>,
+      inputDigests: Map<String, String>,
+      processorpath: List<String>,
+      block: () -> T,
+    ): T {
+      val inEnvironment = { environment?.use(classpathKeys(args, inputDigests), block) ?: block() }
+      val withProcessors = {
+        if (processorClassLoaders == null || processorpath.isEmpty()) {
+          inEnvironment()
+        } else {
+          processorClassLoaders.withProcessors(
+            key = jarsKey(processorpath, inputDigests),
+            jars = processorpath.map(::File),
+            block = inEnvironment,
+          )
+        }
+      }
+      if (pluginClassLoaders == null) {
+        return withProcessors()
+      }
+      val plugins =
+        args
+          .filter { it.startsWith("-Xplugin=") }
+          .flatMap { it.removePrefix("-Xplugin=").split(",") }
+          .filterNot { File(it).absoluteFile in toolchainJars }
+      return pluginClassLoaders.withPlugins(
+        key = jarsKey(plugins, inputDigests),
+        jars = plugins.map(::File),
+        block = withProcessors,
+      )
+    }
+
+    private fun jarsKey(
+      jars: List<String>,
+      inputDigests: Map<String, String>,
+    ): String = jars.joinToString("\n") { "$it=${inputKey(it, inputDigests)}" }
+
+    /**
+     * Compiles [sources] into [destination] reusing the incremental caches in [workingDir].
+     *
+     * [modified] and [removed] list the source changes since the previous successful
+     * compilation, null if they are unknown. Returns the same error codes as [compile].
+     */
+    fun compileIncrementally(
+      workingDir: String,
+      rootDir: String,
+      destination: String,
+      sources: List<String>,
+      modified: List<String>?,
+      removed: List<String>?,
+      classpathSnapshots: List<String>,
+      args: Array<String>,
+      out: PrintStream,
+      inputDigests: Map<String, String> = emptyMap(),
+      cancellation: Cancellation? = null,
+    ): Int {
+      val method =
+        checkNotNull(execIncrementalMethod) { "${compilerClass.name} is not incremental" }
+      return withRetainedState(args, inputDigests, emptyList()) {
+        cancellable(cancellation) {
+          val exitCodeInstance =
+            method.invoke(
+              compiler,
+              out,
+              workingDir,
+              rootDir,
+              destination,
+              sources.toTypedArray(),
+              modified?.toTypedArray(),
+              removed?.toTypedArray(),
+              classpathSnapshots.toTypedArray(),
+              args,
+            )
+          getCodeMethod.invoke(exitCodeInstance, *NO_ARGS) as Int
+        }
+      }
+    }
+
+    /** Writes the incremental compilation snapshot of a classpath [entry] to [snapshot]. */
+    fun snapshotClasspathEntry(
+      entry: String,
+      snapshot: String,
+    ) {
+      checkNotNull(snapshotMethod) { "${compilerClass.name} is not incremental" }
+        .invoke(compiler, entry, snapshot)
+    }
+
+    /** Releases any worker-lifetime state held by the compiler, e.g. Build Tools API sessions. */
+    override fun close() {
+      (compiler as? AutoCloseable)?.close()
     }
   }
 
+  /**
+   * Builds [KotlincInvoker]s, caching them for the lifetime of the worker.
+   *
+   * An invoker is keyed by the compiler entry point (K2 or the Build Tools API) and the set of
+   * toolchain jars it was loaded from. A cached invoker, and the single compiler entry point
+   * instance it holds, is shared by concurrent multiplex requests. This relies on the entry points
+   * keeping no compilation state in their instance: `BazelK2JVMCompiler.exec` creates a new
+   * `K2JVMCompiler` for every call, `BuildToolsAPICompiler` takes a session from its pool for
+   * every operation, and both key cancellation by the compiling thread.
+   *
+   * With [retainEnvironment] the invokers share a [RetainedCompilerEnvironment], so the compiler's
+   * application environment and open classpath jars outlive a single compilation. With a positive
+   * [pluginClassLoaderCacheSize] the classes of that many distinct sets of compiler plugin jars are
+   * kept loaded between compilations, and likewise [processorClassLoaderCacheSize] for kapt
+   * annotation processors.
+   */
   class KotlincInvokerBuilder(
     private val toolchain: KotlinToolchain,
-  ) {
+    retainEnvironment: Boolean,
+    pluginClassLoaderCacheSize: Int = 0,
+    processorClassLoaderCacheSize: Int = 0,
+  ) : Closeable {
+    constructor(toolchain: KotlinToolchain) : this(toolchain, retainEnvironment = false)
+
+    private val environment =
+      if (retainEnvironment) RetainedCompilerEnvironment(toolchain.classLoader) else null
+
+    private val pluginClassLoaders =
+      if (pluginClassLoaderCacheSize > 0) {
+        PluginClassLoaderCache(toolchain.toolchainClassLoader, pluginClassLoaderCacheSize)
+      } else {
+        null
+      }
+
+    private val processorClassLoaders =
+      if (processorClassLoaderCacheSize > 0) {
+        ProcessorClassLoaderCache(toolchain.toolchainClassLoader, processorClassLoaderCacheSize)
+      } else {
+        null
+      }
+
+    private data class InvokerKey(
+      val clazz: String,
+      val jars: Set<File>,
+    )
+
+    private val invokers = ConcurrentHashMap<InvokerKey, KotlincInvoker>()
+
+    val stats = InvokerCacheStats(environment, pluginClassLoaders, processorClassLoaders)
+
     fun build(useExperimentalBuildToolsAPI: Boolean): KotlincInvoker {
       val clazz =
         if (useExperimentalBuildToolsAPI) {
@@ -220,7 +468,73 @@ class KotlinToolchain private constructor(
         } else {
           "io.bazel.kotlin.compiler.BazelK2JVMCompiler"
         }
-      return KotlincInvoker(toolchain = toolchain, clazz = clazz)
+      val key = InvokerKey(clazz, toolchain.baseJars.toSet())
+      var created = false
+      return invokers
+        .computeIfAbsent(key) {
+          val start = System.nanoTime()
+          KotlincInvoker(
+            toolchain = toolchain,
+            clazz = clazz,
+            environment = environment,
+            pluginClassLoaders = pluginClassLoaders,
+            processorClassLoaders = processorClassLoaders,
+          ).also {
+            created = true
+            stats.setupNanos.addAndGet(System.nanoTime() - start)
+          }
+        }.also {
+          (if (created) stats.misses else stats.hits).incrementAndGet()
+        }
+    }
+
+    override fun close() {
+      invokers.values.forEach { runCatching { it.close() } }
+      invokers.clear()
+      environment?.close()
+      pluginClassLoaders?.close()
+      processorClassLoaders?.close()
     }
   }
+
+  /** Counters describing how often [KotlincInvokerBuilder] avoided creating a new invoker. */
+  class InvokerCacheStats internal constructor(
+    private val environment: RetainedCompilerEnvironment? = null,
+    private val pluginClassLoaders: PluginClassLoaderCache? = null,
+    private val processorClassLoaders: ProcessorClassLoaderCache? = null,
+  ) {
+    internal val hits = AtomicLong()
+    internal val misses = AtomicLong()
+    internal val setupNanos = AtomicLong()
+
+    /** Times a kapt run found its processor classes already loaded, or loaded them afresh. */
+    val processorClassLoaderHits: Long get() = processorClassLoaders?.hits?.get() ?: 0
+    val processorClassLoaderMisses: Long get() = processorClassLoaders?.misses?.get() ?: 0
+
+    /** Number of kapt processor classes kept loaded between runs. */
+    val processorClasses: Long get() = processorClassLoaders?.classes() ?: 0
+
+    /** kapt runs repeated because they changed the static state of reused processors. */
+    val repeatedProcessorRuns: Long get() = processorClassLoaders?.repeatedRuns?.get() ?: 0
+
+    fun lines(): List<String> =
+      listOf(
+        "hits: ${hits.get()}",
+        "misses: ${misses.get()}",
+        "setup: ${setupNanos.get() / 1_000_000} ms",
+      ) +
+        listOfNotNull(
+          environment?.let { "environment jar invalidations: ${it.invalidations.get()}" },
+          environment?.let { "environment disposals: ${it.disposals.get()}" },
+          pluginClassLoaders?.let { "plugin class loader hits: ${it.hits.get()}" },
+          pluginClassLoaders?.let { "plugin class loader misses: ${it.misses.get()}" },
+          processorClassLoaders?.let { "processor class loader hits: ${it.hits.get()}" },
+          processorClassLoaders?.let { "processor class loader misses: ${it.misses.get()}" },
+          processorClassLoaders?.let { "processor classes: ${it.classes()}" },
+          processorClassLoaders?.let { "repeated processor runs: ${it.repeatedRuns.get()}" },
+          processorClassLoaders?.let {
+            "stateful processor classpaths: ${it.statefulProcessorClasspaths()}"
+          },
+        )
+  }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+/**
+ * The performance report kotlinc writes with `-Xdump-perf`.
+ *
+ * [phases] are the compiler phases in the order they ran (e.g. `ANALYZE`, `IR LOWERING`,
+ * `BACKEND`) with their time in milliseconds, and [values] the other measurements of the report,
+ * such as the number of source lines and the GC and JIT time of the compiler.
+ */
+class KotlincPerfReport(
+  val phases: List<Pair<String, Long>>,
+  val values: Map<String, Long>,
+) {
+  companion object {
+    /** `ANALYZE    3243 ms    0.617 loc/s`, as reported since Kotlin 2.2. */
+    private val PHASE = Regex("""^\s*([A-Za-z][A-Za-z -]*?)\s+(\d+) ms(\s+[\d.,]+ loc/s)?\s*$""")
+
+    /** `ANALYZE: 1 files (4 lines) in 1202 ms - 3.328 loc/s`, as reported before. */
+    private val LEGACY_PHASE = Regex("""^\s*([A-Z][A-Za-z -]*?): .*\bin (\d+) ms\b.*$""")
+
+    private val SOURCES = Regex("""(\d+) files \((\d+) lines\)""")
+    private val GC = Regex("""GC time for (.+) is (\d+) ms, (\d+) collections""")
+    private val JIT = Regex("""JIT time is (\d+) ms""")
+
+    fun parse(lines: List<String>): KotlincPerfReport {
+      val phases = mutableListOf<Pair<String, Long>>()
+      val values = linkedMapOf<String, Long>()
+      lines.map { it.removePrefix("PERF:").trimEnd() }.forEach { line ->
+        SOURCES.find(line)?.let {
+          values["files"] = it.groupValues[1].toLong()
+          values["lines"] = it.groupValues[2].toLong()
+        }
+        val gc = GC.find(line)
+        val jit = JIT.find(line)
+        val phase = PHASE.matchEntire(line) ?: LEGACY_PHASE.matchEntire(line)
+        when {
+          gc != null -> {
+            values["gc_ms"] = (values["gc_ms"] ?: 0L) + gc.groupValues[2].toLong()
+            values["gc_count"] = (values["gc_count"] ?: 0L) + gc.groupValues[3].toLong()
+          }
+          jit != null -> values["jit_ms"] = jit.groupValues[1].toLong()
+          phase != null -> phases += phase.groupValues[1].trim() to phase.groupValues[2].toLong()
+        }
+      }
+      return KotlincPerfReport(phases, values)
+    }
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import io.bazel.worker.HeapPressure
+import java.io.Closeable
+import java.io.File
+import java.lang.reflect.Modifier
+import java.net.URL
+import java.net.URLClassLoader
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * The class loader of the compiler.
+ *
+ * kotlinc loads compiler plugins into a fresh class loader for every compilation, parented to this
+ * one, and kapt does the same for annotation processors. When the compiling thread has cached
+ * [PluginClassLoader]s installed, classes that are not part of the toolchain are served from them,
+ * so the fresh loaders (which delegate to their parent first) end up with classes that were loaded
+ * and initialized by an earlier compilation.
+ */
+class ToolchainClassLoader(
+  urls: Array<URL>,
+) : URLClassLoader(urls, ClassLoader.getPlatformClassLoader()) {
+  companion object {
+    init {
+      ClassLoader.registerAsParallelCapable()
+    }
+  }
+
+  /** The plugin loaders installed by one [withPlugins] call, emptied when the call returns. */
+  private class Scope(
+    @Volatile var loaders: List<PluginClassLoader>,
+  )
+
+  /**
+   * Inherited, so that threads started by the compiler resolve plugin classes the same way. A
+   * thread that outlives the call that started it keeps only the emptied scope, rather than
+   * pinning loaders that the cache may since have evicted and closed.
+   */
+  private val plugins =
+    object : InheritableThreadLocal<Scope>() {
+      override fun initialValue(): Scope = Scope(emptyList())
+    }
+
+  override fun findClass(name: String): Class<*> =
+    try {
+      super.findClass(name)
+    } catch (e: ClassNotFoundException) {
+      plugins.get().loaders.firstNotNullOfOrNull { it.findLocal(name) } ?: throw e
+    }
+
+  fun <T> withPlugins(
+    loader: PluginClassLoader,
+    block: () -> T,
+  ): T {
+    val previous = plugins.get()
+    val scope = Scope(previous.loaders + loader)
+    plugins.set(scope)
+    try {
+      return block()
+    } finally {
+      scope.loaders = emptyList()
+      plugins.set(previous)
+    }
+  }
+}
+
+/** Holds the classes of a set of compiler plugin jars across compilations. */
+class PluginClassLoader(
+  urls: Array<URL>,
+  parent: ToolchainClassLoader,
+) : URLClassLoader(urls, parent) {
+  companion object {
+    init {
+      ClassLoader.registerAsParallelCapable()
+    }
+  }
+
+  /** Every class defined by this loader, in definition order. */
+  private val defined = ConcurrentLinkedQueue<Class<*>>()
+
+  /** Number of classes defined by this loader. */
+  val classes: Int get() = defined.size
+
+  override fun findClass(name: String): Class<*> = super.findClass(name).also { defined += it }
+
+  /**
+   * A fingerprint of the static state of the classes defined so far, by field. Values are
+   * fingerprinted by identity, except for collections, maps, arrays and atomics, which are
+   * fingerprinted by their contents, so state kept in a final static field shows as well.
+   */
+  fun staticState(): Map<String, Int> =
+    defined
+      .flatMap { type ->
+        try {
+          type.declaredFields.filter { Modifier.isStatic(it.modifiers) && !it.isSynthetic }
+        } catch (e: LinkageError) {
+          emptyList()
+        }
+      }.mapNotNull { field ->
+        try {
+          field.isAccessible = true
+          "${field.declaringClass.name}.${field.name}" to fingerprint(field.get(null))
+        } catch (e: RuntimeException) {
+          null
+        } catch (e: LinkageError) {
+          null
+        }
+      }.toMap()
+
+  private fun fingerprint(value: Any?): Int =
+    when (value) {
+      null -> 0
+      is Double, is Float -> value.hashCode()
+      // Atomic numbers and adders by value, which their hashCode is not.
+      is Number -> value.toLong().hashCode()
+      is String, is Boolean, is Char, is AtomicBoolean -> value.toString().hashCode()
+      is Collection<*> -> 31 * value.size + identities(value)
+      is Map<*, *> -> 31 * value.size + identities(value.keys) + 7 * identities(value.values)
+      is Array<*> -> 31 * value.size + identities(value.asList())
+      is AtomicReference<*> -> System.identityHashCode(value.get())
+      else -> System.identityHashCode(value)
+    }
+
+  private fun identities(values: Iterable<*>): Int = values.sumOf { System.identityHashCode(it) }
+
+  /**
+   * Finds [name] in the plugin jars without delegating to the parent, which is what is asking.
+   *
+   * No class loading lock is taken here: the parent already holds its own lock for [name], and a
+   * concurrent definition of the same class is resolved by returning the winner.
+   */
+  fun findLocal(name: String): Class<*>? =
+    findLoadedClass(name) ?: try {
+      findClass(name)
+    } catch (e: ClassNotFoundException) {
+      null
+    } catch (e: LinkageError) {
+      findLoadedClass(name) ?: throw e
+    }
+}
+
+/**
+ * A bounded, least recently used cache of [PluginClassLoader]s.
+ *
+ * Loaders are keyed by the plugin jars and their digests, so a rebuilt plugin gets a new loader
+ * and the stale one ages out. An evicted loader is closed once the last compilation using it
+ * finishes.
+ */
+class PluginClassLoaderCache(
+  private val toolchainLoader: ToolchainClassLoader,
+  private val maxEntries: Int,
+) : Closeable {
+  private inner class Entry(
+    jars: List<File>,
+  ) {
+    val loader = PluginClassLoader(jars.map { it.toURI().toURL() }.toTypedArray(), toolchainLoader)
+    var leases = 0
+    var evicted = false
+
+    fun closeIfUnused() {
+      if (evicted && leases == 0) {
+        loader.close()
+      }
+    }
+  }
+
+  private val entries =
+    object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>): Boolean =
+        (size > maxEntries).also {
+          if (it) {
+            eldest.value.evicted = true
+            eldest.value.closeIfUnused()
+          }
+        }
+    }
+
+  val hits = AtomicLong()
+  val misses = AtomicLong()
+
+  /** Number of classes defined by the loaders currently cached. */
+  fun classes(): Long =
+    synchronized(entries) {
+      entries.values.sumOf { it.loader.classes.toLong() }
+    }
+
+  /**
+   * Runs [block] with the plugin classes of [jars] served from a cached loader. [key] identifies
+   * the contents of [jars].
+   */
+  fun <T> withPlugins(
+    key: String,
+    jars: List<File>,
+    block: () -> T,
+  ): T = withLoader(key, jars) { block() }
+
+  /** Like [withPlugins], passing the loader serving the classes of [jars] to [block]. */
+  fun <T> withLoader(
+    key: String,
+    jars: List<File>,
+    block: (PluginClassLoader?) -> T,
+  ): T {
+    if (maxEntries <= 0 || jars.isEmpty()) {
+      return block(null)
+    }
+    val entry =
+      synchronized(entries) {
+        val cached = entries[key]
+        (if (cached != null) hits else misses).incrementAndGet()
+        (cached ?: Entry(jars).also { entries[key] = it }).apply { leases++ }
+      }
+    try {
+      return toolchainLoader.withPlugins(entry.loader) { block(entry.loader) }
+    } finally {
+      synchronized(entries) {
+        entry.leases--
+        entry.closeIfUnused()
+      }
+    }
+  }
+
+  /** Drops the loader cached for [key], it is closed once no compilation uses it. */
+  fun evict(key: String) {
+    synchronized(entries) {
+      entries.remove(key)?.apply {
+        evicted = true
+        closeIfUnused()
+      }
+    }
+  }
+
+  override fun close() {
+    synchronized(entries) {
+      entries.values.forEach {
+        it.evicted = true
+        it.closeIfUnused()
+      }
+      entries.clear()
+    }
+  }
+}
+
+/**
+ * Keeps annotation processor classes loaded between kapt runs.
+ *
+ * Processors are only safe to reuse if they keep no state in static fields. Every run on a reused
+ * loader compares the [PluginClassLoader.staticState] it started with to the one it leaves: if
+ * the run changed it, the run may have seen state left by an earlier one, so the loader is
+ * dropped and the run is repeated with processors loaded afresh, as every later run of that
+ * processor classpath in this worker is. State that a run reads without changing it is not
+ * detected, which is why the cache is opt-in.
+ */
+class ProcessorClassLoaderCache(
+  toolchainLoader: ToolchainClassLoader,
+  maxEntries: Int,
+) : Closeable {
+  private val loaders = PluginClassLoaderCache(toolchainLoader, maxEntries)
+
+  /** Keys of processor classpaths that keep state in static fields. */
+  private val stateful = ConcurrentHashMap.newKeySet<String>()
+
+  val hits get() = loaders.hits
+  val misses get() = loaders.misses
+
+  /** Runs that changed the static state of reused processors, and were repeated. */
+  val repeatedRuns = AtomicLong()
+
+  init {
+    HeapPressure.onPressure(loaders::close)
+  }
+
+  fun classes(): Long = loaders.classes()
+
+  /**
+   * Runs [block] with the classes of the processor classpath [jars] served from a cached loader,
+   * or twice if the first run turns out to change their static state. [key] identifies the
+   * contents of [jars].
+   */
+  fun <T> withProcessors(
+    key: String,
+    jars: List<File>,
+    block: () -> T,
+  ): T {
+    if (key in stateful) {
+      return block()
+    }
+    var changed = false
+    val result =
+      loaders.withLoader(key, jars) { loader ->
+        val before = loader?.staticState()
+        block().also {
+          val after = loader?.staticState()
+          changed = before != null && after != null && before.any { (k, v) -> after[k] != v }
+        }
+      }
+    if (!changed) {
+      return result
+    }
+    stateful += key
+    loaders.evict(key)
+    repeatedRuns.incrementAndGet()
+    return block()
+  }
+
+  fun statefulProcessorClasspaths(): Int = stateful.size
+
+  override fun close() {
+    loaders.close()
+  }
+}
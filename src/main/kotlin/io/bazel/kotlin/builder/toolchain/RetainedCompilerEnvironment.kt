@@ -0,0 +1,177 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import io.bazel.worker.HeapPressure
+import java.io.Closeable
+import java.io.File
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * Keeps the compiler's application environment (the IntelliJ core application and the jar file
+ * system with its open jar handles) alive between compilations in the toolchain class loader.
+ *
+ * The jar file system caches the contents of a jar by path. Bazel reuses paths for changed jars,
+ * so every compilation reports the key (digest) of each classpath jar, and the jar caches are
+ * dropped whenever a path shows up with a different key. The whole environment is disposed when
+ * the worker runs low on heap, and is rebuilt by the next compilation.
+ *
+ * Compilations share the environment concurrently under a read lock. Only a compilation that
+ * sees a changed jar, or a pending disposal, takes the write lock, which waits for the running
+ * compilations to finish.
+ */
+class RetainedCompilerEnvironment(
+  private val clearJarCaches: () -> Unit,
+  private val dispose: () -> Unit,
+) : Closeable {
+  companion object {
+    /** Keeps the application environment alive once the last project using it is disposed. */
+    private const val KEEPALIVE_PROPERTY = "kotlin.environment.keepalive"
+    private const val CORE_ENVIRONMENT = "io.bazel.kotlin.compiler.CoreEnvironment"
+  }
+
+  /** The environment of the compiler loaded by [classLoader]. */
+  internal constructor(classLoader: ClassLoader) : this(
+    classLoader.loadClass(CORE_ENVIRONMENT).getMethod("clearJarCaches"),
+    classLoader.loadClass(CORE_ENVIRONMENT).getMethod("dispose"),
+  )
+
+  private constructor(clearJarCaches: Method, dispose: Method) : this(
+    { clearJarCaches.invoke(null) },
+    { dispose.invoke(null) },
+  ) {
+    System.setProperty(KEEPALIVE_PROPERTY, "true")
+  }
+
+  private val lock = ReentrantReadWriteLock()
+
+  /**
+   * The key of every classpath jar seen since the environment was created. Jars seen for the
+   * first time are added under the read lock, changed keys are replaced under the write lock.
+   */
+  private val jarKeys = ConcurrentHashMap<String, String>()
+
+  @Volatile
+  private var disposeRequested = false
+
+  val invalidations = AtomicLong()
+  val disposals = AtomicLong()
+
+  init {
+    HeapPressure.onPressure(::release)
+  }
+
+  /**
+   * Runs [block] against the retained environment, once the jars in [classpath] (path to key)
+   * are known to be current.
+   */
+  fun <T> use(
+    classpath: Map<String, String>,
+    block: () -> T,
+  ): T {
+    val read = lock.readLock()
+    read.lock()
+    if (disposeRequested || !isCurrent(classpath)) {
+      read.unlock()
+      invalidate(classpath)
+    }
+    try {
+      return block()
+    } finally {
+      read.unlock()
+    }
+  }
+
+  private fun isCurrent(classpath: Map<String, String>): Boolean =
+    classpath.all { (jar, key) -> (jarKeys.putIfAbsent(jar, key) ?: key) == key }
+
+  /** Brings the environment up to date with [classpath], returning holding the read lock. */
+  private fun invalidate(classpath: Map<String, String>) {
+    val write = lock.writeLock()
+    write.lock()
+    try {
+      if (disposeRequested) {
+        disposeLocked()
+      }
+      val changed =
+        classpath.count { (jar, key) -> jarKeys.put(jar, key).let { it != null && it != key } }
+      if (changed > 0) {
+        clearJarCaches()
+        invalidations.incrementAndGet()
+      }
+      lock.readLock().lock()
+    } finally {
+      write.unlock()
+    }
+  }
+
+  /**
+   * Frees the retained environment: immediately if no compilation is running, otherwise before
+   * the next one starts.
+   */
+  fun release() {
+    disposeRequested = true
+    val write = lock.writeLock()
+    if (write.tryLock()) {
+      try {
+        if (disposeRequested) {
+          disposeLocked()
+        }
+      } finally {
+        write.unlock()
+      }
+    }
+  }
+
+  private fun disposeLocked() {
+    dispose()
+    jarKeys.clear()
+    disposeRequested = false
+    disposals.incrementAndGet()
+  }
+
+  override fun close() {
+    release()
+  }
+}
+
+/**
+ * The jars on the `-cp` of [args], keyed by the digest Bazel reported for them, or by size and
+ * modification time when there is none.
+ */
+internal fun classpathKeys(
+  args: Array<String>,
+  inputDigests: Map<String, String>,
+): Map<String, String> {
+  val index = args.indexOf("-cp")
+  if (index < 0 || index + 1 >= args.size) {
+    return emptyMap()
+  }
+  return args[index + 1]
+    .split(File.pathSeparator)
+    .filter { it.endsWith(".jar") }
+    .associateWith { jar -> inputKey(jar, inputDigests) }
+}
+
+/** The digest Bazel reported for [path], or its size and modification time. */
+fun inputKey(
+  path: String,
+  inputDigests: Map<String, String>,
+): String = inputDigests[path] ?: File(path).let { "${it.length()}:${it.lastModified()}" }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Spans of a single action in the Chrome trace-event format, as read by `chrome://tracing` and
+ * Perfetto.
+ *
+ * Timestamps are wall-clock microseconds since the epoch, so the spans of the worker can be merged
+ * with the output of Bazel's `--profile` (after shifting by its start time). Every span carries the
+ * [label] and [mnemonic] of the action, and nested spans share the thread of the action.
+ */
+class TraceEvents(
+  private val label: String,
+  private val mnemonic: String,
+) {
+  private val epochMicros = System.currentTimeMillis() * 1000
+  private val originNanos = System.nanoTime()
+  private val events = mutableListOf<String>()
+
+  /** Wall-clock microseconds of a [System.nanoTime] reading. */
+  fun micros(nanos: Long): Long = epochMicros + (nanos - originNanos) / 1000
+
+  /** Records a complete span called [name] from [startNanos] to [endNanos]. */
+  fun span(
+    name: String,
+    startNanos: Long,
+    endNanos: Long,
+    args: Map<String, Any> = emptyMap(),
+  ) {
+    complete(name, micros(startNanos), (endNanos - startNanos) / 1000, args)
+  }
+
+  /** Records a complete span called [name] starting at [tsMicros] that lasted [durMicros]. */
+  @Synchronized
+  fun complete(
+    name: String,
+    tsMicros: Long,
+    durMicros: Long,
+    args: Map<String, Any> = emptyMap(),
+  ) {
+    events +=
+      buildString {
+        append("{\"name\":").append(quote(name))
+        append(",\"cat\":").append(quote(mnemonic))
+        append(",\"ph\":\"X\",\"ts\":").append(tsMicros)
+        append(",\"dur\":").append(durMicros.coerceAtLeast(0))
+        append(",\"pid\":").append(PID)
+        append(",\"tid\":").append(Thread.currentThread().id)
+        append(",\"args\":{\"label\":").append(quote(label))
+        append(",\"mnemonic\":").append(quote(mnemonic))
+        args.forEach { (k, v) ->
+          append(',').append(quote(k)).append(':')
+          append(if (v is Number) v.toString() else quote(v.toString()))
+        }
+        append("}}")
+      }
+  }
+
+  /** Writes the recorded spans to [file] as a trace-event JSON object. */
+  @Synchronized
+  fun write(file: Path) {
+    val json =
+      buildString {
+        append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n")
+        append(events.joinToString(",\n"))
+        append("\n]}\n")
+      }
+    file.parent?.let(Files::createDirectories)
+    Files.write(file, json.toByteArray(UTF_8))
+  }
+
+  private companion object {
+    val PID: Long = ProcessHandle.current().pid()
+
+    fun quote(value: String): String =
+      buildString {
+        append('"')
+        value.forEach { c ->
+          when {
+            c == '"' -> append("\\\"")
+            c == '\\' -> append("\\\\")
+            c < ' ' -> append("\\u%04x".format(c.code))
+            else -> append(c)
+          }
+        }
+        append('"')
+      }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.bazel.kotlin.builder.utils
+
+/**
+ * Separates the startup options of a builder binary from its request arguments.
+ *
+ * Startup options come from the toolchain's `builder_args`. They precede the flagfile, so Bazel
+ * makes them part of the worker command line (and the worker key) and they apply to every request
+ * the worker serves. Every binary shares the same `builder_args` and ignores options it does not
+ * know about.
+ */
+object StartupArgs {
+  /** Startup options understood by every worker binary. */
+  enum class WorkerOptions(
+    override val flag: String,
+  ) : Flag {
+    /** Maximum number of multiplex requests running at once, 0 for no limit. */
+    MAX_PARALLELISM("--worker_max_parallelism"),
+
+    /** File the metrics of every request are appended to, relative to the worker directory. */
+    METRICS_FILE("--worker_metrics_file"),
+
+    /** Directory, e.g. on a tmpfs, that holds the scratch directories of unsandboxed requests. */
+    SCRATCH_ROOT("--worker_scratch_root"),
+
+    /** File, relative to the worker directory, that keeps the durations of earlier requests. */
+    COST_HISTORY("--worker_cost_history"),
+  }
+
+  private val REQUEST_ARG = Regex("""^(--persistent_worker|--flagfile=.+|@.+)$""")
+
+  @JvmStatic
+  fun split(args: List<String>): Pair<ArgMap, List<String>> {
+    val (request, startup) = args.partition(REQUEST_ARG::matches)
+    return (if (startup.isEmpty()) ArgMap(emptyMap()) else ArgMaps.from(startup)) to request
+  }
+}
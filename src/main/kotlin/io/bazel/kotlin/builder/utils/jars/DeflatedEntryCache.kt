@@ -0,0 +1,91 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils.jars
+
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Deflated contents of jar entries, kept by a persistent worker between requests so that the
+ * classes an edit did not change are not compressed again.
+ *
+ * Contents are keyed by their SHA-256 digest. Deflating the same bytes at the same level always
+ * gives the same data, so a jar made from cached entries is the same as one compressed afresh.
+ * The least recently used entries are dropped once the cache holds more than [maxBytes] of
+ * deflated data; contents too large to fit comfortably are never cached.
+ */
+class DeflatedEntryCache(
+  private val maxBytes: Long,
+) {
+  companion object {
+    /** Share of [maxBytes] above which the content of an entry is not cached. */
+    private const val MAX_ENTRY_SHARE = 16
+  }
+
+  internal class Deflated(
+    val crc: Long,
+    val data: ByteArray,
+  )
+
+  private val entries = LinkedHashMap<String, Deflated>(16, 0.75f, true)
+  private var bytes = 0L
+
+  private val hits = AtomicLong()
+  private val misses = AtomicLong()
+
+  /** The deflated [content], from the cache or else by calling [deflate] and caching the result. */
+  internal fun deflated(
+    content: ByteArray,
+    deflate: (ByteArray) -> Deflated,
+  ): Deflated {
+    if (content.size > maxBytes / MAX_ENTRY_SHARE) {
+      return deflate(content)
+    }
+    val digest = MessageDigest.getInstance("SHA-256").digest(content)
+    val key = Base64.getEncoder().encodeToString(digest)
+    synchronized(this) { entries[key] }?.let {
+      hits.incrementAndGet()
+      return it
+    }
+    misses.incrementAndGet()
+    return deflate(content).also { put(key, it) }
+  }
+
+  @Synchronized
+  private fun put(
+    key: String,
+    deflated: Deflated,
+  ) {
+    entries.put(key, deflated)?.let { bytes -= it.data.size }
+    bytes += deflated.data.size
+    val eldest = entries.values.iterator()
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().data.size
+      eldest.remove()
+    }
+  }
+
+  fun lines(): List<String> =
+    synchronized(this) {
+      listOf(
+        "hits: ${hits.get()}",
+        "misses: ${misses.get()}",
+        "entries: ${entries.size}",
+        "size: ${bytes / 1024} KiB",
+      )
+    }
+}
@@ -28,24 +28,47 @@ import java.nio.file.Paths.get
 import java.nio.file.SimpleFileVisitor
 import java.nio.file.attribute.BasicFileAttributes
 import java.util.TreeMap
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
 import java.util.jar.Attributes
-import java.util.jar.JarOutputStream
 import java.util.jar.Manifest
+import java.util.zip.ZipFile
 
 /**
  * A class for creating Jar files. Allows normalization of Jar entries by setting their timestamp to
  * the DOS epoch. All Jar entries are sorted alphabetically.
+ *
+ * Entries are compressed in parallel on [executor] and written in order, so the Jar file is the
+ * same whichever threads compress it. Without [compression], entries are stored as they are, for
+ * intermediate jars that are merged and compressed by another action.
  */
 @Suppress("unused")
 class JarCreator(
   path: Path,
   normalize: Boolean = true,
   verbose: Boolean = false,
-) : JarHelper(path, normalize, verbose),
+  compression: Boolean = true,
+  private val executor: Executor = COMPRESSION,
+  cache: DeflatedEntryCache? = null,
+) : JarHelper(path, normalize, verbose, compression, cache),
   Closeable {
+  companion object {
+    /** Entries being compressed ahead of the one being written, per jar. */
+    private const val COMPRESSION_WINDOW = 256
+
+    /** Threads compressing the entries of every jar the builder creates. */
+    private val COMPRESSION: Executor =
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) { runnable ->
+        Thread(runnable, "jar-compression").apply { isDaemon = true }
+      }
+  }
+
   // Map from Jar entry names to files. Use TreeMap so we can establish a canonical order for the
   // entries regardless in what order they get added.
-  private val jarEntries = TreeMap<String, Path>()
+  private val jarEntries = TreeMap<String, Source>()
   private var manifestFile: String? = null
   private var mainClass: String? = null
   private var targetLabel: String? = null
@@ -76,7 +99,7 @@ class JarCreator(
     } else if (normalizedEntryName.startsWith("./")) {
       normalizedEntryName = normalizedEntryName.substring(2)
     }
-    return jarEntries.put(normalizedEntryName, path) == null
+    return jarEntries.put(normalizedEntryName, Source.File(path)) == null
   }
 
   /**
@@ -144,7 +167,7 @@ class JarCreator(
             if (isDirectory) {
               sb.append('/')
             }
-            jarEntries[sb.toString()] = path
+            jarEntries[sb.toString()] = Source.File(path)
           }
         },
       )
@@ -153,6 +176,35 @@ class JarCreator(
     }
   }
 
+  /**
+   * Adds the contents of a jar to the Jar file, under the same names. Entries for the parent
+   * directories are added where the jar lacks them, so that the result is the same as adding a
+   * directory with the same files. The manifest of the jar is not copied, it is always written
+   * first.
+   *
+   * The contents are read when the Jar file is created, the jar must not change until then.
+   *
+   * @param jar the jar to add
+   */
+  fun addJar(jar: Path) {
+    if (!Files.exists(jar)) {
+      throw IllegalArgumentException("jar does not exist: $jar")
+    }
+    ZipFile(jar.toFile()).use { zip ->
+      for (entry in zip.entries()) {
+        if (entry.name == MANIFEST_NAME || entry.name == MANIFEST_DIR) {
+          continue
+        }
+        var parent = entry.name.trimEnd('/').substringBeforeLast('/', "")
+        while (parent.isNotEmpty() && "$parent/" != MANIFEST_DIR) {
+          jarEntries.putIfAbsent("$parent/", Source.Entry(jar, "$parent/"))
+          parent = parent.substringBeforeLast('/', "")
+        }
+        jarEntries[entry.name] = Source.Entry(jar, entry.name)
+      }
+    }
+  }
+
   /**
    * Adds a collection of entries to the jar, each with a given source path, and with the resulting
    * file in the root of the jar.
@@ -164,7 +216,7 @@ class JarCreator(
   fun addRootEntries(entries: Collection<String>) {
     for (entry in entries) {
       val path = get(entry)
-      jarEntries[path.fileName.toString()] = path
+      jarEntries[path.fileName.toString()] = Source.File(path)
     }
   }
 
@@ -239,15 +291,76 @@ class JarCreator(
   @Throws(IOException::class)
   fun execute() {
     Files.newOutputStream(jarPath).use { os ->
-      BufferedOutputStream(os).use { bos ->
-        JarOutputStream(bos).use { out ->
-          // Create the manifest entry in the Jar file
-          writeManifestEntry(out, manifestContent())
+      ZipWriter(BufferedOutputStream(os)).use { out ->
+        // Create the manifest entry in the Jar file
+        writeManifestEntry(out, manifestContent())
+        val zips = ConcurrentHashMap<Path, ZipFile>()
+        // Entries are compressed on the compression threads, a window ahead of the one written,
+        // and written in the order of their names.
+        val pending = ArrayDeque<CompletableFuture<PreparedEntry>>()
+        try {
           for ((key, value) in jarEntries) {
-            out.copyEntry(key, value)
+            pending.addLast(
+              CompletableFuture.supplyAsync({ prepare(key, value, zips) }, executor),
+            )
+            if (pending.size >= COMPRESSION_WINDOW) {
+              out.writeEntry(pending.removeFirst().await())
+            }
           }
+          while (pending.isNotEmpty()) {
+            out.writeEntry(pending.removeFirst().await())
+          }
+        } finally {
+          // Entries still being prepared may read from, or open, the zips: they are closed only
+          // once every preparation has finished. Cancelling would not stop a running one.
+          pending.forEach { runCatching { it.join() } }
+          zips.values.forEach(ZipFile::close)
         }
       }
     }
   }
+
+  private fun prepare(
+    name: String,
+    source: Source,
+    zips: ConcurrentHashMap<Path, ZipFile>,
+  ): PreparedEntry =
+    when (source) {
+      is Source.File -> prepareEntry(name, source.path)
+      is Source.Entry ->
+        prepareEntry(
+          name,
+          source.jar,
+          if (name.endsWith("/")) {
+            EMPTY_BYTEARRAY
+          } else {
+            zips
+              .computeIfAbsent(source.jar) { ZipFile(it.toFile()) }
+              .let { zip -> zip.getInputStream(zip.getEntry(source.name)) }
+              .use { it.readBytes() }
+          },
+        )
+    }
+
+  /** Waits for the entry, rethrowing the exception that failed its preparation. */
+  private fun CompletableFuture<PreparedEntry>.await(): PreparedEntry =
+    try {
+      join()
+    } catch (e: CompletionException) {
+      throw e.cause ?: e
+    }
+
+  /** Where the content of an entry is read from. */
+  private sealed interface Source {
+    /** A file or directory on disk. */
+    data class File(
+      val path: Path,
+    ) : Source
+
+    /** The entry [name] of [jar]. */
+    data class Entry(
+      val jar: Path,
+      val name: String,
+    ) : Source
+  }
 }
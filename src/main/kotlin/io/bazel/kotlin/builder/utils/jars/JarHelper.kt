@@ -18,8 +18,10 @@
 
 package io.bazel.kotlin.builder.utils.jars
 
+import java.io.ByteArrayOutputStream
 import java.io.FileNotFoundException
 import java.io.IOException
+import java.io.OutputStream
 import java.nio.file.Files
 import java.nio.file.Path
 import java.util.Calendar
@@ -28,8 +30,9 @@ import java.util.HashSet
 import java.util.jar.Attributes
 import java.util.jar.JarEntry
 import java.util.jar.JarFile
-import java.util.jar.JarOutputStream
 import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.Deflater
 
 /**
  * A simple helper class for creating Jar files. All Jar entries are sorted alphabetically. Allows
@@ -45,6 +48,8 @@ open class JarHelper internal constructor(
   protected val normalize: Boolean = true,
   protected val verbose: Boolean = false,
   compression: Boolean = true,
+  // Deflated contents reused from earlier jars, if any
+  private val cache: DeflatedEntryCache? = null,
 ) {
   private var storageMethod: Int = JarEntry.DEFLATED
 
@@ -91,167 +96,122 @@ open class JarHelper internal constructor(
     if (normalize) normalizedTimestamp(filename) else System.currentTimeMillis()
 
   /**
-   * Writes an entry with specific contents to the jar. Directory entries must include the trailing
-   * '/'.
+   * Prepares an entry with specific contents for the jar, compressing them with the storage method
+   * of the jar unless they are empty. Directory entries must include the trailing '/'.
    */
-  @Throws(IOException::class)
-  private fun writeEntry(
-    out: JarOutputStream,
+  internal fun prepareEntry(
     name: String,
+    time: Long,
     content: ByteArray,
-  ) {
-    if (names.add(name)) {
-      // Create a new entry
-      val entry = JarEntry(name)
-      entry.time = newEntryTimeMillis(name)
-      val size = content.size
-      entry.size = size.toLong()
-      if (size == 0) {
-        entry.method = JarEntry.STORED
-        entry.crc = 0
-        out.putNextEntry(entry)
-      } else {
-        entry.method = storageMethod
-        if (storageMethod == JarEntry.STORED) {
-          val crc = CRC32()
-          crc.update(content)
-          entry.crc = crc.value
-        }
-        out.putNextEntry(entry)
-        out.write(content)
-      }
-      out.closeEntry()
+    method: Int = storageMethod,
+  ): PreparedEntry {
+    if (content.isEmpty()) {
+      return PreparedEntry(name, time, JarEntry.STORED, 0, 0, EMPTY_BYTEARRAY)
+    }
+    if (method == JarEntry.DEFLATED) {
+      val deflated = cache?.deflated(content, ::deflate) ?: deflate(content)
+      return PreparedEntry(name, time, method, deflated.crc, content.size.toLong(), deflated.data)
+    }
+    val crc = CRC32()
+    crc.update(content)
+    return PreparedEntry(name, time, method, crc.value, content.size.toLong(), content)
+  }
+
+  /**
+   * Writes [entry] into the jar, unless an entry with the same name was written before.
+   */
+  internal fun ZipWriter.writeEntry(entry: PreparedEntry) {
+    if (names.add(entry.name)) {
+      write(entry)
     }
   }
 
   /**
-   * Writes a standard Java manifest entry into the JarOutputStream. This includes the directory
-   * entry for the "META-INF" directory
+   * Writes a standard Java manifest entry into the jar. This includes the directory entry for the
+   * "META-INF" directory
    *
    * @param content the Manifest content to write to the manifest entry.
-   * @throws IOException
    */
-  @Throws(IOException::class)
-  protected fun writeManifestEntry(
-    out: JarOutputStream,
+  internal fun writeManifestEntry(
+    out: ZipWriter,
     content: ByteArray,
   ) {
-    val oldStorageMethod = storageMethod
+    out.writeEntry(prepareEntry(MANIFEST_DIR, newEntryTimeMillis(MANIFEST_DIR), EMPTY_BYTEARRAY))
     // Do not compress small manifest files, the compressed one is frequently
     // larger than the original. The threshold of 256 bytes is somewhat arbitrary.
-    if (content.size < 256) {
-      storageMethod = JarEntry.STORED
-    }
-    try {
-      writeEntry(out, MANIFEST_DIR, byteArrayOf())
-      writeEntry(out, MANIFEST_NAME, content)
-    } finally {
-      storageMethod = oldStorageMethod
-    }
+    out.writeEntry(
+      prepareEntry(
+        MANIFEST_NAME,
+        newEntryTimeMillis(MANIFEST_NAME),
+        content,
+        if (content.size < 256) JarEntry.STORED else storageMethod,
+      ),
+    )
   }
 
   /**
-   * Copies file or directory entries from the file system into the jar. Directory entries will be
-   * detected and their names automatically '/' suffixed.
+   * Prepares a file or directory entry from the file system for the jar. Directory entries will be
+   * detected and their names automatically '/' suffixed. Safe to call from several threads.
    */
   @Throws(IOException::class)
-  protected fun JarOutputStream.copyEntry(
+  internal fun prepareEntry(
     name: String,
     path: Path,
-  ) {
-    var normalizedName = name
-    if (!names.contains(normalizedName)) {
-      if (!Files.exists(path)) {
-        throw FileNotFoundException("${path.toAbsolutePath()} (No such file or directory)")
-      }
-      val isDirectory = Files.isDirectory(path)
-      if (isDirectory && !normalizedName.endsWith("/")) {
-        normalizedName = "$normalizedName/" // always normalize directory names before checking set
+  ): PreparedEntry {
+    if (!Files.exists(path)) {
+      throw FileNotFoundException("${path.toAbsolutePath()} (No such file or directory)")
+    }
+    val isDirectory = Files.isDirectory(path)
+    // always normalize directory names before checking set
+    val normalizedName = if (isDirectory && !name.endsWith("/")) "$name/" else name
+    if (verbose) {
+      System.err.println("adding $path")
+    }
+    val time =
+      if (normalize) {
+        normalizedTimestamp(normalizedName)
+      } else {
+        Files.getLastModifiedTime(path).toMillis()
       }
-      if (names.add(normalizedName)) {
-        if (verbose) {
-          System.err.println("adding $path")
-        }
-        // Create a new entry
-        val size = if (isDirectory) 0 else Files.size(path)
-        val outEntry = JarEntry(normalizedName)
-        val newtime =
-          if (normalize) {
-            normalizedTimestamp(normalizedName)
-          } else {
-            Files
-              .getLastModifiedTime(path)
-              .toMillis()
-          }
-        outEntry.time = newtime
-        outEntry.size = size
-        if (size == 0L) {
-          outEntry.method = JarEntry.STORED
-          outEntry.crc = 0
-          putNextEntry(outEntry)
-        } else {
-          outEntry.method = storageMethod
-          if (storageMethod == JarEntry.STORED) {
-            // ZipFile requires us to calculate the CRC-32 for any STORED entry.
-            // It would be nicer to do this via DigestInputStream, but
-            // the architecture of ZipOutputStream requires us to know the CRC-32
-            // before we write the data to the stream.
-            val bytes = Files.readAllBytes(path)
-            val crc = CRC32()
-            crc.update(bytes)
-            outEntry.crc = crc.value
-            putNextEntry(outEntry)
-            write(bytes)
-          } else {
-            putNextEntry(outEntry)
-            Files.copy(path, this)
-          }
+    val size = if (isDirectory) 0 else Files.size(path)
+    if (storageMethod == JarEntry.STORED && size > 0) {
+      // ZipFile requires us to calculate the CRC-32 for any STORED entry before its data. It is
+      // computed while streaming the file, which is then copied into the jar when written.
+      val crc =
+        CheckedInputStream(Files.newInputStream(path), CRC32()).use {
+          it.transferTo(OutputStream.nullOutputStream())
+          it.checksum.value
         }
-        closeEntry()
-      }
+      return PreparedEntry(normalizedName, time, JarEntry.STORED, crc, size, null, path)
     }
+    return prepareEntry(
+      normalizedName,
+      time,
+      if (isDirectory) EMPTY_BYTEARRAY else Files.readAllBytes(path),
+    )
   }
 
   /**
-   * Copies a a single entry into the jar. This variant differs from the other [copyEntry] in two ways. Firstly the
-   * jar contents are already loaded in memory and Secondly the [name] and [path] entries don't necessarily have a
-   * correspondence.
+   * Prepares a single entry for the jar. This variant differs from the other [prepareEntry] in two
+   * ways. Firstly the jar contents are already loaded in memory and Secondly the [name] and [path]
+   * entries don't necessarily have a correspondence.
    *
    * @param path the path used to retrieve the timestamp in case normalize is disabled.
    * @param data if this is empty array then the entry is a directory.
    */
-  protected fun JarOutputStream.copyEntry(
+  internal fun prepareEntry(
     name: String,
-    path: Path? = null,
-    data: ByteArray = EMPTY_BYTEARRAY,
-  ) {
-    val outEntry = JarEntry(name)
-    outEntry.time =
+    path: Path?,
+    data: ByteArray,
+  ): PreparedEntry =
+    prepareEntry(
+      name,
       when {
         normalize -> normalizedTimestamp(name)
         else -> Files.getLastModifiedTime(checkNotNull(path)).toMillis()
-      }
-    outEntry.size = data.size.toLong()
-
-    if (data.isEmpty()) {
-      outEntry.method = JarEntry.STORED
-      outEntry.crc = 0
-      putNextEntry(outEntry)
-    } else {
-      outEntry.method = storageMethod
-      if (storageMethod == JarEntry.STORED) {
-        val crc = CRC32()
-        crc.update(data)
-        outEntry.crc = crc.value
-        putNextEntry(outEntry)
-        write(data)
-      } else {
-        putNextEntry(outEntry)
-        write(data)
-      }
-    }
-    closeEntry()
-  }
+      },
+      data,
+    )
 
   companion object {
     const val MANIFEST_DIR = "META-INF/"
@@ -272,5 +232,23 @@ open class JarHelper internal constructor(
     // ZIP timestamps have a resolution of 2 seconds.
     // see http://www.info-zip.org/FAQ.html#limits
     const val MINIMUM_TIMESTAMP_INCREMENT = 2000L
+
+    /** A deflater for each thread preparing entries, as the ones of a ZipOutputStream. */
+    private val DEFLATER = ThreadLocal.withInitial { Deflater(Deflater.DEFAULT_COMPRESSION, true) }
+
+    private fun deflate(content: ByteArray): DeflatedEntryCache.Deflated {
+      val crc = CRC32()
+      crc.update(content)
+      val deflater = DEFLATER.get()
+      deflater.reset()
+      deflater.setInput(content)
+      deflater.finish()
+      val out = ByteArrayOutputStream(content.size / 2 + 64)
+      val buffer = ByteArray(8192)
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer))
+      }
+      return DeflatedEntryCache.Deflated(crc.value, out.toByteArray())
+    }
   }
 }
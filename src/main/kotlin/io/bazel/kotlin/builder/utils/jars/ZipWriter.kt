@@ -0,0 +1,239 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils.jars
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Instant
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.zip.ZipEntry
+
+/**
+ * An entry ready to be written to a zip: [data] holds its content deflated if [method] is
+ * [ZipEntry.DEFLATED], as is if it is [ZipEntry.STORED]. Stored entries may instead be copied from
+ * [file] when they are written, with [crc] computed beforehand.
+ */
+internal class PreparedEntry(
+  val name: String,
+  val time: Long,
+  val method: Int,
+  val crc: Long,
+  val size: Long,
+  val data: ByteArray?,
+  val file: Path? = null,
+) {
+  /** The number of bytes the entry takes in the zip. */
+  val compressedSize: Long
+    get() = data?.size?.toLong() ?: size
+}
+
+/**
+ * Writes zip files from [PreparedEntry]s, whose contents are compressed beforehand. Unlike
+ * [java.util.zip.ZipOutputStream], entries can be compressed on other threads and written in the
+ * order they are given, so the zip stays the same however the compression is scheduled.
+ *
+ * Local headers carry the sizes and CRC of the entries, so no data descriptors are written. The
+ * first entry is marked as the start of a jar, as [java.util.jar.JarOutputStream] does. Zip64
+ * records are written only when the number of entries or the offsets need them.
+ */
+internal class ZipWriter(
+  private val out: OutputStream,
+) : Closeable {
+  companion object {
+    private const val LOCAL_HEADER = 0x04034b50L
+    private const val CENTRAL_HEADER = 0x02014b50L
+    private const val END = 0x06054b50L
+    private const val ZIP64_END = 0x06064b50L
+    private const val ZIP64_LOCATOR = 0x07064b50L
+
+    private const val JAR_MAGIC = 0xCAFE
+    private const val ZIP64_EXTRA = 0x0001
+
+    /** Names are always written in UTF-8. */
+    private const val UTF8_FLAG = 0x800
+
+    private const val VERSION_STORED = 10
+    private const val VERSION_DEFLATED = 20
+    private const val VERSION_ZIP64 = 45
+
+    private const val MAX_16 = 0xFFFF
+    private const val MAX_32 = 0xFFFFFFFFL
+
+    /** The MS-DOS date and time of [millis] in the local time zone, as zip entries store them. */
+    private fun dosTime(millis: Long): Long {
+      val time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault())
+      if (time.year < 1980) {
+        return (1L shl 21) or (1L shl 16)
+      }
+      return (
+        ((time.year - 1980) shl 25) or (time.monthValue shl 21) or (time.dayOfMonth shl 16) or
+          (time.hour shl 11) or (time.minute shl 5) or (time.second shr 1)
+      ).toLong()
+    }
+  }
+
+  /** The fields of a written entry its central directory record needs, without its data. */
+  private class Written(
+    val name: ByteArray,
+    val version: Int,
+    val method: Int,
+    val time: Long,
+    val crc: Long,
+    val compressedSize: Long,
+    val size: Long,
+    val offset: Long,
+    val extra: ByteArray,
+  )
+
+  private val written = mutableListOf<Written>()
+  private var offset = 0L
+
+  /** Writes the local header and the data of [entry]. */
+  fun write(entry: PreparedEntry) {
+    val name = entry.name.toByteArray(Charsets.UTF_8)
+    val extra = if (written.isEmpty()) jarMagic() else ByteArray(0)
+    val header = ByteArrayOutputStream(30 + name.size + extra.size)
+    with(header) {
+      int(LOCAL_HEADER)
+      short(version(entry))
+      short(UTF8_FLAG)
+      short(entry.method)
+      int(dosTime(entry.time))
+      int(entry.crc)
+      int(entry.compressedSize)
+      int(entry.size)
+      short(name.size)
+      short(extra.size)
+      write(name)
+      write(extra)
+    }
+    written +=
+      Written(
+        name = name,
+        version = version(entry),
+        method = entry.method,
+        time = dosTime(entry.time),
+        crc = entry.crc,
+        compressedSize = entry.compressedSize,
+        size = entry.size,
+        offset = offset,
+        extra = extra,
+      )
+    header.writeTo(out)
+    entry.data?.let(out::write) ?: Files.copy(checkNotNull(entry.file), out)
+    offset += header.size() + entry.compressedSize
+  }
+
+  /** Writes the central directory and closes the stream. */
+  override fun close() {
+    out.use {
+      val directory = ByteArrayOutputStream()
+      for (record in written) {
+        val zip64 = record.offset >= MAX_32
+        val extra =
+          if (zip64) {
+            ByteArrayOutputStream().apply {
+              short(ZIP64_EXTRA)
+              short(8)
+              long(record.offset)
+            }.toByteArray() + record.extra
+          } else {
+            record.extra
+          }
+        with(directory) {
+          int(CENTRAL_HEADER)
+          short(if (zip64) VERSION_ZIP64 else record.version)
+          short(if (zip64) VERSION_ZIP64 else record.version)
+          short(UTF8_FLAG)
+          short(record.method)
+          int(record.time)
+          int(record.crc)
+          int(record.compressedSize)
+          int(record.size)
+          short(record.name.size)
+          short(extra.size)
+          // Comment length, disk number, internal and external attributes.
+          short(0)
+          short(0)
+          short(0)
+          int(0)
+          int(record.offset.coerceAtMost(MAX_32))
+          write(record.name)
+          write(extra)
+        }
+      }
+      val start = offset
+      val end = ByteArrayOutputStream()
+      with(end) {
+        if (written.size >= MAX_16 || start >= MAX_32) {
+          int(ZIP64_END)
+          long(44)
+          short(VERSION_ZIP64)
+          short(VERSION_ZIP64)
+          int(0)
+          int(0)
+          long(written.size.toLong())
+          long(written.size.toLong())
+          long(directory.size().toLong())
+          long(start)
+          int(ZIP64_LOCATOR)
+          int(0)
+          long(start + directory.size())
+          int(1)
+        }
+        int(END)
+        short(0)
+        short(0)
+        short(written.size.coerceAtMost(MAX_16))
+        short(written.size.coerceAtMost(MAX_16))
+        int(directory.size().toLong())
+        int(start.coerceAtMost(MAX_32))
+        short(0)
+      }
+      directory.writeTo(out)
+      end.writeTo(out)
+    }
+  }
+
+  private fun version(entry: PreparedEntry) =
+    if (entry.method == ZipEntry.DEFLATED) VERSION_DEFLATED else VERSION_STORED
+
+  private fun jarMagic() =
+    ByteArrayOutputStream()
+      .apply {
+        short(JAR_MAGIC)
+        short(0)
+      }.toByteArray()
+
+  private fun ByteArrayOutputStream.short(value: Int) {
+    write(value and 0xFF)
+    write((value shr 8) and 0xFF)
+  }
+
+  private fun ByteArrayOutputStream.int(value: Long) {
+    short((value and 0xFFFF).toInt())
+    short(((value shr 16) and 0xFFFF).toInt())
+  }
+
+  private fun ByteArrayOutputStream.long(value: Long) {
+    int(value and MAX_32)
+    int(value ushr 32)
+  }
+}
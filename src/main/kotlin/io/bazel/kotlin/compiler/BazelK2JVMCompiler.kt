@@ -20,9 +20,26 @@ import org.jetbrains.kotlin.cli.common.messages.MessageRenderer
 import org.jetbrains.kotlin.cli.common.messages.PrintingMessageCollector
 import org.jetbrains.kotlin.cli.jvm.K2JVMCompiler
 import org.jetbrains.kotlin.config.Services
+import org.jetbrains.kotlin.progress.CompilationCanceledException
+import org.jetbrains.kotlin.progress.CompilationCanceledStatus
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * The entry point of the compiler for the builder.
+ *
+ * One instance serves every concurrent compilation of a worker, so no compilation state may be
+ * kept in it: [exec] creates a new [K2JVMCompiler] for every call.
+ */
 @Suppress("unused")
 class BazelK2JVMCompiler {
+  /**
+   * The cancellation flags of the compilations currently executing, by the thread executing them.
+   * Each compilation has its own flag, so a cancellation that races its end cannot leak into the
+   * next compilation on the same thread.
+   */
+  private val running = ConcurrentHashMap<Thread, AtomicBoolean>()
+
   fun exec(
     errStream: java.io.PrintStream,
     vararg args: String,
@@ -32,6 +49,35 @@ class BazelK2JVMCompiler {
     val arguments = delegate.createArguments().also { delegate.parseArguments(args, it) }
     val collector =
       PrintingMessageCollector(errStream, MessageRenderer.PLAIN_RELATIVE_PATHS, arguments.verbose)
-    return delegate.exec(collector, Services.EMPTY, arguments)
+    val thread = Thread.currentThread()
+    val cancelled = AtomicBoolean()
+    val services =
+      Services
+        .Builder()
+        .register(
+          CompilationCanceledStatus::class.java,
+          object : CompilationCanceledStatus {
+            override fun checkCanceled() {
+              if (cancelled.get()) {
+                throw CompilationCanceledException()
+              }
+            }
+          },
+        ).build()
+    running[thread] = cancelled
+    try {
+      return delegate.exec(collector, services, arguments)
+    } finally {
+      running.remove(thread, cancelled)
+    }
+  }
+
+  /**
+   * Cancels the compilation running on [thread], if any, which stops at the compiler's next
+   * cancellation check. The compiler reports a cancelled compilation as successful, callers must
+   * check for cancellation themselves.
+   */
+  fun cancel(thread: Thread) {
+    running[thread]?.set(true)
   }
 }
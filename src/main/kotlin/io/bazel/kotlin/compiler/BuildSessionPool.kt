@@ -0,0 +1,107 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.compiler
+
+import org.jetbrains.kotlin.buildtools.api.ExperimentalBuildToolsApi
+import org.jetbrains.kotlin.buildtools.api.KotlinToolchains
+import java.time.Duration
+
+/**
+ * A pool of Build Tools API sessions owned by the worker.
+ *
+ * A session is leased by one compilation at a time and returned to the pool afterwards, so any
+ * state the implementation keeps inside a session survives between requests. Sessions are retired
+ * after [maxUses] operations or once they sit idle for longer than [maxIdle], and at most
+ * [maxIdleSessions] are kept around. [close] tears down every pooled session.
+ */
+@OptIn(ExperimentalBuildToolsApi::class)
+class BuildSessionPool(
+  private val toolchains: KotlinToolchains,
+  private val maxUses: Int = 100,
+  private val maxIdle: Duration = Duration.ofMinutes(15),
+  private val maxIdleSessions: Int = Runtime.getRuntime().availableProcessors(),
+) : AutoCloseable {
+  private class PooledSession(
+    val session: KotlinToolchains.BuildSession,
+  ) {
+    var uses = 0
+    var returnedAt = System.nanoTime()
+  }
+
+  private val idle = ArrayDeque<PooledSession>()
+  private var closed = false
+
+  fun <T> withSession(block: (KotlinToolchains.BuildSession) -> T): T {
+    val pooled = lease()
+    var healthy = false
+    try {
+      return block(pooled.session).also { healthy = true }
+    } finally {
+      release(pooled, healthy)
+    }
+  }
+
+  private fun lease(): PooledSession {
+    val expired = mutableListOf<PooledSession>()
+    val reused =
+      synchronized(idle) {
+        check(!closed) { "build session pool is closed" }
+        val now = System.nanoTime()
+        var found: PooledSession? = null
+        while (found == null && idle.isNotEmpty()) {
+          val candidate = idle.removeLast()
+          if (now - candidate.returnedAt > maxIdle.toNanos()) {
+            expired += candidate
+          } else {
+            found = candidate
+          }
+        }
+        found
+      }
+    expired.forEach(::retire)
+    return reused ?: PooledSession(toolchains.createBuildSession())
+  }
+
+  private fun release(
+    pooled: PooledSession,
+    healthy: Boolean,
+  ) {
+    pooled.uses += 1
+    pooled.returnedAt = System.nanoTime()
+    val keep =
+      healthy &&
+        pooled.uses < maxUses &&
+        synchronized(idle) {
+          (!closed && idle.size < maxIdleSessions).also { if (it) idle.addLast(pooled) }
+        }
+    if (!keep) {
+      retire(pooled)
+    }
+  }
+
+  private fun retire(pooled: PooledSession) {
+    runCatching { pooled.session.close() }
+  }
+
+  override fun close() {
+    val sessions =
+      synchronized(idle) {
+        closed = true
+        idle.toList().also { idle.clear() }
+      }
+    sessions.forEach(::retire)
+  }
+}
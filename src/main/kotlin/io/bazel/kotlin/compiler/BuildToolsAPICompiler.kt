@@ -15,24 +15,44 @@
  */
 package io.bazel.kotlin.compiler
 
+import org.jetbrains.kotlin.buildtools.api.BuildOperation
 import org.jetbrains.kotlin.buildtools.api.CompilationResult
 import org.jetbrains.kotlin.buildtools.api.ExperimentalBuildToolsApi
 import org.jetbrains.kotlin.buildtools.api.KotlinToolchains
+import org.jetbrains.kotlin.buildtools.api.SourcesChanges
 import org.jetbrains.kotlin.buildtools.api.jvm.JvmPlatformToolchain.Companion.jvm
+import org.jetbrains.kotlin.buildtools.api.jvm.JvmSnapshotBasedIncrementalCompilationConfiguration
+import org.jetbrains.kotlin.buildtools.api.jvm.JvmSnapshotBasedIncrementalCompilationOptions
+import org.jetbrains.kotlin.buildtools.api.jvm.operations.JvmCompilationOperation
 import org.jetbrains.kotlin.cli.common.ExitCode
 import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * Compiles through the Build Tools API.
+ *
+ * An instance is cached by the builder for the lifetime of the worker, so the toolchain
+ * implementation and its build sessions are loaded once and shared by every request.
+ */
 @Suppress("unused")
-class BuildToolsAPICompiler {
-  @OptIn(ExperimentalBuildToolsApi::class)
+@OptIn(ExperimentalBuildToolsApi::class)
+class BuildToolsAPICompiler : AutoCloseable {
+  private val kotlinToolchains by lazy {
+    KotlinToolchains.loadImplementation(this.javaClass.classLoader!!)
+  }
+
+  private val pool = lazy { BuildSessionPool(kotlinToolchains) }
+  private val sessions by pool
+
+  /** The operations currently executing, by the thread executing them. */
+  private val running = ConcurrentHashMap<Thread, BuildOperation<*>>()
+
   fun exec(
     errStream: java.io.PrintStream,
     vararg args: String,
   ): ExitCode {
     System.setProperty("zip.handler.uses.crc.instead.of.timestamp", "true")
 
-    val kotlinToolchains = KotlinToolchains.loadImplementation(this.javaClass.classLoader!!)
-
     // Create compilation operation with empty sources and dummy destination
     // (the actual sources/destination will be set via applyArgumentStrings)
     val operation =
@@ -47,16 +67,120 @@ class BuildToolsAPICompiler {
 
     // Execute the compilation
     val result =
-      kotlinToolchains.createBuildSession().use { session ->
-        session.executeOperation(operation)
+      sessions.withSession { session ->
+        session.executeCancellable(operation)
       }
 
-    // BTAPI returns a different type than K2JVMCompiler (CompilationResult vs ExitCode).
-    return when (result) {
+    return result.toExitCode()
+  }
+
+  /**
+   * Compiles [sources] into [destination] incrementally, keeping the IC caches under [workingDir].
+   *
+   * [modified] and [removed] are the source changes since the last successful compilation against
+   * the same [workingDir]. When they are null the changes are unknown and the Build Tools API
+   * recompiles everything, rebuilding its caches. Paths in the caches are stored relative to
+   * [rootDir] so that they survive a change of execution root.
+   */
+  fun execIncremental(
+    errStream: java.io.PrintStream,
+    workingDir: String,
+    rootDir: String,
+    destination: String,
+    sources: Array<String>,
+    modified: Array<String>?,
+    removed: Array<String>?,
+    classpathSnapshots: Array<String>,
+    vararg args: String,
+  ): ExitCode {
+    System.setProperty("zip.handler.uses.crc.instead.of.timestamp", "true")
+
+    val operation =
+      kotlinToolchains.jvm.createJvmCompilationOperation(
+        sources.map { Path.of(it) },
+        Path.of(destination),
+      )
+    operation.compilerArguments.applyArgumentStrings(args.toList())
+
+    val options =
+      operation.createSnapshotBasedIcOptions().apply {
+        this[JvmSnapshotBasedIncrementalCompilationOptions.ROOT_PROJECT_DIR] = Path.of(rootDir)
+        this[JvmSnapshotBasedIncrementalCompilationOptions.MODULE_BUILD_DIR] = Path.of(workingDir)
+      }
+    operation[JvmCompilationOperation.INCREMENTAL_COMPILATION] =
+      JvmSnapshotBasedIncrementalCompilationConfiguration(
+        Path.of(workingDir, "caches"),
+        if (modified != null && removed != null) {
+          SourcesChanges.Known(
+            modified.map { java.io.File(it) },
+            removed.map { java.io.File(it) },
+          )
+        } else {
+          SourcesChanges.Unknown
+        },
+        classpathSnapshots.map { Path.of(it) },
+        Path.of(workingDir, "shrunk-classpath-snapshot.bin"),
+        options,
+      )
+
+    return sessions
+      .withSession { session ->
+        session.executeCancellable(operation)
+      }.toExitCode()
+  }
+
+  /**
+   * Writes the Build Tools API snapshot of a classpath entry (a jar or a class directory) to
+   * [snapshot], for use as one of the classpathSnapshots of [execIncremental].
+   */
+  fun snapshotClasspathEntry(
+    entry: String,
+    snapshot: String,
+  ) {
+    val operation = kotlinToolchains.jvm.createClasspathSnapshottingOperation(Path.of(entry))
+    sessions
+      .withSession { session ->
+        session.executeCancellable(operation)
+      }.saveSnapshot(Path.of(snapshot))
+  }
+
+  /**
+   * Cancels the operation running on [thread].
+   *
+   * Build Tools API versions without operation cancellation run the operation to completion, and
+   * callers must check for cancellation themselves once it returns.
+   */
+  fun cancel(thread: Thread) {
+    val operation = running[thread] ?: return
+    operation.javaClass.methods
+      .firstOrNull { it.name == "cancel" && it.parameterCount == 0 }
+      ?.invoke(operation)
+  }
+
+  private fun <R> KotlinToolchains.BuildSession.executeCancellable(
+    operation: BuildOperation<R>,
+  ): R {
+    val thread = Thread.currentThread()
+    running[thread] = operation
+    try {
+      return executeOperation(operation)
+    } finally {
+      running.remove(thread)
+    }
+  }
+
+  // BTAPI returns a different type than K2JVMCompiler (CompilationResult vs ExitCode).
+  private fun CompilationResult.toExitCode(): ExitCode =
+    when (this) {
       CompilationResult.COMPILATION_SUCCESS -> ExitCode.OK
       CompilationResult.COMPILATION_ERROR -> ExitCode.COMPILATION_ERROR
       CompilationResult.COMPILATION_OOM_ERROR -> ExitCode.OOM_ERROR
       CompilationResult.COMPILER_INTERNAL_ERROR -> ExitCode.INTERNAL_ERROR
     }
+
+  override fun close() {
+    if (pool.isInitialized()) {
+      sessions.close()
+    }
   }
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.compiler
+
+import com.intellij.openapi.vfs.impl.jar.CoreJarFileSystem
+import org.jetbrains.kotlin.cli.jvm.compiler.KotlinCoreEnvironment
+
+/**
+ * Manages the application environment the compiler keeps alive between compilations when the
+ * `kotlin.environment.keepalive` property is set.
+ *
+ * Callers must make sure no compilation is running while these are invoked.
+ */
+@Suppress("unused")
+object CoreEnvironment {
+  /** Drops the cached jar file handles, e.g. because a classpath jar changed on disk. */
+  @JvmStatic
+  fun clearJarCaches() {
+    KotlinCoreEnvironment.applicationEnvironment?.apply {
+      fastJarFileSystem?.clearHandlersCache()
+      (jarFileSystem as? CoreJarFileSystem)?.clearHandlersCache()
+      idleCleanup()
+    }
+  }
+
+  /** Disposes the retained application environment, releasing all memory held by it. */
+  @JvmStatic
+  fun dispose() {
+    KotlinCoreEnvironment.disposeApplicationEnvironment()
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Decides when a multiplex request may start.
+ *
+ * At most [maxParallelism] requests run at once. Each request declares an estimate of the heap it
+ * needs, and a request waits while the estimates of the running requests would exceed
+ * [heapBudget] of the maximum heap, or while the heap is more than [occupancyLimit] full after the
+ * last collection. A request is always admitted when nothing else is running, so a single request
+ * larger than the budget still makes progress: while it is first in line, no other request starts,
+ * so that the worker drains for it.
+ *
+ * Waiting requests start in order of their estimated cost, most expensive first, so the long
+ * requests of a build do not end up running alone at its end. Cheaper requests start ahead of
+ * expensive ones that do not fit yet, and requests of equal cost start in arrival order. Once a
+ * request has waited [maxHeadStartMillis] it starts ahead of every other, and no request behind it
+ * starts until it does, so no request is held back by more expensive ones for longer than that.
+ *
+ * While requests wait on a full heap, [relieve] is called (at most every few seconds, outside the
+ * lock so that finishing requests are not held up) to drop the worker's caches and collect, so that
+ * cached state does not hold up new work.
+ *
+ * [nanoTime] is the clock that arrival times and head starts are measured with.
+ */
+class AdmissionControl(
+  private val maxParallelism: Int = Int.MAX_VALUE,
+  private val heapBudget: Double = 0.8,
+  private val occupancyLimit: Double = 0.85,
+  private val maxHeap: Long = Runtime.getRuntime().maxMemory(),
+  private val occupancy: () -> Double = HeapPressure::occupancyAfterGc,
+  private val relieve: () -> Unit = HeapPressure::relieveAndCollect,
+  private val maxHeadStartMillis: Long = MAX_HEAD_START_MILLIS,
+  private val nanoTime: () -> Long = System::nanoTime,
+) {
+  companion object {
+    /** How often a waiting request re-checks the heap when no running request has finished. */
+    private const val RECHECK_MILLIS = 250L
+
+    /** Minimum time between two attempts at relieving the heap for waiting requests. */
+    private const val RELIEVE_INTERVAL_MILLIS = 5_000L
+
+    /** The longest a request waits for more expensive requests that arrived after it. */
+    const val MAX_HEAD_START_MILLIS = 10_000L
+
+    private const val BASE_ESTIMATE = 64L shl 20
+    private const val SOURCE_ESTIMATE = 512L shl 10
+    private const val JAR_ESTIMATE = 1L shl 20
+
+    /**
+     * Estimates the heap a request needs from the paths of its inputs: a fixed base, plus a share
+     * for every source file and every jar (which the compiler indexes when it is on the classpath).
+     */
+    @JvmStatic
+    fun estimateHeap(inputs: Collection<String>): Long =
+      BASE_ESTIMATE +
+        inputs.count { it.endsWith(".kt") || it.endsWith(".java") } * SOURCE_ESTIMATE +
+        inputs.count { it.endsWith(".jar") || it.endsWith(".srcjar") } * JAR_ESTIMATE
+
+    /** Runs at most [maxParallelism] requests at once, or any number if it is null or 0. */
+    @JvmStatic
+    fun withMaxParallelism(maxParallelism: Int?): AdmissionControl =
+      AdmissionControl(
+        maxParallelism = maxParallelism?.takeIf { it > 0 } ?: Int.MAX_VALUE,
+      )
+  }
+
+  private val lock = ReentrantLock()
+  private val finished = lock.newCondition()
+  private var running = 0
+  private var reserved = 0L
+  private var alone = false
+  private var closed = false
+  private var relieved = 0L
+  private val waiting = mutableListOf<Waiter>()
+
+  private inner class Waiter(
+    val estimate: Long,
+    val cost: Long,
+  ) {
+    private val arrived = nanoTime()
+
+    /** Whether the request only fits when nothing else is running. */
+    val overBudget = estimate > maxHeap * heapBudget
+
+    /** Whether the request has waited long enough to start ahead of every other. */
+    fun overdue(now: Long) = now - arrived >= maxHeadStartMillis * 1_000_000
+
+    /** Whether the request should start before [other]. */
+    fun outranks(
+      other: Waiter,
+      now: Long,
+    ): Boolean =
+      when {
+        overdue(now) != other.overdue(now) -> overdue(now)
+        overdue(now) || cost == other.cost -> arrived < other.arrived
+        else -> cost > other.cost
+      }
+  }
+
+  /**
+   * Runs [block] once a request needing [estimate] bytes of heap may start, and no waiting request
+   * that should start first could start instead. [cost] is the expected duration in milliseconds.
+   */
+  fun <T> admit(
+    estimate: Long,
+    cost: Long = 0,
+    block: () -> T,
+  ): T {
+    val waiter = Waiter(estimate, cost)
+    lock.withLock { waiting += waiter }
+    try {
+      while (true) {
+        val admission =
+          lock.withLock {
+            admission(waiter).also {
+              when (it) {
+                Admission.NOW -> {
+                  running++
+                  reserved += estimate
+                }
+                Admission.AFTER_RELIEF -> {}
+                Admission.LATER -> finished.await(RECHECK_MILLIS, TimeUnit.MILLISECONDS)
+              }
+            }
+          }
+        when (admission) {
+          Admission.NOW -> break
+          Admission.AFTER_RELIEF -> relieve()
+          Admission.LATER -> {}
+        }
+      }
+    } finally {
+      lock.withLock {
+        waiting -= waiter
+        // The next waiter in line may start now.
+        finished.signalAll()
+      }
+    }
+    return runAdmitted(estimate, block)
+  }
+
+  /**
+   * Runs [block] once no other request is running, and admits no other request until it is done.
+   * Used to retry a request that ran out of heap.
+   */
+  fun <T> admitAlone(block: () -> T): T {
+    lock.withLock {
+      while (closed || alone || running > 0) {
+        finished.await(RECHECK_MILLIS, TimeUnit.MILLISECONDS)
+      }
+      running++
+      alone = true
+    }
+    try {
+      return runAdmitted(0, block)
+    } finally {
+      lock.withLock {
+        alone = false
+        finished.signalAll()
+      }
+    }
+  }
+
+  /** Number of requests waiting to start. */
+  fun waitingRequests(): Int = lock.withLock { waiting.size }
+
+  /** Stops admitting requests, and waits for the running ones to finish. */
+  fun close() {
+    lock.withLock {
+      closed = true
+      while (running > 0) {
+        finished.await()
+      }
+    }
+  }
+
+  private fun <T> runAdmitted(
+    estimate: Long,
+    block: () -> T,
+  ): T {
+    try {
+      return block()
+    } finally {
+      lock.withLock {
+        running--
+        reserved -= estimate
+        finished.signalAll()
+      }
+    }
+  }
+
+  /**
+   * Whether no other waiting request that should start before [waiter] either [fits], or is
+   * overdue or over the budget and so holds back the requests behind it.
+   */
+  private fun isNext(waiter: Waiter): Boolean {
+    val now = nanoTime()
+    return waiting.none {
+      it !== waiter &&
+        it.outranks(waiter, now) &&
+        (it.overdue(now) || it.overBudget || fits(it.estimate))
+    }
+  }
+
+  /** Whether a request needing [estimate] fits the parallelism and heap budget. */
+  private fun fits(estimate: Long): Boolean =
+    !closed &&
+      !alone &&
+      (
+        running == 0 ||
+          (running < maxParallelism && reserved + estimate <= maxHeap * heapBudget)
+      )
+
+  private enum class Admission {
+    /** The request starts now. */
+    NOW,
+
+    /** The request is next and fits, but the heap is full: relieve it and check again. */
+    AFTER_RELIEF,
+
+    /** The request waits for a running request to finish, or for the next recheck. */
+    LATER,
+  }
+
+  private fun admission(waiter: Waiter): Admission {
+    if (!isNext(waiter) || !fits(waiter.estimate)) {
+      return Admission.LATER
+    }
+    if (running == 0 || occupancy() <= occupancyLimit) {
+      return Admission.NOW
+    }
+    val now = System.currentTimeMillis()
+    if (now - relieved >= RELIEVE_INTERVAL_MILLIS) {
+      relieved = now
+      return Admission.AFTER_RELIEF
+    }
+    return Admission.LATER
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+
+/**
+ * A log that holds at most [limit] bytes in memory, however much is written to it.
+ *
+ * The first half of the limit keeps the start of the log, and a ring buffer the most recent half.
+ * Anything in between is replaced by a truncation marker. With a [spill] file, a log that
+ * overflows is also written there in full, and the marker points to it.
+ */
+internal class BoundedLog(
+  limit: Int,
+  private val spill: Path? = null,
+) : OutputStream() {
+  private val headLimit = limit / 2
+  private val tailLimit = limit - headLimit
+
+  private val head = ByteArrayOutputStream()
+  private var tail: ByteArray? = null
+  private var tailStart = 0
+  private var tailSize = 0
+  private var dropped = 0L
+
+  private var spilled = false
+  private var spillOut: OutputStream? = null
+
+  @Synchronized
+  override fun write(b: Int) {
+    write(byteArrayOf(b.toByte()), 0, 1)
+  }
+
+  @Synchronized
+  override fun write(
+    b: ByteArray,
+    off: Int,
+    len: Int,
+  ) {
+    if (spilled) {
+      spillStream()?.write(b, off, len)
+    }
+    val toHead = minOf(len, headLimit - head.size())
+    if (toHead > 0) {
+      head.write(b, off, toHead)
+    }
+    if (toHead == len) {
+      return
+    }
+    if (!spilled && spill != null) {
+      spilled = true
+      spillStream()?.run {
+        head.writeTo(this)
+        write(b, off + toHead, len - toHead)
+      }
+    }
+    appendToTail(b, off + toHead, len - toHead)
+  }
+
+  private fun appendToTail(
+    b: ByteArray,
+    off: Int,
+    len: Int,
+  ) {
+    val ring = tail ?: ByteArray(tailLimit).also { tail = it }
+    if (ring.isEmpty()) {
+      dropped += len
+      return
+    }
+    // Only the last bytes of a large write can survive.
+    val skip = maxOf(0, len - ring.size)
+    val count = len - skip
+    val overflow = tailSize + count - ring.size
+    if (overflow > 0) {
+      tailStart = (tailStart + overflow) % ring.size
+      tailSize -= overflow
+    }
+    dropped += skip + maxOf(0, overflow)
+    val end = (tailStart + tailSize) % ring.size
+    val firstRun = minOf(count, ring.size - end)
+    System.arraycopy(b, off + skip, ring, end, firstRun)
+    System.arraycopy(b, off + skip + firstRun, ring, 0, count - firstRun)
+    tailSize += count
+  }
+
+  private fun spillStream(): OutputStream? =
+    spillOut ?: runCatching {
+      Files.createDirectories(spill!!.parent)
+      BufferedOutputStream(Files.newOutputStream(spill, CREATE, APPEND))
+    }.getOrNull().also { spillOut = it }
+
+  /** The retained log, with a marker where bytes were dropped. Closes the spill file, if any. */
+  @Synchronized
+  fun toByteArray(): ByteArray {
+    spillOut?.run { runCatching { close() } }
+    spillOut = null
+    val ring = tail ?: return head.toByteArray()
+    return ByteArrayOutputStream(head.size() + tailSize + 128)
+      .apply {
+        head.writeTo(this)
+        if (dropped > 0) {
+          val where = if (spilled && spill != null) ", full log in $spill" else ""
+          write("\n[... $dropped bytes truncated$where ...]\n".toByteArray(UTF_8))
+        }
+        val firstRun = minOf(tailSize, ring.size - tailStart)
+        write(ring, tailStart, firstRun)
+        write(ring, 0, tailSize - firstRun)
+      }.toByteArray()
+  }
+}
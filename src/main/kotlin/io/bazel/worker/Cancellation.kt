@@ -0,0 +1,67 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.io.Closeable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Cancellation of a single request, which Bazel may ask for while the request is running.
+ *
+ * Work is cancelled cooperatively: long-running steps register an [onCancel] action that stops
+ * them (by flagging a compiler, or interrupting a thread whose state is discarded afterwards), and
+ * check [isCancelled] between steps.
+ */
+class Cancellation {
+  private val cancelled = AtomicBoolean(false)
+  private val actions = CopyOnWriteArrayList<() -> Unit>()
+
+  val isCancelled: Boolean get() = cancelled.get()
+
+  /** Cancels the request, running every registered action once. */
+  fun cancel() {
+    if (cancelled.compareAndSet(false, true)) {
+      // Whoever removes an action runs it, so a racing onCancel never runs it twice.
+      actions.forEach { action ->
+        if (actions.remove(action)) {
+          runCatching { action() }
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs [action] when the request is cancelled, until the returned registration is closed. Runs
+   * it straight away if the request is already cancelled.
+   */
+  fun onCancel(action: () -> Unit): Closeable {
+    actions += action
+    if (isCancelled && actions.remove(action)) {
+      runCatching { action() }
+    }
+    return Closeable { actions.remove(action) }
+  }
+
+  /** Throws a [CancellationException] if the request has been cancelled. */
+  fun check() {
+    if (isCancelled) {
+      throw CancellationException("request cancelled")
+    }
+  }
+}
@@ -19,6 +19,7 @@ package io.bazel.worker
 
 import java.io.PrintStream
 import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Path
 import java.util.logging.Level
 
 /** Log encapsulates standard out and error of execution. */
@@ -62,7 +63,10 @@ data class ContextLog(
   internal interface ScopeLogging :
     Summarize,
     Logging {
-    fun narrowTo(name: String): ScopeLogging
+    fun narrowTo(
+      name: String,
+      spill: Path? = null,
+    ): ScopeLogging
 
     /** asPrintStream allows direct writing for backwards compatiblity. */
     fun asPrintStream(): PrintStream
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.io.Closeable
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.WRITE
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Expected durations of requests, learned from the requests a worker has run.
+ *
+ * Requests are told apart by their target label and the flags they pass, so the compile, kapt,
+ * jdeps and KSP2 requests of a target each have their own history. Requests without a label, or
+ * not seen before, are estimated from the number of sources and jars among their inputs.
+ *
+ * With a [file], the history is loaded when the worker starts and saved at most every
+ * [SAVE_INTERVAL_MILLIS] and on [close], so it carries over to the workers of later builds. The
+ * workers sharing the file each save the durations they recorded into what the others saved.
+ */
+class CostHistory(
+  private val file: Path? = null,
+  private val maxEntries: Int = DEFAULT_MAX_ENTRIES,
+) : Closeable {
+  companion object {
+    private val logger: Logger = Logger.getLogger(CostHistory::class.java.canonicalName)
+
+    /** Requests remembered, the least recently run ones are forgotten first. */
+    const val DEFAULT_MAX_ENTRIES = 20_000
+
+    /** Minimum time between two saves of the history. */
+    const val SAVE_INTERVAL_MILLIS = 30_000L
+
+    private const val BASE_MILLIS = 500L
+    private const val SOURCE_MILLIS = 50L
+    private const val JAR_MILLIS = 5L
+
+    /** Weight of the latest duration in the moving average of a request. */
+    private const val LATEST_WEIGHT = 0.5
+
+    private const val LABEL_FLAG = "--target_label"
+
+    private val FLAGFILE_RE = Regex("""^(?:--flagfile=|@)(.+)$""")
+
+    /**
+     * Estimates the duration of a request from the paths of its inputs: a fixed base, plus a share
+     * for every source file and every jar on its classpath.
+     */
+    @JvmStatic
+    fun estimate(inputs: Collection<String>): Long =
+      BASE_MILLIS +
+        inputs.count { it.endsWith(".kt") || it.endsWith(".java") } * SOURCE_MILLIS +
+        inputs.count { it.endsWith(".jar") || it.endsWith(".srcjar") } * JAR_MILLIS
+
+    /**
+     * The history key of a request: its target label and a hash of the flags it passes, read from
+     * its flagfile (relative to [directory], if any). Null for requests without a label.
+     */
+    @JvmStatic
+    fun key(
+      args: List<String>,
+      directory: Path? = null,
+    ): String? {
+      val lines =
+        args
+          .singleOrNull()
+          ?.let(FLAGFILE_RE::matchEntire)
+          ?.let { match ->
+            val flagfile = Path.of(match.groupValues[1])
+            runCatching { Files.readAllLines(directory?.resolve(flagfile) ?: flagfile, UTF_8) }
+              .getOrNull()
+              ?: return null
+          }
+          ?: args
+      val at = lines.indexOf(LABEL_FLAG)
+      val label = lines.getOrNull(at + 1)?.takeIf { at >= 0 } ?: return null
+      val flags = lines.filter { it.startsWith("--") }.toSortedSet().joinToString(" ")
+      return "$label ${Integer.toHexString(flags.hashCode())}"
+    }
+  }
+
+  private val durations =
+    object : LinkedHashMap<String, Long>(16, 0.75f, true) {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Long>?) =
+        size > maxEntries
+    }
+
+  /** Keys recorded since the history was last saved. */
+  private val recorded = HashSet<String>()
+  private var saved = System.currentTimeMillis()
+
+  init {
+    file?.takeIf(Files::exists)?.let(::read)?.let(durations::putAll)
+  }
+
+  /** The expected duration in milliseconds of the request with [key] and [inputs]. */
+  @Synchronized
+  fun estimate(
+    key: String?,
+    inputs: Collection<String>,
+  ): Long = key?.let(durations::get) ?: estimate(inputs)
+
+  /** Records that the request with [key] took [millis]. */
+  @Synchronized
+  fun record(
+    key: String,
+    millis: Long,
+  ) {
+    durations[key] =
+      durations[key]?.let { (it * (1 - LATEST_WEIGHT) + millis * LATEST_WEIGHT).toLong() }
+        ?: millis
+    recorded += key
+    if (System.currentTimeMillis() - saved >= SAVE_INTERVAL_MILLIS) {
+      save()
+    }
+  }
+
+  /**
+   * Saves the history, replacing the file at once so concurrent workers never read half of it.
+   *
+   * The durations recorded since the last save are merged into those in the file, which other
+   * workers may have saved since, under a lock so that no worker's save is lost. The durations of
+   * the file also replace those of other requests in this history.
+   */
+  @Synchronized
+  fun save() {
+    val target = file?.toAbsolutePath() ?: return
+    if (recorded.isEmpty()) {
+      return
+    }
+    saved = System.currentTimeMillis()
+    try {
+      Files.createDirectories(target.parent)
+      FileChannel
+        .open(target.resolveSibling("${target.fileName}.lock"), CREATE, WRITE)
+        .use { channel ->
+          channel.lock().use {
+            val merged = LinkedHashMap<String, Long>()
+            target.takeIf(Files::exists)?.let(::read)?.let(merged::putAll)
+            durations.forEach { (key, millis) ->
+              if (key in recorded || key !in merged) {
+                merged[key] = millis
+              }
+            }
+            durations.clear()
+            durations.putAll(merged)
+            val temp = Files.createTempFile(target.parent, "costs", ".tmp")
+            Files.write(temp, durations.map { (key, millis) -> "$millis\t$key" }, UTF_8)
+            Files.move(temp, target, REPLACE_EXISTING, ATOMIC_MOVE)
+          }
+        }
+      recorded.clear()
+    } catch (e: IOException) {
+      logger.log(Level.WARNING, "Cannot save the request history to $target.", e)
+    }
+  }
+
+  override fun close() {
+    save()
+  }
+
+  /** The durations saved in [from], least recently run first. */
+  private fun read(from: Path): Map<String, Long> {
+    val read = LinkedHashMap<String, Long>()
+    try {
+      Files.readAllLines(from, UTF_8).forEach { line ->
+        val (millis, key) = line.split('\t', limit = 2).takeIf { it.size == 2 } ?: return@forEach
+        millis.toLongOrNull()?.let { read[key] = it }
+      }
+    } catch (e: IOException) {
+      logger.log(Level.WARNING, "Cannot load the request history from $from.", e)
+    }
+    return read
+  }
+}
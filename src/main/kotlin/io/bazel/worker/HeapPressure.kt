@@ -0,0 +1,93 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.io.Closeable
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryNotificationInfo
+import java.lang.management.MemoryType
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.management.NotificationEmitter
+import javax.management.NotificationListener
+
+/**
+ * Notifies listeners when the heap is still mostly full after a garbage collection, so that
+ * worker-lifetime caches can give memory back before the worker runs out of it.
+ */
+object HeapPressure {
+  /** Fraction of a heap pool still in use after a collection that counts as pressure. */
+  private const val THRESHOLD = 0.8
+
+  private val listeners = CopyOnWriteArrayList<() -> Unit>()
+  private val installed = AtomicBoolean(false)
+
+  /**
+   * Registers [listener], called on a JMX notification thread whenever pressure is detected.
+   * Closing the returned handle unregisters it.
+   */
+  fun onPressure(listener: () -> Unit): Closeable {
+    install()
+    listeners += listener
+    return Closeable { listeners.remove(listener) }
+  }
+
+  /** Notifies every listener as if pressure had been detected. */
+  fun relieve() {
+    listeners.forEach { runCatching { it() } }
+  }
+
+  /** Notifies every listener, then asks for a full collection so freed caches are reclaimed. */
+  fun relieveAndCollect() {
+    relieve()
+    System.gc()
+  }
+
+  /**
+   * The fraction of the heap still in use after the last collection of each heap pool, or 0 if
+   * the JVM does not report it.
+   */
+  fun occupancyAfterGc(): Double {
+    val pools =
+      ManagementFactory
+        .getMemoryPoolMXBeans()
+        .filter { it.type == MemoryType.HEAP && it.isCollectionUsageThresholdSupported }
+        .mapNotNull { it.collectionUsage?.takeIf { usage -> usage.max > 0 } }
+    val max = pools.sumOf { it.max }
+    return if (max > 0) pools.sumOf { it.used }.toDouble() / max else 0.0
+  }
+
+  private fun install() {
+    if (!installed.compareAndSet(false, true)) {
+      return
+    }
+    ManagementFactory
+      .getMemoryPoolMXBeans()
+      .filter { it.type == MemoryType.HEAP && it.isCollectionUsageThresholdSupported }
+      .filter { it.usage.max > 0 }
+      .forEach { it.collectionUsageThreshold = (it.usage.max * THRESHOLD).toLong() }
+    (ManagementFactory.getMemoryMXBean() as NotificationEmitter).addNotificationListener(
+      NotificationListener { notification, _ ->
+        if (notification.type == MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED) {
+          relieve()
+        }
+      },
+      null,
+      null,
+    )
+  }
+}
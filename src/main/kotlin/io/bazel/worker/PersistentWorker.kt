@@ -24,14 +24,44 @@ import java.io.IOException
 import java.io.PrintWriter
 import java.nio.file.Path
 import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.system.exitProcess
+
+/** How long a worker that is shutting down waits for its last responses to be written. */
+private const val SHUTDOWN_GRACE_MILLIS = 1_000L
 
 /**
  * PersistentWorker satisfies Bazel persistent worker protocol for executing work.
  *
  * Supports multiplex (https://docs.bazel.build/versions/master/multiplex-worker.html) provided
- * the work is thread/coroutine safe.
+ * the work is thread/coroutine safe. Multiplex requests start as [admission] allows.
+ *
+ * A request that runs out of heap is retried once, alone, after the worker caches are dropped. If
+ * the heap is still exhausted afterwards, the worker stops taking requests and exits once the
+ * running ones have responded, so Bazel starts a fresh worker.
+ *
+ * Cancel requests from Bazel cancel the [Cancellation] of the running request, Bazel is answered
+ * straight away and the work stops at its next cancellation point.
+ *
+ * With a [metricsFile], the [RequestMetrics] of every request are appended to it as JSON lines.
+ *
+ * Requests outside a sandbox work in directories from the [scratch] pool, which are emptied in the
+ * background.
+ *
+ * Waiting requests start in order of their expected duration from the [costs] of earlier requests,
+ * see [AdmissionControl].
  */
-class PersistentWorker : Worker {
+class PersistentWorker(
+  private val admission: AdmissionControl = AdmissionControl(),
+  private val metricsFile: Path? = null,
+  private val scratch: ScratchDirectories = ScratchDirectories(),
+  private val costs: CostHistory = CostHistory(),
+  private val occupancyLimit: Double = 0.85,
+  private val occupancy: () -> Double = HeapPressure::occupancyAfterGc,
+  private val exit: (Int) -> Unit = { code -> exitProcess(code) },
+) : Worker {
+  private val cancellations = ConcurrentHashMap<Int, Cancellation>()
+
   override fun start(execute: Work): Int {
     return WorkerContext.run {
       val realStdErr = System.err
@@ -43,33 +73,139 @@ class PersistentWorker : Worker {
                 request: WorkerProtocol.WorkRequest,
                 pw: PrintWriter,
                 ->
-                return@WorkRequestCallback doTask(
-                  name = "request ${request.requestId}",
-                  sandboxDir = request.sandboxDir.takeIf { it.isNotEmpty() }?.let { Path.of(it) },
-                  task = request.workTo(execute),
-                ).asResponse(pw)
+                val name = "request ${request.requestId}"
+                val inputs = request.inputsList.map { it.path }
+                val estimate = AdmissionControl.estimateHeap(inputs)
+                val sandboxDir = request.sandboxDir.takeIf { it.isNotEmpty() }?.let { Path.of(it) }
+                val costKey = CostHistory.key(request.argumentsList, sandboxDir)
+                val cost = costs.estimate(costKey, inputs)
+                val cancellation = Cancellation()
+                cancellations[request.requestId] = cancellation
+                val metrics = RequestMetrics(name)
+                val run = {
+                  metrics.measure {
+                    doTask(
+                      name = name,
+                      sandboxDir = sandboxDir,
+                      inputDigests = request.inputDigests(),
+                      cancellation = cancellation,
+                      metrics = metrics,
+                      scratch = scratch,
+                      task = request.workTo(execute),
+                    )
+                  }
+                }
+                val queued = System.nanoTime()
+                try {
+                  val result =
+                    admission.admit(estimate, cost) {
+                      val started = System.nanoTime()
+                      val waited = (started - queued) / 1_000_000
+                      info {
+                        "admitted $name after $waited ms, estimated heap ${estimate shr 20} MiB" +
+                          " and duration $cost ms"
+                      }
+                      metrics.value("queue_wait_ms", waited)
+                      metrics.value("estimated_cost_ms", cost)
+                      run().also {
+                        if (costKey != null && it.status == Status.SUCCESS) {
+                          costs.record(costKey, (System.nanoTime() - started) / 1_000_000)
+                        }
+                      }
+                    }
+                  return@WorkRequestCallback when {
+                    cancellation.isCancelled -> result
+                    result.status == Status.OUT_OF_MEMORY -> recover(name, run)
+                    else -> result
+                  }.also { report(metrics, it) }
+                    .asResponse(pw)
+                } finally {
+                  cancellations.remove(request.requestId)
+                }
               },
               realStdErr,
               ProtoWorkerMessageProcessor(System.`in`, System.out),
             ).setCpuUsageBeforeGc(Duration.ofSeconds(10))
-            .build()
+            .setCancelCallback { requestId, _ ->
+              info { "cancelling request $requestId" }
+              cancellations[requestId]?.cancel()
+            }.build()
         workerHandler.processRequests()
       } catch (e: IOException) {
         this.error(e, { "Unknown IO exception" })
         e.printStackTrace(realStdErr)
         return@run 1
+      } finally {
+        scratch.close()
+        costs.close()
       }
       return@run 0
     }
   }
 
+  /**
+   * Retries a request that ran out of heap once no other request is running, after relieving the
+   * heap. Shuts the worker down if the heap cannot be recovered.
+   */
+  private fun WorkerContext.recover(
+    name: String,
+    run: () -> TaskResult,
+  ): TaskResult {
+    info { "$name ran out of heap, retrying alone" }
+    val retried =
+      admission.admitAlone {
+        HeapPressure.relieveAndCollect()
+        run()
+      }
+    if (retried.status == Status.OUT_OF_MEMORY) {
+      HeapPressure.relieveAndCollect()
+      if (occupancy() > occupancyLimit) {
+        error { "$name ran out of heap again and the heap did not recover, exiting" }
+        shutdown()
+      }
+    }
+    return retried
+  }
+
+  /** Exits once the requests already running have finished, and this response has been sent. */
+  private fun shutdown() {
+    Thread {
+      admission.close()
+      Thread.sleep(SHUTDOWN_GRACE_MILLIS)
+      exit(Status.OUT_OF_MEMORY.exit)
+    }.apply {
+      name = "worker-shutdown"
+      isDaemon = true
+      start()
+    }
+  }
+
+  private fun WorkerContext.report(
+    metrics: RequestMetrics,
+    result: TaskResult,
+  ) {
+    val file = metricsFile ?: return
+    metrics.value("exit_code", result.status.exit.toLong())
+    runCatching { RequestMetrics.append(file, metrics) }
+      .onFailure { error(it) { "cannot write metrics to $file" } }
+  }
+
   private fun WorkerProtocol.WorkRequest.workTo(
     execute: Work,
   ): (sub: WorkerContext.TaskContext) -> Status =
     { ctx ->
+      // Requests cancelled while waiting for admission never start.
+      ctx.cancellation.check()
       execute(ctx, argumentsList.toList())
     }
 
+  private fun WorkerProtocol.WorkRequest.inputDigests(): Map<String, String> =
+    inputsList
+      .filter { !it.digest.isEmpty }
+      .associate { input ->
+        input.path to input.digest.toByteArray().joinToString("") { "%02x".format(it) }
+      }
+
   private fun TaskResult.asResponse(pw: PrintWriter): Int {
     pw.print(log.out.toString())
     return status.exit
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+
+/**
+ * Structured measurements of a single request.
+ *
+ * Tasks add tags (e.g. the target label), named phases and the compiler exit code, while
+ * [measure] records what the request cost the worker. Allocation is measured on the request
+ * thread. GC time, heap and I/O are process-wide, so they include concurrent multiplex requests.
+ * `worker_heap_peak_bytes` is the peak heap use of the worker up to the end of the request, not of
+ * the request alone: the JVM keeps one peak per process, and resetting it for every request would
+ * lose the peaks of the requests running alongside.
+ */
+class RequestMetrics(
+  val name: String,
+) {
+  private val tags = linkedMapOf<String, String>()
+  private val phases = linkedMapOf<String, Long>()
+  private val values = linkedMapOf<String, Long>()
+
+  /** Records [value] under [key], e.g. the label or mnemonic of the request. */
+  @Synchronized
+  fun tag(
+    key: String,
+    value: String,
+  ) {
+    tags[key] = value
+  }
+
+  /** Adds [nanos] to the time spent in the phase called [name]. */
+  @Synchronized
+  fun phase(
+    name: String,
+    nanos: Long,
+  ) {
+    phases[name] = (phases[name] ?: 0L) + nanos
+  }
+
+  /** Records a numeric measurement, e.g. the exit code of the compiler. */
+  @Synchronized
+  fun value(
+    key: String,
+    value: Long,
+  ) {
+    values[key] = value
+  }
+
+  /** Runs [block], recording its wall time, allocation, GC time, heap and process I/O. */
+  fun <T> measure(block: () -> T): T {
+    val start = Snapshot()
+    try {
+      return block()
+    } finally {
+      val end = Snapshot()
+      value("wall_ms", (end.nanos - start.nanos) / 1_000_000)
+      if (start.allocated >= 0 && end.allocated >= 0) {
+        value("allocated_bytes", end.allocated - start.allocated)
+      }
+      value("gc_count", end.gcCount - start.gcCount)
+      value("gc_pause_ms", end.gcMillis - start.gcMillis)
+      value("heap_used_bytes", end.heapUsed)
+      value("worker_heap_peak_bytes", end.heapPeak)
+      if (start.io != null && end.io != null) {
+        value("process_read_bytes", end.io.first - start.io.first)
+        value("process_written_bytes", end.io.second - start.io.second)
+      }
+    }
+  }
+
+  /** The metrics as a single line JSON object. */
+  @Synchronized
+  fun toJson(): String =
+    buildString {
+      append("{\"request\":").append(quote(name))
+      tags.forEach { (k, v) -> append(',').append(quote(k)).append(':').append(quote(v)) }
+      values.forEach { (k, v) -> append(',').append(quote(k)).append(':').append(v) }
+      append(",\"phases_ms\":{")
+      phases.entries.forEachIndexed { i, (k, v) ->
+        if (i > 0) append(',')
+        append(quote(k)).append(':').append(v / 1_000_000)
+      }
+      append("}}")
+    }
+
+  private class Snapshot {
+    val nanos = System.nanoTime()
+
+    val allocated =
+      (ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean)
+        ?.takeIf { it.isThreadAllocatedMemoryEnabled }
+        ?.getThreadAllocatedBytes(Thread.currentThread().id)
+        ?: -1L
+
+    val gcCount: Long
+    val gcMillis: Long
+
+    init {
+      val collectors = ManagementFactory.getGarbageCollectorMXBeans()
+      gcCount = collectors.sumOf { it.collectionCount.coerceAtLeast(0) }
+      gcMillis = collectors.sumOf { it.collectionTime.coerceAtLeast(0) }
+    }
+
+    val heapUsed = ManagementFactory.getMemoryMXBean().heapMemoryUsage.used
+
+    /** The peak heap use since the worker started, summed over the heap pools. */
+    val heapPeak =
+      ManagementFactory
+        .getMemoryPoolMXBeans()
+        .filter { it.type == MemoryType.HEAP }
+        .sumOf { it.peakUsage.used }
+
+    /** Bytes read and written by the process, where the platform reports them. */
+    val io: Pair<Long, Long>? =
+      runCatching {
+        val counters =
+          Files
+            .readAllLines(PROC_IO)
+            .map { it.split(':') }
+            .filter { it.size == 2 }
+            .associate { it[0].trim() to it[1].trim().toLong() }
+        counters.getValue("rchar") to counters.getValue("wchar")
+      }.getOrNull()
+  }
+
+  companion object {
+    private val PROC_IO = Paths.get("/proc/self/io")
+
+    private fun quote(value: String): String =
+      buildString {
+        append('"')
+        value.forEach { c ->
+          when {
+            c == '"' -> append("\\\"")
+            c == '\\' -> append("\\\\")
+            c < ' ' -> append("\\u%04x".format(c.code))
+            else -> append(c)
+          }
+        }
+        append('"')
+      }
+
+    /** Appends [metrics] to [file] as one JSON line. */
+    @JvmStatic
+    fun append(
+      file: Path,
+      metrics: RequestMetrics,
+    ) {
+      val line = metrics.toJson() + "\n"
+      synchronized(RequestMetrics::class.java) {
+        file.parent?.let(Files::createDirectories)
+        Files.write(file, line.toByteArray(UTF_8), CREATE, APPEND)
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.io.Closeable
+import java.io.IOException
+import java.nio.file.FileVisitResult
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * A pool of scratch directories for requests that do not run in a sandbox.
+ *
+ * Released directories are emptied on a background thread, while the request responds, and are
+ * handed out again once empty. At most [maxPendingCleanups] directories wait to be emptied: beyond
+ * that, the releasing request empties its directory itself. At most [maxIdle] empty directories
+ * are kept, the others are deleted.
+ *
+ * Directories are created under [root] (the system temp directory by default), which can be a
+ * tmpfs to keep scratch files off disk.
+ */
+class ScratchDirectories(
+  private val root: Path? = null,
+  private val maxIdle: Int = Runtime.getRuntime().availableProcessors(),
+  maxPendingCleanups: Int = DEFAULT_MAX_PENDING_CLEANUPS,
+) : Closeable {
+  companion object {
+    private val logger: Logger = Logger.getLogger(ScratchDirectories::class.java.canonicalName)
+
+    /** Directories that may wait to be emptied before releasing requests empty their own. */
+    const val DEFAULT_MAX_PENDING_CLEANUPS = 16
+
+    /** Deletes the contents of [dir] and, unless [keepDir], [dir] itself, one file at a time. */
+    fun delete(
+      dir: Path,
+      keepDir: Boolean = false,
+    ) {
+      Files.walkFileTree(
+        dir,
+        object : SimpleFileVisitor<Path>() {
+          override fun visitFile(
+            file: Path,
+            attrs: BasicFileAttributes,
+          ): FileVisitResult {
+            Files.delete(file)
+            return FileVisitResult.CONTINUE
+          }
+
+          override fun postVisitDirectory(
+            directory: Path,
+            exc: IOException?,
+          ): FileVisitResult {
+            if (exc != null) {
+              throw exc
+            }
+            if (!keepDir || directory != dir) {
+              Files.delete(directory)
+            }
+            return FileVisitResult.CONTINUE
+          }
+        },
+      )
+    }
+  }
+
+  private val parent: Path by lazy {
+    val dir =
+      if (root == null) {
+        Files.createTempDirectory("worker-scratch")
+      } else {
+        Files.createDirectories(root)
+        Files.createTempDirectory(root, "worker-scratch")
+      }
+    Runtime.getRuntime().addShutdownHook(Thread { runCatching { delete(dir) } })
+    dir
+  }
+
+  private val idle = ConcurrentLinkedDeque<Path>()
+  private val idleCount = AtomicInteger()
+  private val created = AtomicInteger()
+
+  private val cleaner =
+    ThreadPoolExecutor(
+      1,
+      1,
+      0L,
+      TimeUnit.MILLISECONDS,
+      ArrayBlockingQueue(maxOf(1, maxPendingCleanups)),
+      { r -> Thread(r, "scratch-cleanup").apply { isDaemon = true } },
+      // A full backlog, or a closed pool, is cleaned up by the releasing thread.
+      RejectedExecutionHandler { cleanup, _ -> cleanup.run() },
+    )
+
+  /** An empty directory, reused from the pool when one is available. */
+  fun acquire(): Path =
+    idle.pollFirst()?.also { idleCount.decrementAndGet() }
+      ?: Files.createDirectory(parent.resolve("pwd${created.incrementAndGet()}"))
+
+  /** Returns [dir] to the pool, emptying it in the background. */
+  fun release(dir: Path) {
+    cleaner.execute { empty(dir) }
+  }
+
+  private fun empty(dir: Path) {
+    val keep = !cleaner.isShutdown && reserveIdle()
+    try {
+      delete(dir, keepDir = keep)
+      if (keep) {
+        idle.addLast(dir)
+      }
+    } catch (e: IOException) {
+      logger.log(Level.SEVERE, "Directory cleanup failed.", e)
+      if (keep) {
+        idleCount.decrementAndGet()
+        runCatching { delete(dir) }
+      }
+    }
+  }
+
+  private fun reserveIdle(): Boolean {
+    if (idleCount.incrementAndGet() <= maxIdle) {
+      return true
+    }
+    idleCount.decrementAndGet()
+    return false
+  }
+
+  /** Runs [forWork] in a directory from the pool, released once it returns. */
+  inline fun <T> useDirectory(forWork: WorkingDirectoryContext.() -> T): T =
+    WorkingDirectoryContext(acquire(), ::release).use { wd ->
+      wd.forWork()
+    }
+
+  /** Finishes the pending cleanups and deletes the pooled directories. */
+  override fun close() {
+    cleaner.shutdown()
+    cleaner.awaitTermination(1, TimeUnit.MINUTES)
+    generateSequence { idle.pollFirst() }.forEach { runCatching { delete(it) } }
+    idleCount.set(0)
+  }
+}
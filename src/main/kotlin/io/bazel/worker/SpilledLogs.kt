@@ -0,0 +1,80 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicLong
+import java.util.stream.Collectors
+
+/**
+ * The full logs of tasks that outgrow their limit, kept in a [directory] owned by the worker so
+ * that they outlive the sandbox or scratch directory of the request.
+ *
+ * Every task gets a file of its own, named after the worker process and a sequence number since
+ * request ids repeat across workers and singleplex requests. The directory holds the logs of every
+ * worker sharing it, of which only the [maxLogs] most recently written are kept.
+ */
+internal class SpilledLogs(
+  private val directory: Path,
+  private val maxLogs: Int = DEFAULT_MAX_LOGS,
+) {
+  companion object {
+    const val DEFAULT_MAX_LOGS = 50
+
+    /**
+     * The default directory, in the temporary directory of the machine like the other state shared
+     * by workers. The working directory of a worker is the execution root, which Bazel owns.
+     */
+    val DEFAULT_DIRECTORY: Path =
+      Path.of(System.getProperty("java.io.tmpdir"), "rules_kotlin", "logs")
+
+    private val PID = ProcessHandle.current().pid()
+
+    /** Numbers the logs of the process, which may run several contexts over the same directory. */
+    private val sequence = AtomicLong()
+  }
+
+  /** The file the full log of the task called [name] goes to, if it outgrows its limit. */
+  fun fileFor(name: String): Path {
+    val file = name.replace(Regex("[^A-Za-z0-9_.-]"), "_") + ".log"
+    return directory.resolve("$PID-${sequence.incrementAndGet()}-$file").toAbsolutePath()
+  }
+
+  /** Deletes the least recently written logs beyond [maxLogs]. */
+  fun prune() {
+    try {
+      val logs =
+        Files.list(directory).use { paths ->
+          paths
+            .filter { it.fileName.toString().endsWith(".log") }
+            .collect(Collectors.toList())
+        }
+      if (logs.size <= maxLogs) {
+        return
+      }
+      logs
+        .map { it to runCatching { Files.getLastModifiedTime(it).toMillis() }.getOrDefault(0L) }
+        .sortedBy { it.second }
+        .take(logs.size - maxLogs)
+        .forEach { (log, _) -> Files.deleteIfExists(log) }
+    } catch (e: IOException) {
+      // Pruned concurrently by another worker, or not there at all.
+    }
+  }
+}
@@ -23,4 +23,7 @@ enum class Status(
 ) {
   ERROR(1),
   SUCCESS(0),
+
+  /** The work ran out of heap, the exit code matches the Kotlin compiler's OOM_ERROR. */
+  OUT_OF_MEMORY(137),
 }
@@ -17,16 +17,28 @@
 
 package io.bazel.worker
 
+import java.nio.file.Path
+
 /** Worker executes a unit of Work */
 interface Worker {
   companion object {
     fun from(
       args: Iterable<String>,
+      admission: AdmissionControl = AdmissionControl(),
+      metricsFile: Path? = null,
+      scratchRoot: Path? = null,
+      costHistory: Path? = null,
       then: Worker.(Iterable<String>) -> Int,
     ): Int {
       val worker =
         when {
-          "--persistent_worker" in args -> PersistentWorker()
+          "--persistent_worker" in args ->
+            PersistentWorker(
+              admission,
+              metricsFile,
+              ScratchDirectories(scratchRoot),
+              CostHistory(costHistory),
+            )
           else -> InvocationWorker(args)
         }
       return worker.then(args.filter { it != "--persistent_worker" })
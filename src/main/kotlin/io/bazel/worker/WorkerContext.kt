@@ -21,10 +21,11 @@ import io.bazel.worker.ContextLog.Granularity
 import io.bazel.worker.ContextLog.Granularity.INFO
 import io.bazel.worker.ContextLog.ScopeLogging
 import io.bazel.worker.Status.ERROR
-import java.io.ByteArrayOutputStream
+import io.bazel.worker.Status.OUT_OF_MEMORY
 import java.io.Closeable
 import java.io.InterruptedIOException
 import java.io.PrintStream
+import java.nio.file.Files
 import java.nio.file.Path
 import java.util.logging.Level
 import java.util.logging.Logger
@@ -35,16 +36,32 @@ import java.util.logging.StreamHandler
 class WorkerContext private constructor(
   private val name: String = Companion::class.java.canonicalName,
   private val verbose: Granularity = INFO,
+  logLimit: Int = DEFAULT_LOG_LIMIT,
+  private val spilledLogs: SpilledLogs? = null,
 ) : Closeable,
-  ScopeLogging by ContextLogger(name, verbose.level, null) {
+  ScopeLogging by ContextLogger(name, verbose.level, null, logLimit) {
   companion object {
+    /** Bytes of log kept in memory for a context, beyond which the middle of the log is dropped. */
+    const val DEFAULT_LOG_LIMIT = 4 * 1024 * 1024
+
+    /**
+     * Runs [work] in a new context. The full logs of tasks that outgrow [logLimit] are kept in
+     * [logDirectory], if any.
+     */
     fun <T : Any?> run(
       named: String = "worker",
       verbose: Granularity = INFO,
+      logLimit: Int = DEFAULT_LOG_LIMIT,
+      logDirectory: Path? = SpilledLogs.DEFAULT_DIRECTORY,
       report: (ContextLog) -> Unit = {},
       work: WorkerContext.() -> T,
     ): T =
-      WorkerContext(verbose = verbose, name = named).run {
+      WorkerContext(
+        verbose = verbose,
+        name = named,
+        logLimit = logLimit,
+        spilledLogs = logDirectory?.let(::SpilledLogs),
+      ).run {
         use(work).also {
           report(contents())
         }
@@ -55,11 +72,13 @@ class WorkerContext private constructor(
     val name: String,
     val level: Level,
     val propagateTo: ContextLogger? = null,
+    val limit: Int = DEFAULT_LOG_LIMIT,
+    val spill: Path? = null,
   ) : ScopeLogging {
     private val profiles = mutableListOf<String>()
 
     private val out by lazy {
-      ByteArrayOutputStream()
+      BoundedLog(limit, spill)
     }
 
     private val handler by lazy {
@@ -99,7 +118,10 @@ class WorkerContext private constructor(
       logger.logp(Level.FINE, sourceName, name, msg)
     }
 
-    override fun narrowTo(name: String): ScopeLogging = ContextLogger(name, level, this)
+    override fun narrowTo(
+      name: String,
+      spill: Path?,
+    ): ScopeLogging = ContextLogger(name, level, this, limit, spill)
 
     override fun contents() = handler.flush().run { ContextLog(out.toByteArray(), profiles) }
 
@@ -109,11 +131,29 @@ class WorkerContext private constructor(
   class TaskContext internal constructor(
     val directory: Path,
     logging: ScopeLogging,
+    /** Content digests of the request inputs, keyed by path, when provided by Bazel. */
+    val inputDigests: Map<String, String> = emptyMap(),
+    /** Cancellation of the request, when Bazel no longer needs its result. */
+    val cancellation: Cancellation = Cancellation(),
+    /** Structured measurements of the request, reported when the worker exports metrics. */
+    val metrics: RequestMetrics = RequestMetrics(directory.toString()),
+    /** The directory the paths of the request are relative to: its sandbox, or the worker's. */
+    val executionRoot: Path = Path.of("").toAbsolutePath(),
   ) : ScopeLogging by logging {
     fun <T> subTask(
       name: String = javaClass.canonicalName,
       task: (sub: TaskContext) -> T,
-    ): T = task(TaskContext(directory, logging = narrowTo(name)))
+    ): T =
+      task(
+        TaskContext(
+          directory,
+          logging = narrowTo(name),
+          inputDigests = inputDigests,
+          cancellation = cancellation,
+          metrics = metrics,
+          executionRoot = executionRoot,
+        ),
+      )
 
     /** resultOf a status supplier that includes information collected in the Context. */
     fun resultOf(executeTaskIn: (TaskContext) -> Status): TaskResult {
@@ -123,12 +163,15 @@ class WorkerContext private constructor(
           contents(),
         )
       } catch (t: Throwable) {
-        when (t.causes.lastOrNull()) {
-          is InterruptedException, is InterruptedIOException -> error(t) { "ERROR: Interrupted" }
+        val cause = t.causes.lastOrNull()
+        when {
+          cancellation.isCancelled -> error { "ERROR: Cancelled" }
+          cause is InterruptedException || cause is InterruptedIOException ->
+            error(t) { "ERROR: Interrupted" }
           else -> error(t) { "ERROR: unexpected exception" }
         }
         return TaskResult(
-          ERROR,
+          if ((sequenceOf(t) + t.causes).any { it is OutOfMemoryError }) OUT_OF_MEMORY else ERROR,
           contents(),
         )
       }
@@ -144,17 +187,39 @@ class WorkerContext private constructor(
   fun doTask(
     name: String,
     sandboxDir: Path? = null,
+    inputDigests: Map<String, String> = emptyMap(),
+    cancellation: Cancellation = Cancellation(),
+    metrics: RequestMetrics = RequestMetrics(name),
+    scratch: ScratchDirectories? = null,
     task: (sub: TaskContext) -> Status,
   ): TaskResult {
     info { "start task $name" }
+    val spill = spilledLogs?.fileFor(name)
+    val context = { dir: Path ->
+      TaskContext(
+        dir,
+        logging = narrowTo(name, spill),
+        inputDigests = inputDigests,
+        cancellation = cancellation,
+        metrics = metrics,
+        executionRoot = (sandboxDir ?: Path.of("")).toAbsolutePath(),
+      )
+    }
     return if (sandboxDir != null) {
-      TaskContext(sandboxDir, logging = narrowTo(name)).resultOf(task)
+      context(sandboxDir).resultOf(task)
+    } else if (scratch != null) {
+      scratch.useDirectory {
+        context(dir).resultOf(task)
+      }
     } else {
       WorkingDirectoryContext
         .use {
-          TaskContext(dir, logging = narrowTo(name)).resultOf(task)
+          context(dir).resultOf(task)
         }
     }.also {
+      if (spill != null && Files.exists(spill)) {
+        spilledLogs?.prune()
+      }
       info { "end task $name: ${it.status}" }
     }
   }
@@ -23,9 +23,13 @@ import java.nio.file.Path
 import java.util.logging.Level
 import java.util.logging.Logger
 
-/** WorkingDirectoryContext provides a consistent base directory that is removed on close. */
+/**
+ * WorkingDirectoryContext provides a consistent base directory that is removed on close, or handed
+ * back to [release] (e.g. a [ScratchDirectories] pool).
+ */
 class WorkingDirectoryContext(
   val dir: Path,
+  private val release: ((Path) -> Unit)? = null,
 ) : Closeable {
   companion object {
     val logger: Logger = Logger.getLogger(WorkingDirectoryContext::class.java.canonicalName)
@@ -39,7 +43,11 @@ class WorkingDirectoryContext(
   override fun close() {
     kotlin
       .runCatching {
-        Files.walk(dir).sorted(Comparator.reverseOrder()).forEach(Files::delete)
+        if (release != null) {
+          release.invoke(dir)
+        } else {
+          ScratchDirectories.delete(dir)
+        }
       }.onFailure {
         logger.log(Level.SEVERE, "Directory cleanup failed.", it)
       }
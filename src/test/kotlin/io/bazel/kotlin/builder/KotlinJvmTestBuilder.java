@@ -28,6 +28,10 @@ import io.bazel.kotlin.model.CompilationTaskInfo;
 import io.bazel.kotlin.model.JvmCompilationTask;
 import io.bazel.kotlin.model.KotlinToolchainInfo;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.function.BiConsumer;
@@ -61,6 +65,22 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
     private final TaskBuilder taskBuilderInstance = new TaskBuilder();
     private static KotlinJvmTaskExecutor jvmTaskExecutor;
 
+    private final int processorClassLoaderCacheSize;
+    private KotlinToolchain.KotlincInvokerBuilder workerCompilerBuilder;
+    private KotlinJvmTaskExecutor workerTaskExecutor;
+
+    public KotlinJvmTestBuilder() {
+        this(0);
+    }
+
+    /**
+     * A builder whose tasks share invokers of their own, like the requests of a worker keeping up to
+     * processorClassLoaderCacheSize kapt processor class loaders.
+     */
+    public KotlinJvmTestBuilder(int processorClassLoaderCacheSize) {
+        this.processorClassLoaderCacheSize = processorClassLoaderCacheSize;
+    }
+
     @Override
     void setupForNext(CompilationTaskInfo.Builder taskInfo) {
         taskBuilder.clear().setInfo(taskInfo);
@@ -92,25 +112,50 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
 
     @SafeVarargs
     public final Dep runCompileTask(Consumer<TaskBuilder>... setup) {
-        return executeTask(jvmTaskExecutor()::execute, setup);
+        return executeTask(taskExecutor()::execute, setup);
     }
 
-    private static KotlinJvmTaskExecutor jvmTaskExecutor() {
+    /** Cache statistics of the invokers of a builder created with a processor class loader cache. */
+    public KotlinToolchain.InvokerCacheStats invokerStats() {
+        Preconditions.checkState(processorClassLoaderCacheSize > 0, "invokers are shared");
+        workerTaskExecutor();
+        return workerCompilerBuilder.getStats();
+    }
+
+    private KotlinJvmTaskExecutor taskExecutor() {
+        return processorClassLoaderCacheSize > 0 ? workerTaskExecutor() : jvmTaskExecutor();
+    }
+
+    private KotlinJvmTaskExecutor workerTaskExecutor() {
+        if (workerTaskExecutor == null) {
+            KotlinToolchain toolchain = toolchainForTest();
+            workerCompilerBuilder = new KotlinToolchain.KotlincInvokerBuilder(
+                    toolchain, false, 0, processorClassLoaderCacheSize);
+            workerTaskExecutor =
+                    new KotlinJvmTaskExecutor(workerCompilerBuilder, pluginsOf(toolchain));
+        }
+        return workerTaskExecutor;
+    }
+
+    private static synchronized KotlinJvmTaskExecutor jvmTaskExecutor() {
         if (jvmTaskExecutor == null) {
             KotlinToolchain toolchain = toolchainForTest();
-            InternalCompilerPlugins plugins = new InternalCompilerPlugins(
-                    toolchain.getJvmAbiGen(),
-                    toolchain.getSkipCodeGen(),
-                    toolchain.getKapt3Plugin(),
-                    toolchain.getJdepsGen()
-            );
             KotlinToolchain.KotlincInvokerBuilder compilerBuilder =
                     new KotlinToolchain.KotlincInvokerBuilder(toolchain);
-            jvmTaskExecutor = new KotlinJvmTaskExecutor(compilerBuilder, plugins);
+            jvmTaskExecutor = new KotlinJvmTaskExecutor(compilerBuilder, pluginsOf(toolchain));
         }
         return jvmTaskExecutor;
     }
 
+    private static InternalCompilerPlugins pluginsOf(KotlinToolchain toolchain) {
+        return new InternalCompilerPlugins(
+                toolchain.getJvmAbiGen(),
+                toolchain.getSkipCodeGen(),
+                toolchain.getKapt3Plugin(),
+                toolchain.getJdepsGen()
+        );
+    }
+
     private Dep executeTask(
             BiConsumer<CompilationTaskContext, JvmCompilationTask> executor,
             Consumer<TaskBuilder>[] setup) {
@@ -145,6 +190,11 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
 
     public void tearDown() {
         jvmTaskExecutor = null;
+        if (workerCompilerBuilder != null) {
+            workerCompilerBuilder.close();
+            workerCompilerBuilder = null;
+            workerTaskExecutor = null;
+        }
     }
 
     public class TaskBuilder {
@@ -166,6 +216,17 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
             }
         }
 
+        /** Adds a class as if an annotation processor had generated it. */
+        public void addGeneratedClass(String filename, byte[] content) {
+            Path path = directory(DirectoryType.GENERATED_CLASSES).resolve(filename);
+            try {
+                Files.createDirectories(path.getParent());
+                Files.write(path, content);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
         public TaskBuilder compileJava() {
             return this;
         }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.kotlin.builder.tasks.MultiTool.Tool
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import java.nio.file.Files
+
+@RunWith(JUnit4::class)
+class MultiToolTest {
+  @Test
+  fun requestsWithoutToolAreCompilations() {
+    val args = listOf("--target_label", "//a:b", "--output", "b.jar")
+    assertThat(MultiTool.select(args)).isEqualTo(Tool.BUILD to args)
+  }
+
+  @Test
+  fun toolIsRemovedFromRequest() {
+    val (tool, request) =
+      MultiTool.select(
+        listOf("--tool", "merge_jdeps", "--target_label", "//a:b", "--output", "b.jdeps"),
+      )
+    assertThat(tool).isEqualTo(Tool.MERGE_JDEPS)
+    assertThat(request)
+      .containsExactly("--target_label", "//a:b", "--output", "b.jdeps")
+      .inOrder()
+  }
+
+  @Test
+  fun toolIsOnlyReadFromFirstLine() {
+    val args = listOf("--target_label", "//a:b", "--kotlin_passthrough_flags", "--tool", "ksp2")
+    assertThat(MultiTool.select(args)).isEqualTo(Tool.BUILD to args)
+  }
+
+  @Test
+  fun toolIsReadFromFlagfile() {
+    val flagfile = Files.createTempFile("request", "-0.params")
+    Files.write(flagfile, listOf("--tool", "ksp2", "--module_name", "b"))
+    val (tool, request) = MultiTool.select(listOf("--flagfile=$flagfile"))
+    assertThat(tool).isEqualTo(Tool.KSP2)
+    assertThat(request).containsExactly("--module_name", "b").inOrder()
+  }
+
+  @Test
+  fun unknownToolIsRejected() {
+    assertThrows(IllegalArgumentException::class.java) {
+      MultiTool.select(listOf("--tool", "javac"))
+    }
+  }
+}
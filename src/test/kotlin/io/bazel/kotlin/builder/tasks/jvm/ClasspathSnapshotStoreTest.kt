@@ -0,0 +1,114 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+
+class ClasspathSnapshotStoreTest {
+  @get:Rule
+  val temp = TemporaryFolder()
+
+  private val implementation by lazy { file("build-tools-impl.jar", "impl v1") }
+
+  private var snapshots = 0
+
+  private fun file(
+    name: String,
+    content: String,
+  ): Path = temp.root.toPath().resolve(name).also { Files.write(it, content.toByteArray()) }
+
+  private fun ClasspathSnapshotStore.snapshot(
+    jar: Path,
+    digest: String?,
+    size: Int = 10,
+    implementation: Path = this@ClasspathSnapshotStoreTest.implementation,
+  ): Path =
+    snapshotOf(jar, digest, implementation) {
+      snapshots++
+      Files.write(it, ByteArray(size))
+    }
+
+  @Test
+  fun reusesSnapshotsByDigest() {
+    val store = ClasspathSnapshotStore(temp.newFolder("store").toPath())
+    val first = store.snapshot(file("a.jar", "a"), "digest")
+    val second = store.snapshot(file("b.jar", "b"), "digest")
+    val other = store.snapshot(file("c.jar", "c"), "other")
+
+    assertThat(second).isEqualTo(first)
+    assertThat(other).isNotEqualTo(first)
+    assertThat(snapshots).isEqualTo(2)
+  }
+
+  @Test
+  fun hashesJarsWithoutDigest() {
+    val store = ClasspathSnapshotStore(temp.newFolder("store").toPath())
+    val first = store.snapshot(file("a.jar", "same"), null)
+    val second = store.snapshot(file("b.jar", "same"), "")
+    val changed = store.snapshot(file("a.jar", "changed"), null)
+
+    assertThat(second).isEqualTo(first)
+    assertThat(changed).isNotEqualTo(first)
+    assertThat(snapshots).isEqualTo(2)
+  }
+
+  @Test
+  fun keysSnapshotsByImplementation() {
+    val store = ClasspathSnapshotStore(temp.newFolder("store").toPath())
+    val jar = file("a.jar", "a")
+    val first = store.snapshot(jar, "digest")
+    val upgraded = store.snapshot(jar, "digest", implementation = file("impl2.jar", "impl v2"))
+
+    assertThat(upgraded).isNotEqualTo(first)
+    assertThat(Files.exists(first)).isTrue()
+    assertThat(snapshots).isEqualTo(2)
+  }
+
+  @Test
+  fun evictsLeastRecentlyUsedSnapshots() {
+    val store = ClasspathSnapshotStore(temp.newFolder("store").toPath(), 25, Duration.ZERO)
+    val old = store.snapshot(file("old.jar", "old"), "old")
+    val recent = store.snapshot(file("recent.jar", "recent"), "recent")
+    Files.setLastModifiedTime(old, FileTime.fromMillis(1000))
+    Files.setLastModifiedTime(recent, FileTime.fromMillis(2000))
+    // Using the old snapshot makes it the most recently used.
+    store.snapshot(file("old2.jar", "old"), "old")
+
+    val added = store.snapshot(file("new.jar", "new"), "new")
+
+    assertThat(Files.exists(old)).isTrue()
+    assertThat(Files.exists(recent)).isFalse()
+    assertThat(Files.exists(added)).isTrue()
+  }
+
+  @Test
+  fun keepsSnapshotsUsedWithinTheGracePeriod() {
+    val store = ClasspathSnapshotStore(temp.newFolder("store").toPath(), 0, Duration.ofHours(1))
+    val first = store.snapshot(file("a.jar", "a"), "a")
+    val second = store.snapshot(file("b.jar", "b"), "b")
+
+    assertThat(Files.exists(first)).isTrue()
+    assertThat(Files.exists(second)).isTrue()
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Files
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class IncrementalCompilationCacheTest {
+  @get:Rule
+  val temp = TemporaryFolder()
+
+  private val state =
+    IncrementalCompilationCache.State(
+      fingerprint = "args",
+      sourceDigests = mapOf("A.kt" to "a1", "B.kt" to "b1"),
+      classpath = setOf("dep.jar"),
+    )
+
+  @Test
+  fun reusesStateForModifiedAndAddedSources() {
+    val modified =
+      state.modifiedSources(
+        "args",
+        mapOf("A.kt" to "a1", "B.kt" to "b2", "C.kt" to "c1"),
+        setOf("dep.jar", "new.jar"),
+      )
+    assertThat(modified).containsExactly("B.kt", "C.kt")
+  }
+
+  @Test
+  fun changedFingerprintCompilesFromScratch() {
+    assertThat(state.modifiedSources("other args", state.sourceDigests, state.classpath))
+      .isNull()
+  }
+
+  @Test
+  fun removedSourceCompilesFromScratch() {
+    assertThat(state.modifiedSources("args", mapOf("A.kt" to "a1"), state.classpath)).isNull()
+  }
+
+  @Test
+  fun removedClasspathEntryCompilesFromScratch() {
+    assertThat(state.modifiedSources("args", state.sourceDigests, emptySet())).isNull()
+  }
+
+  @Test
+  fun savedStateIsLoaded() {
+    val cache = IncrementalCompilationCache(temp.root.toPath())
+    cache.withTarget("root", "//a", "a.jar") { it!!.save(state) }
+    assertThat(cache.withTarget("root", "//a", "a.jar") { it!!.load() }).isEqualTo(state)
+    assertThat(cache.withTarget("root", "//b", "b.jar") { it!!.load() }).isNull()
+  }
+
+  @Test
+  fun concurrentCompilationOfTheSameTargetIsRefused() {
+    val cache = IncrementalCompilationCache(temp.root.toPath())
+    val owned = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    val pool = Executors.newSingleThreadExecutor()
+    try {
+      val owner =
+        pool.submit<Boolean> {
+          cache.withTarget("root", "//a", "a.jar") { target ->
+            owned.countDown()
+            release.await(10, TimeUnit.SECONDS)
+            target != null
+          }
+        }
+      assertThat(owned.await(10, TimeUnit.SECONDS)).isTrue()
+      assertThat(cache.withTarget("root", "//a", "a.jar") { it }).isNull()
+      assertThat(cache.withTarget("root", "//b", "b.jar") { it != null }).isTrue()
+      release.countDown()
+      assertThat(owner.get()).isTrue()
+    } finally {
+      pool.shutdownNow()
+    }
+    assertThat(cache.withTarget("root", "//a", "a.jar") { it != null }).isTrue()
+  }
+
+  @Test
+  fun evictsLeastRecentlyUsedTargets() {
+    val cache = IncrementalCompilationCache(temp.root.toPath(), 2500, Duration.ZERO)
+    val directories =
+      listOf("//old", "//recent", "//new").mapIndexed { i, label ->
+        cache.withTarget("root", label, "out.jar") { target ->
+          fill(target!!)
+          Files.setLastModifiedTime(target.directory, FileTime.fromMillis(1000L * (i + 1)))
+          target.directory
+        }
+      }
+
+    cache.evict()
+
+    assertThat(Files.exists(directories[0].resolve("classes"))).isFalse()
+    assertThat(Files.exists(directories[1].resolve("classes"))).isTrue()
+    assertThat(Files.exists(directories[2].resolve("classes"))).isTrue()
+    assertThat(cache.withTarget("root", "//old", "out.jar") { it!!.load() }).isNull()
+    assertThat(cache.withTarget("root", "//recent", "out.jar") { it!!.load() }).isEqualTo(state)
+  }
+
+  @Test
+  fun keepsTargetsUsedWithinTheGracePeriod() {
+    val cache = IncrementalCompilationCache(temp.root.toPath(), 0, Duration.ofHours(1))
+    val directory = cache.withTarget("root", "//a", "a.jar") { fill(it!!).directory }
+
+    cache.evict()
+
+    assertThat(Files.exists(directory.resolve("classes"))).isTrue()
+  }
+
+  @Test
+  fun keepsTargetsInUse() {
+    val cache = IncrementalCompilationCache(temp.root.toPath(), 0, Duration.ZERO)
+    val kept =
+      cache.withTarget("root", "//a", "a.jar") { target ->
+        fill(target!!)
+        Files.setLastModifiedTime(target.directory, FileTime.fromMillis(1000))
+        cache.evict()
+        Files.exists(target.classes)
+      }
+
+    assertThat(kept).isTrue()
+  }
+
+  private fun fill(target: IncrementalCompilationCache.Target): IncrementalCompilationCache.Target {
+    Files.createDirectories(target.classes)
+    Files.write(target.classes.resolve("A.class"), ByteArray(1000))
+    target.save(state)
+    return target
+  }
+}
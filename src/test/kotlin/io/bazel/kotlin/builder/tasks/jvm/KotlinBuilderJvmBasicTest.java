@@ -27,7 +27,15 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.zip.ZipFile;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -105,4 +113,56 @@ public class KotlinBuilderJvmBasicTest {
         assertThat(hashDep(previous.singleCompileJar()))
                 .isEqualTo(hashDep(recompiled.singleCompileJar()));
     }
+
+    /**
+     * Builders share one invoker, and with it one compiler instance: concurrent compilations must
+     * not see each other's sources, outputs or messages.
+     */
+    @Test
+    public void testConcurrentCompilationsShareTheInvoker() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 4; round++) {
+                KotlinJvmTestBuilder failing = new KotlinJvmTestBuilder();
+                KotlinJvmTestBuilder passing = new KotlinJvmTestBuilder();
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> compilations = new ArrayList<>();
+                compilations.add(pool.submit(() -> {
+                    start.await(10, TimeUnit.SECONDS);
+                    failing.runFailingCompileTaskAndValidateOutput(
+                            () -> failing.runCompileTask(c -> {
+                                c.compileKotlin();
+                                c.addSource("Broken.kt", "package broken;\nclass Broken{");
+                                c.outputJar();
+                            }),
+                            lines -> {
+                                assertThat(lines.stream().anyMatch(l -> l.contains("Broken.kt")))
+                                        .isTrue();
+                                assertThat(lines.stream().anyMatch(l -> l.contains("Fine")))
+                                        .isFalse();
+                            });
+                    return null;
+                }));
+                compilations.add(pool.submit(() -> {
+                    start.await(10, TimeUnit.SECONDS);
+                    Deps.Dep dep = passing.runCompileTask(c -> {
+                        c.compileKotlin();
+                        c.addSource("Fine.kt", "package fine;\nclass Fine");
+                        c.outputJar();
+                    });
+                    try (ZipFile jar = new ZipFile(dep.singleCompileJar())) {
+                        assertThat(jar.getEntry("fine/Fine.class")).isNotNull();
+                        assertThat(jar.getEntry("broken/Broken.class")).isNull();
+                    }
+                    return null;
+                }));
+                start.countDown();
+                for (Future<?> compilation : compilations) {
+                    compilation.get(5, TimeUnit.MINUTES);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 }
@@ -18,10 +18,13 @@ package io.bazel.kotlin.builder.tasks.jvm;
 
 import io.bazel.kotlin.builder.DirectoryType
 import io.bazel.kotlin.builder.KotlinJvmTestBuilder
+import com.google.common.truth.Truth.assertThat
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.runners.JUnit4
+import java.nio.file.Paths
 import java.util.function.Consumer
+import java.util.zip.ZipFile
 
 @RunWith(JUnit4::class)
 class KotlinBuilderJvmCoverageTest {
@@ -71,4 +74,48 @@ class KotlinBuilderJvmCoverageTest {
     ctx.assertFilesExist(DirectoryType.COVERAGE_METADATA, "something/AnotherKotlinClass.class.uninstrumented")
     ctx.assertFilesExist(DirectoryType.COVERAGE_METADATA, "jar_file.jar-paths-for-coverage.txt")
   }
+
+  @Test
+  fun `abi jar packages the instrumented generated classes`() {
+    val generated = ctx.runCompileTask(Consumer { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Generated.kt",
+        """
+          package generated
+
+          class Generated {
+            fun answer() = 42
+          }
+        """)
+      c.outputJar()
+      c.compileKotlin()
+    })
+    val generatedClass = ZipFile(generated.singleCompileJar()).use {
+      it.getInputStream(it.getEntry("generated/Generated.class")).readBytes()
+    }
+
+    val deps = ctx.runCompileTask(Consumer { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("KotlinClass.kt",
+        """
+          package something
+
+          class KotlinClass {}
+        """)
+      c.addGeneratedClass("generated/Generated.class", generatedClass)
+      c.outputJar()
+      c.outputAbiJar()
+      c.compileKotlin()
+      c.coverage()
+    })
+
+    val abiJar = Paths.get(deps.singleCompileJar())
+    val jar = abiJar.resolveSibling("jar_file.jar")
+    val instrumented = ZipFile(jar.toFile()).use {
+      it.getInputStream(it.getEntry("generated/Generated.class")).readBytes()
+    }
+    val inAbiJar = ZipFile(abiJar.toFile()).use {
+      it.getInputStream(it.getEntry("generated/Generated.class")).readBytes()
+    }
+    assertThat(instrumented).isNotEqualTo(generatedClass)
+    assertThat(inAbiJar).isEqualTo(instrumented)
+  }
 }
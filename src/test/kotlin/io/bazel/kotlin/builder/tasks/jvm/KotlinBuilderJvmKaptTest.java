@@ -19,6 +19,7 @@ import io.bazel.kotlin.builder.Deps.AnnotationProcessor;
 import io.bazel.kotlin.builder.Deps.Dep;
 import io.bazel.kotlin.builder.DirectoryType;
 import io.bazel.kotlin.builder.KotlinJvmTestBuilder;
+import io.bazel.kotlin.builder.toolchain.KotlinToolchain;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -26,6 +27,7 @@ import org.junit.runners.JUnit4;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import static com.google.common.truth.Truth.assertThat;
 import static io.bazel.kotlin.builder.KotlinJvmTestBuilder.KOTLIN_ANNOTATIONS;
 import static io.bazel.kotlin.builder.KotlinJvmTestBuilder.KOTLIN_STDLIB;
 
@@ -142,4 +144,41 @@ public class KotlinBuilderJvmKaptTest {
                 "autovalue/a/AutoValue_TestKtValue.java",
                 "autovalue/b/AutoValue_TestAutoValue.java");
     }
+
+    @Test
+    public void testKaptReusesCachedProcessorClasses() {
+        KotlinJvmTestBuilder worker = new KotlinJvmTestBuilder(1);
+        try {
+            worker.runCompileTask(ADD_AUTO_VALUE_PLUGIN, c -> addAutoValue(c, "First"));
+            KotlinToolchain.InvokerCacheStats stats = worker.invokerStats();
+            long processorClasses = stats.getProcessorClasses();
+            assertThat(stats.getProcessorClassLoaderMisses()).isEqualTo(1L);
+            assertThat(processorClasses).isGreaterThan(0L);
+
+            worker.runCompileTask(ADD_AUTO_VALUE_PLUGIN, c -> addAutoValue(c, "Second"));
+            worker.assertFilesExist(DirectoryType.JAVA_SOURCE_GEN, "autovalue/AutoValue_Second.java");
+            assertThat(stats.getProcessorClassLoaderHits()).isEqualTo(1L);
+            assertThat(stats.getProcessorClassLoaderMisses()).isEqualTo(1L);
+            // Not a single processor class was loaded again, and AutoValue keeps no static state.
+            assertThat(stats.getProcessorClasses()).isEqualTo(processorClasses);
+            assertThat(stats.getRepeatedProcessorRuns()).isEqualTo(0L);
+        } finally {
+            worker.tearDown();
+        }
+    }
+
+    private static void addAutoValue(KotlinJvmTestBuilder.TaskBuilder c, String name) {
+        c.addSource(
+                name + ".kt",
+                "package autovalue\n"
+                        + "\n"
+                        + "import com.google.auto.value.AutoValue\n"
+                        + "\n"
+                        + "@AutoValue\n"
+                        + "abstract class " + name + " {\n"
+                        + "    abstract fun name(): String\n"
+                        + "}");
+        c.outputJar();
+        c.generatedSourceJar();
+    }
 }
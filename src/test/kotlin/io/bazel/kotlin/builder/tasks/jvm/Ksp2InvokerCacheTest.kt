@@ -0,0 +1,134 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.worker.HeapPressure
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class Ksp2InvokerCacheTest {
+  @get:Rule
+  val temp = TemporaryFolder()
+
+  private class FakeInvoker(
+    val classpath: List<String>,
+  ) : Ksp2InvokerCache.Invoker {
+    var closed = false
+
+    override fun execute(vararg args: Any?): Int = 0
+
+    override fun close() {
+      closed = true
+    }
+  }
+
+  private val loaded = mutableListOf<FakeInvoker>()
+
+  private fun cache(maxIdle: Int) =
+    Ksp2InvokerCache(maxIdle) { classpath -> FakeInvoker(classpath).also { loaded += it } }
+
+  @Test
+  fun reusesIdleInvokersOfTheSameKey() {
+    val cache = cache(2)
+    val first = cache.withInvoker("a", listOf("a.jar")) { it }
+    val second = cache.withInvoker("a", listOf("a.jar")) { it }
+
+    assertThat(second).isSameInstanceAs(first)
+    assertThat(cache.hits.get()).isEqualTo(1L)
+    assertThat(cache.misses.get()).isEqualTo(1L)
+  }
+
+  @Test
+  fun leasesAnInvokerToOneRequestAtATime() {
+    val cache = cache(2)
+    cache.withInvoker("a", listOf("a.jar")) { outer ->
+      cache.withInvoker("a", listOf("a.jar")) { inner ->
+        assertThat(inner).isNotSameInstanceAs(outer)
+      }
+    }
+
+    assertThat(loaded).hasSize(2)
+    assertThat(loaded.none { it.closed }).isTrue()
+  }
+
+  @Test
+  fun closesInvokersOfFailedRequests() {
+    val cache = cache(2)
+    try {
+      cache.withInvoker("a", listOf("a.jar")) { error("processing failed") }
+    } catch (e: IllegalStateException) {
+      // Expected.
+    }
+    cache.withInvoker("a", listOf("a.jar")) {}
+
+    assertThat(loaded).hasSize(2)
+    assertThat(loaded[0].closed).isTrue()
+  }
+
+  @Test
+  fun evictsLeastRecentlyUsedIdleInvokers() {
+    val cache = cache(2)
+    listOf("a", "b", "c").forEach { key -> cache.withInvoker(key, listOf("$key.jar")) {} }
+
+    assertThat(loaded.map { it.classpath.single() to it.closed })
+      .containsExactly("a.jar" to true, "b.jar" to false, "c.jar" to false)
+      .inOrder()
+  }
+
+  @Test
+  fun keepsNoIdleInvokersWithoutCapacity() {
+    val cache = cache(0)
+    cache.withInvoker("a", listOf("a.jar")) {}
+
+    assertThat(loaded.single().closed).isTrue()
+  }
+
+  @Test
+  fun stopsListeningForHeapPressureOnceClosed() {
+    val open = cache(2)
+    open.withInvoker("a", listOf("a.jar")) {}
+    val closed = cache(2).apply { close() }
+    closed.withInvoker("b", listOf("b.jar")) {}
+
+    HeapPressure.relieve()
+
+    assertThat(loaded.map { it.closed }).containsExactly(true, false).inOrder()
+    open.close()
+    closed.clear()
+  }
+
+  @Test
+  fun keyUsesDigestsWhenReported() {
+    val jar = temp.newFile("processor.jar").apply { writeText("v1") }
+    val digests = mapOf(jar.path to "digest")
+
+    assertThat(Ksp2InvokerCache.keyOf(listOf(jar.path), digests)).isEqualTo("${jar.path}=digest")
+    assertThat(Ksp2InvokerCache.keyOf(listOf(jar.path), mapOf(jar.path to "other")))
+      .isNotEqualTo(Ksp2InvokerCache.keyOf(listOf(jar.path), digests))
+  }
+
+  @Test
+  fun keyFallsBackToSizeAndModificationTime() {
+    val jar = temp.newFile("processor.jar").apply { writeText("v1") }
+    val before = Ksp2InvokerCache.keyOf(listOf(jar.path), emptyMap())
+    jar.writeText("version 2")
+
+    assertThat(Ksp2InvokerCache.keyOf(listOf(jar.path), emptyMap())).isNotEqualTo(before)
+  }
+}
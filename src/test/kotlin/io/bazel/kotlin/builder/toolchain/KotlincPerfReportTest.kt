@@ -0,0 +1,100 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+
+class KotlincPerfReportTest {
+  @Test
+  fun parsesReportsOfKotlinBefore22() {
+    val report =
+      KotlincPerfReport.parse(
+        """
+        PERF: INIT: Compiler initialized in 512 ms
+        PERF: ANALYZE: 2 files (40 lines) in 1202 ms - 33.278 loc/s
+        PERF: GENERATE: 2 files (40 lines) in 120 ms - 333.333 loc/s
+        PERF: GC time for PS MarkSweep is 52 ms, 2 collections
+        PERF: GC time for PS Scavenge is 30 ms, 5 collections
+        PERF: JIT time is 1500 ms
+        """.trimIndent().lines(),
+      )
+
+    assertThat(report.phases)
+      .containsExactly("INIT" to 512L, "ANALYZE" to 1202L, "GENERATE" to 120L)
+      .inOrder()
+    assertThat(report.values).isEqualTo(
+      mapOf(
+        "files" to 2L,
+        "lines" to 40L,
+        "gc_ms" to 82L,
+        "gc_count" to 7L,
+        "jit_ms" to 1500L,
+      ),
+    )
+  }
+
+  @Test
+  fun parsesReportsOfKotlin22() {
+    val report =
+      KotlincPerfReport.parse(
+        """
+        MODULE: example
+
+        TOTAL: 3 files (120 lines)
+        INIT                  410 ms
+        ANALYZE              2243 ms    53.500 loc/s
+        TRANSLATION to IR     301 ms   398.671 loc/s
+        IR LOWERING           655 ms   183.206 loc/s
+        BACKEND               198 ms   606.060 loc/s
+
+        GC time for G1 Young Generation is 12 ms, 3 collections
+        GC time for G1 Old Generation is 0 ms, 0 collections
+        JIT time is 2210 ms
+        """.trimIndent().lines(),
+      )
+
+    assertThat(report.phases)
+      .containsExactly(
+        "INIT" to 410L,
+        "ANALYZE" to 2243L,
+        "TRANSLATION to IR" to 301L,
+        "IR LOWERING" to 655L,
+        "BACKEND" to 198L,
+      ).inOrder()
+    assertThat(report.values).isEqualTo(
+      mapOf(
+        "files" to 3L,
+        "lines" to 120L,
+        "gc_ms" to 12L,
+        "gc_count" to 3L,
+        "jit_ms" to 2210L,
+      ),
+    )
+  }
+
+  @Test
+  fun ignoresOtherOutput() {
+    val report =
+      KotlincPerfReport.parse(
+        listOf("warning: unused variable 'x'", "", "info: kotlinc-jvm 2.2.0"),
+      )
+
+    assertThat(report.phases).isEmpty()
+    assertThat(report.values).isEmpty()
+  }
+}
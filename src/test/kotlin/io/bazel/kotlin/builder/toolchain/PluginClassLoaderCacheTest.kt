@@ -0,0 +1,102 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+class PluginClassLoaderCacheTest {
+  private val toolchainLoader = ToolchainClassLoader(arrayOf())
+  private val cache = PluginClassLoaderCache(toolchainLoader, 1)
+  private val jars =
+    listOf(File(StatelessProcessor::class.java.protectionDomain.codeSource.location.toURI()))
+
+  private fun loadFromToolchain(type: Class<*>): Class<*>? =
+    try {
+      toolchainLoader.loadClass(type.name)
+    } catch (e: ClassNotFoundException) {
+      null
+    }
+
+  @Test
+  fun reusesTheLoaderOfTheSameJars() {
+    val first =
+      cache.withPlugins("plugins", jars) { loadFromToolchain(StatelessProcessor::class.java) }
+    val second =
+      cache.withPlugins("plugins", jars) { loadFromToolchain(StatelessProcessor::class.java) }
+
+    assertThat(first!!.classLoader).isInstanceOf(PluginClassLoader::class.java)
+    assertThat(second).isSameInstanceAs(first)
+    assertThat(cache.misses.get()).isEqualTo(1L)
+    assertThat(cache.hits.get()).isEqualTo(1L)
+    assertThat(cache.classes()).isEqualTo(1L)
+  }
+
+  @Test
+  fun toolchainServesPluginClassesOnlyWithinTheCall() {
+    assertThat(loadFromToolchain(StatelessProcessor::class.java)).isNull()
+    cache.withPlugins("plugins", jars) {
+      assertThat(loadFromToolchain(StatelessProcessor::class.java)).isNotNull()
+    }
+    assertThat(loadFromToolchain(StatefulProcessor::class.java)).isNull()
+  }
+
+  @Test
+  fun closesEvictedLoadersOnceUnused() {
+    val evicted =
+      cache.withLoader("first", jars) { loader ->
+        cache.withPlugins("second", jars) {}
+        // Evicted while in use: the loader stays open until the call returns.
+        assertThat(loader!!.findLocal(StatelessProcessor::class.java.name)).isNotNull()
+        loader
+      }
+
+    assertThat(evicted!!.findLocal(StatefulProcessor::class.java.name)).isNull()
+    cache.withLoader("second", jars) { loader ->
+      assertThat(loader!!.findLocal(StatefulProcessor::class.java.name)).isNotNull()
+    }
+  }
+
+  @Test
+  fun threadsOutlivingTheCallDoNotKeepItsLoaders() {
+    val started = CountDownLatch(1)
+    val returned = CountDownLatch(1)
+    val during = AtomicReference<Class<*>?>()
+    val after = AtomicReference<Class<*>?>()
+    val thread =
+      cache.withPlugins("plugins", jars) {
+        Thread {
+          during.set(loadFromToolchain(StatelessProcessor::class.java))
+          started.countDown()
+          returned.await(10, TimeUnit.SECONDS)
+          after.set(loadFromToolchain(StatefulProcessor::class.java))
+        }.also {
+          it.start()
+          assertThat(started.await(10, TimeUnit.SECONDS)).isTrue()
+        }
+      }
+    returned.countDown()
+    thread.join()
+
+    assertThat(during.get()).isNotNull()
+    assertThat(after.get()).isNull()
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.io.File
+import java.net.URLClassLoader
+
+class ProcessorClassLoaderCacheTest {
+  private val toolchainLoader = ToolchainClassLoader(arrayOf())
+  private val cache = ProcessorClassLoaderCache(toolchainLoader, 2)
+  private val jars =
+    listOf(File(StatelessProcessor::class.java.protectionDomain.codeSource.location.toURI()))
+
+  /** Runs [processor] the way kapt does, from a fresh loader parented to the toolchain loader. */
+  private fun process(processor: Class<*>): Pair<Class<*>, Int> =
+    cache.withProcessors("processors", jars) {
+      URLClassLoader(jars.map { it.toURI().toURL() }.toTypedArray(), toolchainLoader).use { kapt ->
+        val loaded = kapt.loadClass(processor.name)
+        loaded to loaded.getMethod("process", String::class.java).invoke(null, "round") as Int
+      }
+    }
+
+  @Test
+  fun reusesProcessorsWithoutStaticState() {
+    val (first, _) = process(StatelessProcessor::class.java)
+    val (second, _) = process(StatelessProcessor::class.java)
+
+    assertThat(first.classLoader).isInstanceOf(PluginClassLoader::class.java)
+    assertThat(second).isSameInstanceAs(first)
+    assertThat(cache.misses.get()).isEqualTo(1L)
+    assertThat(cache.hits.get()).isEqualTo(1L)
+    assertThat(cache.repeatedRuns.get()).isEqualTo(0L)
+  }
+
+  @Test
+  fun repeatsRunsThatChangeStaticStateWithFreshProcessors() {
+    val (first, firstRounds) = process(StatefulProcessor::class.java)
+    val (second, secondRounds) = process(StatefulProcessor::class.java)
+
+    assertThat(firstRounds).isEqualTo(1)
+    // The second run saw the round of the first, and was repeated with the processor loaded afresh.
+    assertThat(secondRounds).isEqualTo(1)
+    assertThat(second).isNotSameInstanceAs(first)
+    assertThat(second.classLoader).isNotInstanceOf(PluginClassLoader::class.java)
+    assertThat(cache.repeatedRuns.get()).isEqualTo(1L)
+    assertThat(cache.statefulProcessorClasspaths()).isEqualTo(1)
+
+    val (_, thirdRounds) = process(StatefulProcessor::class.java)
+    assertThat(thirdRounds).isEqualTo(1)
+    assertThat(cache.hits.get() + cache.misses.get()).isEqualTo(2L)
+    assertThat(cache.classes()).isEqualTo(0L)
+  }
+
+  @Test
+  fun fingerprintsStateInFinalStaticFields() {
+    val (processor, _) = process(StatefulProcessor::class.java)
+    val loader = processor.classLoader as PluginClassLoader
+    val before = loader.staticState()
+    processor.getMethod("process", String::class.java).invoke(null, "another round")
+
+    assertThat(loader.staticState()).isNotEqualTo(before)
+  }
+}
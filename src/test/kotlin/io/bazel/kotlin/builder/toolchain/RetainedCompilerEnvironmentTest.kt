@@ -0,0 +1,102 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class RetainedCompilerEnvironmentTest {
+  private val cleared = AtomicInteger()
+  private val disposed = AtomicInteger()
+  private val environment =
+    RetainedCompilerEnvironment({ cleared.incrementAndGet() }, { disposed.incrementAndGet() })
+
+  @Test
+  fun compilationsRunConcurrently() {
+    val bothRunning = CountDownLatch(2)
+    val pool = Executors.newFixedThreadPool(2)
+    try {
+      val compilations =
+        listOf("a.jar", "b.jar").map { jar ->
+          pool.submit<Boolean> {
+            environment.use(mapOf(jar to "1", "shared.jar" to "1")) {
+              bothRunning.countDown()
+              bothRunning.await(10, TimeUnit.SECONDS)
+            }
+          }
+        }
+      assertThat(compilations.map { it.get() }).containsExactly(true, true)
+    } finally {
+      pool.shutdownNow()
+    }
+    assertThat(cleared.get()).isEqualTo(0)
+  }
+
+  @Test
+  fun changedJarWaitsForRunningCompilations() {
+    val running = CountDownLatch(1)
+    val finish = CountDownLatch(1)
+    val pool = Executors.newFixedThreadPool(2)
+    try {
+      val first =
+        pool.submit {
+          environment.use(mapOf("a.jar" to "1")) {
+            running.countDown()
+            finish.await()
+            assertThat(cleared.get()).isEqualTo(0)
+          }
+        }
+      running.await()
+      val second = pool.submit<Int> { environment.use(mapOf("a.jar" to "2")) { cleared.get() } }
+      assertThat(runCatching { second.get(200, TimeUnit.MILLISECONDS) }.isFailure).isTrue()
+      finish.countDown()
+      first.get()
+      assertThat(second.get()).isEqualTo(1)
+    } finally {
+      pool.shutdownNow()
+    }
+    assertThat(environment.invalidations.get()).isEqualTo(1L)
+  }
+
+  @Test
+  fun unchangedJarsKeepCaches() {
+    environment.use(mapOf("a.jar" to "1")) {}
+    environment.use(mapOf("a.jar" to "1", "b.jar" to "1")) {}
+    assertThat(cleared.get()).isEqualTo(0)
+    environment.use(mapOf("b.jar" to "2")) {}
+    assertThat(cleared.get()).isEqualTo(1)
+  }
+
+  @Test
+  fun releaseDuringCompilationDisposesBeforeNext() {
+    environment.use(mapOf("a.jar" to "1")) {
+      environment.release()
+      assertThat(disposed.get()).isEqualTo(0)
+    }
+    environment.use(mapOf("a.jar" to "2")) {
+      assertThat(disposed.get()).isEqualTo(1)
+    }
+    // The disposed environment forgot the old key, so nothing is left to invalidate.
+    assertThat(cleared.get()).isEqualTo(0)
+    environment.release()
+    assertThat(disposed.get()).isEqualTo(2)
+  }
+}
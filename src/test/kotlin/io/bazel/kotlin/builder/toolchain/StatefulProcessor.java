@@ -0,0 +1,34 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Stands in for an annotation processor that remembers what earlier runs processed. */
+public final class StatefulProcessor {
+    private static final List<String> SEEN = new ArrayList<>();
+
+    private StatefulProcessor() {
+    }
+
+    /** Returns the number of rounds this processor has seen. */
+    public static synchronized int process(String round) {
+        SEEN.add(round);
+        return SEEN.size();
+    }
+}
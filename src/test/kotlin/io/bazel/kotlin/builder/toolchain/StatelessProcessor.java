@@ -0,0 +1,28 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain;
+
+/** Stands in for an annotation processor that keeps no state between runs. */
+public final class StatelessProcessor {
+    private StatelessProcessor() {
+    }
+
+    /** Returns the number of rounds this processor has seen, always one. */
+    public static int process(String round) {
+        return 1;
+    }
+}
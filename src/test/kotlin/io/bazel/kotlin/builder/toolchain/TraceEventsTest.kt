@@ -0,0 +1,91 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.toolchain
+
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Files
+
+class TraceEventsTest {
+  @get:Rule
+  val temp = TemporaryFolder()
+
+  private val trace = TraceEvents("//pkg:target", "KotlinCompile")
+
+  private fun written(): List<JsonObject> {
+    val file = temp.root.toPath().resolve("out/target-KotlinCompile.trace.json")
+    trace.write(file)
+    val json = Files.newBufferedReader(file).use { JsonParser.parseReader(it).asJsonObject }
+    assertThat(json.get("displayTimeUnit").asString).isEqualTo("ms")
+    return json.getAsJsonArray("traceEvents").map { it.asJsonObject }
+  }
+
+  @Test
+  fun writesCompleteSpans() {
+    trace.complete("kotlinc", 1_000, 250, mapOf("sources" to 3, "phase" to "analysis"))
+
+    val event = written().single()
+    assertThat(event.get("name").asString).isEqualTo("kotlinc")
+    assertThat(event.get("cat").asString).isEqualTo("KotlinCompile")
+    assertThat(event.get("ph").asString).isEqualTo("X")
+    assertThat(event.get("ts").asLong).isEqualTo(1_000L)
+    assertThat(event.get("dur").asLong).isEqualTo(250L)
+    assertThat(event.get("pid").asLong).isEqualTo(ProcessHandle.current().pid())
+    assertThat(event.get("tid").asLong).isEqualTo(Thread.currentThread().id)
+    val args = event.getAsJsonObject("args")
+    assertThat(args.get("label").asString).isEqualTo("//pkg:target")
+    assertThat(args.get("mnemonic").asString).isEqualTo("KotlinCompile")
+    assertThat(args.get("sources").asInt).isEqualTo(3)
+    assertThat(args.get("phase").asString).isEqualTo("analysis")
+  }
+
+  @Test
+  fun placesSpansOnTheWallClock() {
+    val start = System.nanoTime()
+    val before = System.currentTimeMillis() * 1000
+    trace.span("task", start, start + 5_000_000)
+
+    val event = written().single()
+    assertThat(event.get("dur").asLong).isEqualTo(5_000L)
+    // Within a second of the wall clock at the start of the span.
+    assertThat(Math.abs(event.get("ts").asLong - before)).isLessThan(1_000_000L)
+  }
+
+  @Test
+  fun escapesNamesAndArguments() {
+    trace.complete("say \"hi\"\\\n", 0, -1, mapOf("path" to "C:\\src\tA.kt"))
+
+    val event = written().single()
+    assertThat(event.get("name").asString).isEqualTo("say \"hi\"\\\n")
+    assertThat(event.get("dur").asLong).isEqualTo(0L)
+    assertThat(event.getAsJsonObject("args").get("path").asString).isEqualTo("C:\\src\tA.kt")
+  }
+
+  @Test
+  fun writesSpansInRecordingOrder() {
+    trace.complete("first", 0, 10)
+    trace.complete("second", 10, 10)
+
+    assertThat(written().map { it.get("name").asString })
+      .containsExactly("first", "second")
+      .inOrder()
+  }
+}
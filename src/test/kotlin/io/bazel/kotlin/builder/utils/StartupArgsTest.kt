@@ -0,0 +1,45 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package io.bazel.kotlin.builder.utils
+
+import com.google.common.truth.Truth
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class StartupArgsTest {
+  private val retain = object : Flag {
+    override val flag = "--retain_compiler_environment"
+  }
+
+  @Test
+  fun separatesStartupOptionsFromWorkerArgs() {
+    val (options, request) =
+      StartupArgs.split(listOf("--retain_compiler_environment", "true", "--persistent_worker"))
+    Truth.assertThat(options.optionalSingle(retain)).isEqualTo("true")
+    Truth.assertThat(request).containsExactly("--persistent_worker")
+  }
+
+  @Test
+  fun keepsFlagfilesAsRequestArgs() {
+    val (options, request) = StartupArgs.split(listOf("--flagfile=a.params", "@b.params"))
+    Truth.assertThat(options.optionalSingle(retain)).isNull()
+    Truth.assertThat(request).containsExactly("--flagfile=a.params", "@b.params").inOrder()
+  }
+}
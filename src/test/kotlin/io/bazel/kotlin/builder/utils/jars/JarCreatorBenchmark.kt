@@ -0,0 +1,141 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils.jars
+
+import com.sun.management.OperatingSystemMXBean
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipFile
+
+/**
+ * Measures the CPU time spent on an intermediate jar, from the builder writing it to singlejar
+ * merging it into the compressed output of a target, with and without compressing it in the
+ * builder.
+ *
+ * The classes of the jar are the classes of the Kotlin standard library, copied out of the
+ * classpath of the benchmark.
+ *
+ * Run with `bazel run //src/test/kotlin/io/bazel/kotlin/builder/utils:JarCreatorBenchmark`. The
+ * CPU time of singlejar is read from /proc, so it is only reported on Linux.
+ */
+object JarCreatorBenchmark {
+  private val os = ManagementFactory.getOperatingSystemMXBean() as OperatingSystemMXBean
+
+  private class Sample(
+    val builderNanos: Long,
+    val singlejarNanos: Long?,
+    val bytes: Long,
+  )
+
+  @JvmStatic
+  fun main(args: Array<String>) {
+    val singlejar = args.indexOf("--singlejar").takeIf { it >= 0 }?.let { Path.of(args[it + 1]) }
+    val iterations = args.indexOf("--iterations").takeIf { it >= 0 }?.let { args[it + 1].toInt() }
+      ?: 10
+
+    val work = Files.createTempDirectory("jar-benchmark")
+    val classes = copyClasses(work.resolve("classes"))
+    println("$classes classes, $iterations iterations")
+
+    for (compression in listOf(true, false)) {
+      // The first iterations warm up the JIT.
+      val samples =
+        (0 until iterations + 2).map { measure(work, compression, singlejar) }.drop(2)
+      val builder = samples.sumOf { it.builderNanos } / samples.size / 1_000_000
+      val merge =
+        samples
+          .mapNotNull { it.singlejarNanos }
+          .takeIf { it.size == samples.size }
+          ?.let { it.sum() / it.size / 1_000_000 }
+      println(
+        "%-10s builder %5d ms cpu, singlejar %s, total %s, intermediate jar %d KiB".format(
+          if (compression) "deflated" else "stored",
+          builder,
+          merge?.let { "%5d ms cpu".format(it) } ?: "n/a",
+          merge?.let { "%5d ms cpu".format(builder + it) } ?: "n/a",
+          samples.last().bytes / 1024,
+        ),
+      )
+    }
+  }
+
+  private fun copyClasses(directory: Path): Int {
+    val stdlib = Path.of(Unit::class.java.protectionDomain.codeSource.location.toURI())
+    var copied = 0
+    ZipFile(stdlib.toFile()).use { zip ->
+      for (entry in zip.entries()) {
+        if (entry.name.endsWith(".class")) {
+          val target = directory.resolve(entry.name)
+          Files.createDirectories(target.parent)
+          zip.getInputStream(entry).use { Files.copy(it, target) }
+          copied++
+        }
+      }
+    }
+    return copied
+  }
+
+  private fun measure(
+    work: Path,
+    compression: Boolean,
+    singlejar: Path?,
+  ): Sample {
+    val intermediate = work.resolve("intermediate.jar")
+    val start = os.processCpuTime
+    JarCreator(intermediate, compression = compression).use {
+      it.addDirectory(work.resolve("classes"))
+    }
+    val builder = os.processCpuTime - start
+    return Sample(
+      builderNanos = builder,
+      singlejarNanos = singlejar?.let { merge(it, intermediate, work.resolve("output.jar")) },
+      bytes = Files.size(intermediate),
+    )
+  }
+
+  /** Merges [input] into [output] as the fold action of a target does, returning its CPU time. */
+  private fun merge(
+    singlejar: Path,
+    input: Path,
+    output: Path,
+  ): Long? {
+    val before = childrenCpuNanos() ?: return null
+    val process =
+      ProcessBuilder(
+        singlejar.toString(),
+        "--normalize",
+        "--compression",
+        "--exclude_build_data",
+        "--add_missing_directories",
+        "--output",
+        output.toString(),
+        "--sources",
+        input.toString(),
+      ).inheritIO().start()
+    check(process.waitFor() == 0) { "singlejar failed" }
+    return childrenCpuNanos()?.minus(before)
+  }
+
+  /** The user and system time of the reaped child processes, from /proc/self/stat. */
+  private fun childrenCpuNanos(): Long? {
+    val stat = Path.of("/proc/self/stat").takeIf(Files::exists) ?: return null
+    // The fields after the command name, which is in parentheses and may contain spaces.
+    val fields = Files.readString(stat).substringAfterLast(')').trim().split(' ')
+    // cutime and cstime are fields 16 and 17 of the file, in clock ticks of 10 ms.
+    return (fields[13].toLong() + fields[14].toLong()) * 10_000_000
+  }
+}
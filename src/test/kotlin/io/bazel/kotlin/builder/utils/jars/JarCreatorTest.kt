@@ -3,7 +3,12 @@ package io.bazel.kotlin.builder.utils.jars
 import com.google.common.truth.Truth.assertThat
 import io.bazel.testing.Temporary
 import org.junit.Test
+import java.nio.file.Files
+import java.util.concurrent.Executors
+import java.util.jar.JarInputStream
+import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
 
 class JarCreatorTest {
   @Test fun createDirectories() {
@@ -22,4 +27,103 @@ class JarCreatorTest {
       "ibbity/bibbity/zibbity.zee"
     )
   }
+
+  @Test fun addJarMatchesAddDirectory() {
+    val root = Temporary.directoryFor<JarCreatorTest> {
+      file("ibbity/bibbity/zibbity.zee", "Hellity, crackity, bumble-bee.")
+      file("ibbity/boo.zee", "")
+    }
+    val out = Temporary.directoryFor<JarCreatorTest>()
+    val classes = out.resolve("classes.jar").apply {
+      ZipOutputStream(Files.newOutputStream(this)).use { zip ->
+        zip.putNextEntry(ZipEntry("META-INF/MANIFEST.MF"))
+        zip.write("Manifest-Version: 1.0\r\nMain-Class: Zee\r\n\r\n".toByteArray())
+        zip.putNextEntry(ZipEntry("ibbity/boo.zee"))
+        zip.putNextEntry(ZipEntry("ibbity/bibbity/zibbity.zee"))
+        zip.write("Hellity, crackity, bumble-bee.".toByteArray())
+      }
+    }
+
+    val fromDirectory = out.resolve("directory.jar").apply {
+      JarCreator(this).use { it.addDirectory(root) }
+    }
+    val fromJar = out.resolve("jar.jar").apply {
+      JarCreator(this).use { it.addJar(classes) }
+    }
+
+    assertThat(Files.readAllBytes(fromJar)).isEqualTo(Files.readAllBytes(fromDirectory))
+  }
+
+  @Test fun compressesTheSameOnAnyNumberOfThreads() {
+    val root = Temporary.directoryFor<JarCreatorTest> {
+      (0 until 1000).forEach { file("p${it % 7}/C$it.class", "class C$it ".repeat(it % 50)) }
+    }
+    val out = Temporary.directoryFor<JarCreatorTest>()
+
+    val serial = out.resolve("serial.jar").apply {
+      val executor = Executors.newSingleThreadExecutor()
+      try {
+        JarCreator(this, executor = executor).use { it.addDirectory(root) }
+      } finally {
+        executor.shutdown()
+      }
+    }
+    val parallel = out.resolve("parallel.jar").apply {
+      JarCreator(this).use { it.addDirectory(root) }
+    }
+
+    assertThat(Files.readAllBytes(parallel)).isEqualTo(Files.readAllBytes(serial))
+    assertThat(
+      ZipFile(parallel.toFile()).entries().asSequence().map { it.name }.toList()
+    ).isInOrder()
+  }
+
+  @Test fun storesEntriesWithoutCompression() {
+    val root = Temporary.directoryFor<JarCreatorTest> {
+      file("ibbity/bibbity/zibbity.zee", "Hellity, crackity, bumble-bee. ".repeat(100))
+    }
+
+    val got = Temporary.directoryFor<JarCreatorTest>().resolve("out.jar").apply {
+      JarCreator(this, compression = false).use { it.addDirectory(root) }
+    }
+
+    ZipFile(got.toFile()).use { zip ->
+      val entry = zip.getEntry("ibbity/bibbity/zibbity.zee")
+      assertThat(entry.method).isEqualTo(ZipEntry.STORED)
+      assertThat(entry.compressedSize).isEqualTo(entry.size)
+    }
+    // Stored entries are read as a stream only with their sizes and CRC ahead of their data.
+    JarInputStream(Files.newInputStream(got)).use { jar ->
+      val names = generateSequence { jar.nextJarEntry }.map { it.name }.toList()
+      assertThat(names).contains("ibbity/bibbity/zibbity.zee")
+    }
+  }
+
+  @Test fun reusesDeflatedEntries() {
+    val root = Temporary.directoryFor<JarCreatorTest> {
+      file("ibbity/Bibbity.class", "bibbity ".repeat(100))
+      file("ibbity/Zibbity.class", "zibbity ".repeat(100))
+    }
+    val out = Temporary.directoryFor<JarCreatorTest>()
+    val cache = DeflatedEntryCache(1024 * 1024)
+
+    val fresh = out.resolve("fresh.jar").apply {
+      JarCreator(this).use { it.addDirectory(root) }
+    }
+    val first = out.resolve("first.jar").apply {
+      JarCreator(this, cache = cache).use { it.addDirectory(root) }
+    }
+    Files.write(root.resolve("ibbity/Zibbity.class"), "zabbity ".repeat(100).toByteArray())
+    val second = out.resolve("second.jar").apply {
+      JarCreator(this, cache = cache).use { it.addDirectory(root) }
+    }
+    val secondFresh = out.resolve("second-fresh.jar").apply {
+      JarCreator(this).use { it.addDirectory(root) }
+    }
+
+    assertThat(Files.readAllBytes(first)).isEqualTo(Files.readAllBytes(fresh))
+    assertThat(Files.readAllBytes(second)).isEqualTo(Files.readAllBytes(secondFresh))
+    assertThat(cache.lines()).contains("hits: 1")
+    assertThat(cache.lines()).contains("misses: 3")
+  }
 }
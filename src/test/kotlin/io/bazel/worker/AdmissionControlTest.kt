@@ -0,0 +1,248 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+class AdmissionControlTest {
+  /** Heap occupancy reported to the admission control, changed by other threads. */
+  @Volatile
+  private var occupancy = 0.99
+
+  /** The clock of the admission control in [startOrder], advanced by the test alone. */
+  private val clock = AtomicLong()
+
+  private fun runConcurrently(
+    admission: AdmissionControl,
+    requests: Int,
+    estimate: Long,
+  ): Int {
+    val running = AtomicInteger()
+    val peak = AtomicInteger()
+    val start = CountDownLatch(1)
+    val executor = Executors.newFixedThreadPool(requests)
+    try {
+      val futures =
+        (1..requests).map {
+          executor.submit {
+            start.await()
+            admission.admit(estimate) {
+              peak.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+              Thread.sleep(50)
+              running.decrementAndGet()
+            }
+          }
+        }
+      start.countDown()
+      futures.forEach { it.get(10, TimeUnit.SECONDS) }
+    } finally {
+      executor.shutdownNow()
+    }
+    return peak.get()
+  }
+
+  @Test
+  fun limitsParallelism() {
+    val admission = AdmissionControl(maxParallelism = 2, occupancy = { 0.0 })
+    assertThat(runConcurrently(admission, requests = 6, estimate = 0)).isEqualTo(2)
+  }
+
+  @Test
+  fun limitsEstimatedHeap() {
+    val admission = AdmissionControl(maxHeap = 100, heapBudget = 0.8, occupancy = { 0.0 })
+    assertThat(runConcurrently(admission, requests = 6, estimate = 30)).isEqualTo(2)
+  }
+
+  @Test
+  fun runsOneRequestAtATimeWhenHeapIsFull() {
+    val admission = AdmissionControl(occupancy = { 0.99 }, relieve = {})
+    assertThat(runConcurrently(admission, requests = 4, estimate = 0)).isEqualTo(1)
+  }
+
+  @Test
+  fun relievesFullHeapBeforeWaiting() {
+    val admission = AdmissionControl(occupancy = { occupancy }, relieve = { occupancy = 0.1 })
+    assertThat(runConcurrently(admission, requests = 4, estimate = 0)).isEqualTo(4)
+  }
+
+  @Test
+  fun runsAloneWhileNothingElseIsRunning() {
+    val admission = AdmissionControl(occupancy = { 0.0 })
+    val running = AtomicInteger()
+    val started = CountDownLatch(1)
+    val executor = Executors.newFixedThreadPool(2)
+    try {
+      val other =
+        executor.submit {
+          admission.admit(0) {
+            running.incrementAndGet()
+            started.countDown()
+            Thread.sleep(100)
+            running.decrementAndGet()
+          }
+        }
+      started.await()
+      val alone = admission.admitAlone { running.get() }
+      assertThat(alone).isEqualTo(0)
+      other.get(10, TimeUnit.SECONDS)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /**
+   * The order in which requests of [costs], arriving 100 ms apart on [clock], start after a
+   * blocker. Requests need no heap unless they have an [estimates] entry.
+   */
+  private fun startOrder(
+    admission: AdmissionControl,
+    vararg costs: Pair<String, Long>,
+    estimates: Map<String, Long> = emptyMap(),
+  ): List<String> {
+    val started = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    val order = ConcurrentLinkedQueue<String>()
+    val executor = Executors.newFixedThreadPool(costs.size + 1)
+    try {
+      val blocker =
+        executor.submit {
+          admission.admit(0) {
+            started.countDown()
+            release.await()
+          }
+        }
+      started.await()
+      val requests =
+        costs.mapIndexed { i, (name, cost) ->
+          executor.submit { admission.admit(estimates[name] ?: 0, cost) { order += name } }.also {
+            awaitWaiting(admission, i + 1)
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100))
+          }
+        }
+      release.countDown()
+      (requests + blocker).forEach { it.get(10, TimeUnit.SECONDS) }
+      return order.toList()
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /** Waits until [count] requests wait to be admitted, so that they arrive in a known order. */
+  private fun awaitWaiting(
+    admission: AdmissionControl,
+    count: Int,
+  ) {
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+    while (admission.waitingRequests() < count) {
+      check(System.nanoTime() < deadline) { "request $count never waited" }
+      Thread.yield()
+    }
+  }
+
+  @Test
+  fun startsExpensiveRequestsFirst() {
+    val admission =
+      AdmissionControl(maxParallelism = 1, occupancy = { 0.0 }, nanoTime = clock::get)
+    assertThat(startOrder(admission, "cheap" to 10L, "expensive" to 5_000L))
+      .isEqualTo(listOf("expensive", "cheap"))
+  }
+
+  @Test
+  fun comparesCostsLongerThanHeadStart() {
+    val admission =
+      AdmissionControl(maxParallelism = 1, occupancy = { 0.0 }, nanoTime = clock::get)
+    assertThat(startOrder(admission, "long" to 20_000L, "longer" to 60_000L))
+      .isEqualTo(listOf("longer", "long"))
+  }
+
+  @Test
+  fun startsRequestsThatWaitedTheHeadStartFirst() {
+    val admission =
+      AdmissionControl(
+        maxParallelism = 1,
+        occupancy = { 0.0 },
+        maxHeadStartMillis = 150,
+        nanoTime = clock::get,
+      )
+    assertThat(startOrder(admission, "cheap" to 10L, "expensive" to 5_000L, "other" to 20L))
+      .isEqualTo(listOf("cheap", "expensive", "other"))
+  }
+
+  @Test
+  fun drainsForRequestsOverBudget() {
+    val admission =
+      AdmissionControl(
+        maxHeap = 100,
+        heapBudget = 0.8,
+        occupancy = { 0.0 },
+        nanoTime = clock::get,
+      )
+    val order =
+      startOrder(admission, "large" to 5_000L, "small" to 10L, estimates = mapOf("large" to 90L))
+    assertThat(order).isEqualTo(listOf("large", "small"))
+  }
+
+  @Test
+  fun relievesHeapOutsideLock() {
+    val started = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    val finished = CountDownLatch(1)
+    val finishedWhileRelieving = AtomicBoolean()
+    val admission =
+      AdmissionControl(
+        occupancy = { occupancy },
+        relieve = {
+          // The running request can finish while the heap is relieved.
+          release.countDown()
+          finishedWhileRelieving.set(finished.await(5, TimeUnit.SECONDS))
+          occupancy = 0.1
+        },
+      )
+    val executor = Executors.newFixedThreadPool(2)
+    try {
+      val running =
+        executor.submit {
+          admission.admit(0) {
+            started.countDown()
+            release.await()
+          }
+          finished.countDown()
+        }
+      started.await()
+      executor.submit { admission.admit(0) {} }.get(10, TimeUnit.SECONDS)
+      running.get(10, TimeUnit.SECONDS)
+      assertThat(finishedWhileRelieving.get()).isTrue()
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  fun estimatesFromSourcesAndJars() {
+    val small = AdmissionControl.estimateHeap(listOf("A.kt"))
+    val large = AdmissionControl.estimateHeap(listOf("A.kt", "B.java", "lib.jar"))
+    assertThat(large).isGreaterThan(small)
+  }
+}
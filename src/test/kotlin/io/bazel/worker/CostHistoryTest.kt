@@ -0,0 +1,95 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.nio.file.Files
+
+class CostHistoryTest {
+  private val compile = listOf("--target_label", "//a:b", "--output", "b.jar")
+
+  @Test
+  fun keysRequestsByLabelAndFlags() {
+    val kapt = listOf("--target_label", "//a:b", "--kapt_generated_stub_jar", "b-stubs.jar")
+    val other = listOf("--target_label", "//a:c", "--output", "c.jar")
+    assertThat(CostHistory.key(compile)).isEqualTo(
+      CostHistory.key(listOf("--output", "renamed.jar", "--target_label", "//a:b")),
+    )
+    assertThat(CostHistory.key(compile) == CostHistory.key(kapt)).isFalse()
+    assertThat(CostHistory.key(compile) == CostHistory.key(other)).isFalse()
+    assertThat(CostHistory.key(listOf("--output", "b.jar"))).isEqualTo(null)
+  }
+
+  @Test
+  fun readsKeyFromFlagfile() {
+    val dir = Files.createTempDirectory("sandbox")
+    Files.write(dir.resolve("b-0.params"), compile)
+    assertThat(CostHistory.key(listOf("--flagfile=b-0.params"), dir))
+      .isEqualTo(CostHistory.key(compile))
+  }
+
+  @Test
+  fun estimatesUnseenRequestsFromInputs() {
+    val inputs = listOf("A.kt", "B.java", "lib.jar")
+    assertThat(CostHistory().estimate(CostHistory.key(compile), inputs))
+      .isEqualTo(CostHistory.estimate(inputs))
+    assertThat(CostHistory.estimate(inputs) > CostHistory.estimate(listOf("A.kt"))).isTrue()
+  }
+
+  @Test
+  fun averagesDurations() {
+    val history = CostHistory()
+    val key = CostHistory.key(compile)!!
+    history.record(key, 1_000)
+    history.record(key, 3_000)
+    assertThat(history.estimate(key, emptyList())).isEqualTo(2_000L)
+  }
+
+  @Test
+  fun keepsHistoryAcrossWorkers() {
+    val file = Files.createTempDirectory("history").resolve("costs.tsv")
+    val key = CostHistory.key(compile)!!
+    CostHistory(file).use { it.record(key, 1_000) }
+    assertThat(CostHistory(file).estimate(key, emptyList())).isEqualTo(1_000L)
+  }
+
+  @Test
+  fun mergesHistoriesOfConcurrentWorkers() {
+    val file = Files.createTempDirectory("history").resolve("costs.tsv")
+    val first = CostHistory(file)
+    val second = CostHistory(file)
+    first.record("a", 1_000)
+    second.record("b", 2_000)
+    first.close()
+    second.close()
+    val merged = CostHistory(file)
+    assertThat(merged.estimate("a", emptyList())).isEqualTo(1_000L)
+    assertThat(merged.estimate("b", emptyList())).isEqualTo(2_000L)
+  }
+
+  @Test
+  fun forgetsLeastRecentlyRunRequests() {
+    val history = CostHistory(maxEntries = 2)
+    history.record("a", 1)
+    history.record("b", 2)
+    history.estimate("a", emptyList())
+    history.record("c", 3)
+    assertThat(history.estimate("b", emptyList())).isEqualTo(CostHistory.estimate(emptyList()))
+    assertThat(history.estimate("a", emptyList())).isEqualTo(1L)
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class RequestMetricsTest {
+  @get:Rule
+  val tmp = TemporaryFolder()
+
+  @Test
+  fun writesOneJsonLinePerRequest() {
+    val file = tmp.root.toPath().resolve("metrics").resolve("worker.jsonl")
+    listOf("request 1", "request 2").forEach { name ->
+      val metrics = RequestMetrics(name)
+      metrics.tag("label", "//a:\"b\"")
+      metrics.measure {
+        metrics.phase("kotlinc", 3_000_000)
+        metrics.phase("kotlinc", 2_000_000)
+      }
+      RequestMetrics.append(file, metrics)
+    }
+    val lines = file.toFile().readLines()
+    assertThat(lines).hasSize(2)
+    assertThat(lines[0]).startsWith("{\"request\":\"request 1\",\"label\":\"//a:\\\"b\\\"\"")
+    assertThat(lines[0]).contains("\"wall_ms\":")
+    assertThat(lines[0]).contains("\"gc_pause_ms\":")
+    assertThat(lines[0]).contains("\"worker_heap_peak_bytes\":")
+    assertThat(lines[0]).endsWith(",\"phases_ms\":{\"kotlinc\":5}}")
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2025 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.worker
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Files
+import java.nio.file.Path
+
+class ScratchDirectoriesTest {
+  @get:Rule
+  val tmp = TemporaryFolder()
+
+  @Test
+  fun reusesDirectoriesOnceEmptied() {
+    val root = tmp.root.toPath().resolve("scratch")
+    ScratchDirectories(root, maxIdle = 1).use { scratch ->
+      val first =
+        scratch.useDirectory {
+          Files.createDirectories(dir.resolve("classes/a/b"))
+          Files.write(dir.resolve("classes/a/b/C.class"), byteArrayOf(1, 2, 3))
+          dir
+        }
+      assertThat(first.startsWith(root)).isTrue()
+
+      val second = awaitIdle(scratch, first)
+      assertThat(second).isEqualTo(first)
+      assertThat(Files.list(second).use { it.count() }).isEqualTo(0L)
+      scratch.release(second)
+    }
+    assertThat(Files.list(root).use { it.flatMap { d -> Files.list(d) }.count() }).isEqualTo(0L)
+  }
+
+  @Test
+  fun deletesDirectoriesBeyondTheIdleLimit() {
+    ScratchDirectories(tmp.root.toPath(), maxIdle = 0).use { scratch ->
+      val dir = scratch.useDirectory { dir }
+      scratch.close()
+      assertThat(Files.exists(dir)).isFalse()
+    }
+  }
+
+  /** Acquires directories until [expected] comes back from the background cleanup. */
+  private fun awaitIdle(
+    scratch: ScratchDirectories,
+    expected: Path,
+  ): Path {
+    repeat(100) {
+      val dir = scratch.acquire()
+      if (dir == expected) {
+        return dir
+      }
+      ScratchDirectories.delete(dir)
+      Thread.sleep(10)
+    }
+    error("$expected was not returned to the pool")
+  }
+}
@@ -23,6 +23,7 @@ import io.bazel.worker.Status.SUCCESS
 import org.junit.Rule
 import org.junit.Test
 import org.junit.rules.TemporaryFolder
+import java.nio.file.Paths
 
 class WorkerContextTest {
   @get:Rule
@@ -54,6 +55,63 @@ class WorkerContextTest {
     assertThat(observedDir?.fileName?.toString()).startsWith("pwd")
   }
 
+  @Test
+  fun cancelledTaskStopsAndCleansUp() {
+    val cancellation = Cancellation()
+    var observedDir: java.nio.file.Path? = null
+    var cancelled = false
+    val result =
+      WorkerContext.run {
+        doTask("cancelled", cancellation = cancellation) { ctx ->
+          observedDir = ctx.directory
+          ctx.cancellation.onCancel { cancelled = true }
+          cancellation.cancel()
+          ctx.cancellation.check()
+          SUCCESS
+        }
+      }
+    assertThat(cancelled).isTrue()
+    assertThat(result.status).isEqualTo(Status.ERROR)
+    assertThat(result.log.toString()).contains("ERROR: Cancelled")
+    assertThat(observedDir?.toFile()?.exists()).isFalse()
+  }
+
+  @Test
+  fun longLogsAreTruncatedAndSpilledToWorkerDirectory() {
+    val logs = tmp.newFolder("logs").toPath()
+    for (sandboxDir in listOf(tmp.newFolder("sandbox").toPath(), null)) {
+      val result =
+        WorkerContext.run(logLimit = 256, logDirectory = logs) {
+          doTask("request 1", sandboxDir = sandboxDir) { ctx ->
+            ctx.asPrintStream().apply { (1..100).forEach { println("line $it") } }
+            SUCCESS
+          }
+        }
+      val log = result.log.out.toString()
+      assertThat(log).startsWith("line 1")
+      assertThat(log.trimEnd()).endsWith("line 100")
+      assertThat(log).contains("bytes truncated")
+      assertThat(log.length).isLessThan(400)
+      val spilled = log.substringAfter("full log in ").substringBefore(" ...]")
+      assertThat(Paths.get(spilled).startsWith(logs)).isTrue()
+      assertThat(Paths.get(spilled).toFile().readLines()).hasSize(100)
+    }
+  }
+
+  @Test
+  fun spilledLogsAreLimited() {
+    val logs = tmp.newFolder("logs").toPath()
+    WorkerContext.run(logLimit = 256, logDirectory = logs) {
+      repeat(SpilledLogs.DEFAULT_MAX_LOGS + 5) {
+        doTask("request $it") { ctx ->
+          ctx.asPrintStream().apply { (1..100).forEach { println("line $it") } }
+          SUCCESS
+        }
+      }
+    }
+    assertThat(logs.toFile().list()).hasLength(SpilledLogs.DEFAULT_MAX_LOGS)
+  }
+
   @Test
   fun logging() {
     var outerLog: List<String> = emptyList()